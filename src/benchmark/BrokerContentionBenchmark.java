@@ -0,0 +1,161 @@
+package benchmark;
+
+import broker.Broker;
+import broker.SocketConnection;
+
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how publish throughput of a single Broker scales with the number of
+ * concurrent publisher threads.
+ * Each publisher thread owns its own topic with its own subscribers, so the
+ * threads only compete for shared broker state, not for the same sockets.
+ * Subscriber sockets are real loopback connections whose far end is drained by
+ * background threads, which count the messages actually delivered. Publishing
+ * only queues a message for each subscriber, so the publish rate alone says
+ * nothing about fan-out: the delivery rate and the messages dropped because an
+ * outbound queue was full are reported next to it.
+ */
+public class BrokerContentionBenchmark {
+    private static final int SUBSCRIBERS_PER_TOPIC = 4;
+    private static final LongAdder DELIVERED = new LongAdder(); // Messages read by the drainer threads
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args Optional: maximum number of publisher threads (default 8) and
+     *             measurement time per step in milliseconds (default 2000).
+     */
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        long durationMillis = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // Silence the broker's drop reports
+
+        try (ServerSocket sink = new ServerSocket(0)) {
+            startDrainer(sink);
+
+            console.println("threads  publishes/sec  deliveries/sec    dropped/sec");
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                Broker broker = new Broker(0);
+                List<Socket> sockets = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    String topicId = Integer.toString(t);
+                    broker.createTopic(topicId, "topic" + t, "pub" + t);
+                    for (int s = 0; s < SUBSCRIBERS_PER_TOPIC; s++) {
+                        String subscriber = "sub" + t + "-" + s;
+                        Socket socket = new Socket("localhost", sink.getLocalPort());
+                        sockets.add(socket);
+                        broker.addSubscriberSocket(subscriber, new SocketConnection(socket));
+                        broker.subscribe(topicId, subscriber);
+                    }
+                }
+
+                // Warm up before measuring
+                runPublishers(broker, threads, durationMillis / 4);
+                long deliveredBefore = DELIVERED.sum();
+                long droppedBefore = droppedMessages(broker);
+                long begin = System.nanoTime();
+                long published = runPublishers(broker, threads, durationMillis);
+                double seconds = (System.nanoTime() - begin) / 1_000_000_000.0;
+                long delivered = DELIVERED.sum() - deliveredBefore;
+                long dropped = droppedMessages(broker) - droppedBefore;
+                console.printf("%7d  %13.0f  %14.0f  %13.0f%n", threads, published / seconds,
+                        delivered / seconds, dropped / seconds);
+
+                for (Socket socket : sockets) {
+                    socket.close();
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Publishes from the given number of threads for a fixed duration.
+     *
+     * @return The number of publish operations completed.
+     */
+    private static long runPublishers(Broker broker, int threads, long durationMillis) throws InterruptedException {
+        LongAdder published = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.currentTimeMillis() + durationMillis;
+
+        for (int t = 0; t < threads; t++) {
+            String topicId = Integer.toString(t);
+            String publisher = "pub" + t;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    while (System.currentTimeMillis() < deadline) {
+                        broker.publishMessage(topicId, "benchmark message", publisher);
+                        published.increment();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+            thread.start();
+        }
+
+        start.countDown();
+        done.await();
+        return published.sum();
+    }
+
+    private static long droppedMessages(Broker broker) {
+        JSONObject detail = (JSONObject) broker.getStats().get("detail");
+        return ((Number) detail.get("dropped messages")).longValue();
+    }
+
+    /**
+     * Accepts connections on the sink socket and counts the messages they send.
+     */
+    private static void startDrainer(ServerSocket sink) {
+        Thread acceptor = new Thread(() -> {
+            while (!sink.isClosed()) {
+                try {
+                    Socket socket = sink.accept();
+                    Thread drainer = new Thread(() -> {
+                        byte[] buffer = new byte[64 * 1024];
+                        try (InputStream in = socket.getInputStream()) {
+                            int read;
+                            while ((read = in.read(buffer)) >= 0) {
+                                int lines = 0;
+                                for (int i = 0; i < read; i++) {
+                                    if (buffer[i] == '\n') {
+                                        lines++;
+                                    }
+                                }
+                                DELIVERED.add(lines);
+                            }
+                        } catch (IOException e) {
+                            // connection closed
+                        }
+                    });
+                    drainer.setDaemon(true);
+                    drainer.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+}
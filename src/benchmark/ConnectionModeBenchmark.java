@@ -0,0 +1,127 @@
+package benchmark;
+
+import broker.Broker;
+import broker.ExecutionMode;
+import protocol.ThreadFactories;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the platform-thread and virtual-thread execution modes of the
+ * broker's blocking server.
+ * The benchmark opens the given number of idle subscriber connections to an
+ * in-process broker and reports how fast they were accepted and registered,
+ * and how much memory (resident set size and heap) each connection costs.
+ * Run it once per mode in a fresh JVM so that the measurements do not mix.
+ * The client sockets live in the same process and cost the same in both modes.
+ */
+public class ConnectionModeBenchmark {
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args "platform" or "virtual", optionally followed by the number of
+     *             connections (default 2000).
+     */
+    public static void main(String[] args) throws Exception {
+        ExecutionMode mode = ExecutionMode.valueOf(args[0].toUpperCase());
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        if (mode == ExecutionMode.VIRTUAL && !ThreadFactories.virtualThreadsSupported()) {
+            System.out.println("Virtual threads need Java 21 or later. Using platform threads.");
+            mode = ExecutionMode.PLATFORM;
+        }
+        ExecutionMode.select(mode);
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // Silence per-connection logging
+
+        Broker broker = new Broker(0);
+        ServerSocket serverSocket = new ServerSocket(0, connections);
+        Thread acceptor = new Thread(() -> {
+            try {
+                broker.acceptConnections(serverSocket, ExecutionMode.current().newConnectionExecutor());
+            } catch (IOException e) {
+                // server socket closed
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        long rssBefore = residentSetKb();
+        long heapBefore = usedHeapKb();
+
+        List<Socket> clients = new ArrayList<>(connections);
+        long begin = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            Socket socket = new Socket("localhost", serverSocket.getLocalPort());
+            socket.getOutputStream().write(("{\"user type\":\"subscriber\",\"user name\":\"sub" + i + "\"}\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            clients.add(socket);
+        }
+        while (subscriberConnections(broker) < connections) {
+            Thread.sleep(1);
+        }
+        double seconds = (System.nanoTime() - begin) / 1_000_000_000.0;
+
+        long rssAfter = residentSetKb();
+        long heapAfter = usedHeapKb();
+
+        int liveThreads = Thread.activeCount();
+
+        console.println("mode:                    " + mode.name().toLowerCase());
+        console.println("connections:             " + connections);
+        console.printf("accept rate:             %.0f connections/sec%n", connections / seconds);
+        if (rssBefore >= 0 && rssAfter >= 0) {
+            console.printf("resident memory/conn:    %.1f KB%n", (rssAfter - rssBefore) / (double) connections);
+        } else {
+            console.println("resident memory/conn:    n/a");
+        }
+        console.printf("heap/conn:               %.1f KB%n", (heapAfter - heapBefore) / (double) connections);
+        console.println("live platform threads:   " + liveThreads);
+
+        for (Socket socket : clients) {
+            socket.close();
+        }
+        serverSocket.close();
+        System.exit(0);
+    }
+
+    private static long subscriberConnections(Broker broker) {
+        Object detail = broker.getStats().get("detail");
+        return ((Number) ((Map<?, ?>) detail).get("subscriber connections")).longValue();
+    }
+
+    private static long usedHeapKb() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return (runtime.totalMemory() - runtime.freeMemory()) / 1024;
+    }
+
+    /**
+     * Reads the resident set size of this process on Linux.
+     *
+     * @return the resident set size in KB, or -1 if it is not available
+     */
+    private static long residentSetKb() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not available on this platform
+        }
+        return -1;
+    }
+}
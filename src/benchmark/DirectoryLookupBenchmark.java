@@ -0,0 +1,114 @@
+package benchmark;
+
+import directory.DirectoryService;
+import org.json.simple.JSONObject;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how many broker lookups a DirectoryService answers per second as
+ * the number of concurrent lookup threads grows, as during a mass restart of
+ * clients.
+ * "encoded" is the lookup path of the directory: a broker is picked from the
+ * current snapshot and its pre-encoded response is returned without a lock.
+ * "rebuilt" reproduces the previous path for comparison: the broker list is
+ * turned into JSON objects and encoded again for every lookup, while holding
+ * the service's monitor.
+ * The lookups are made in-process so that socket costs do not hide the
+ * difference.
+ */
+public class DirectoryLookupBenchmark {
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args Optional: number of registered brokers (default 16), maximum
+     *             number of lookup threads (default 8) and measurement time per
+     *             step in milliseconds (default 2000).
+     */
+    public static void main(String[] args) throws Exception {
+        int brokers = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        long durationMillis = args.length > 2 ? Long.parseLong(args[2]) : 2000;
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // Silence directory logging
+
+        DirectoryService service = new DirectoryService();
+        for (int b = 0; b < brokers; b++) {
+            service.registerBroker("10.0.0." + (b + 1), Integer.toString(8000 + b), new Object());
+        }
+
+        console.println("threads  encoded lookups/sec  rebuilt lookups/sec");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            // Warm up before measuring
+            runLookups(service, threads, durationMillis / 4, true);
+            runLookups(service, threads, durationMillis / 4, false);
+
+            double encoded = runLookups(service, threads, durationMillis, true);
+            double rebuilt = runLookups(service, threads, durationMillis, false);
+            console.printf("%7d  %19.0f  %19.0f%n", threads, encoded, rebuilt);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Makes lookups from the given number of threads for a fixed duration.
+     *
+     * @param encoded Whether to use the pre-encoded responses or rebuild each response.
+     * @return The number of lookups answered per second.
+     */
+    private static double runLookups(DirectoryService service, int threads, long durationMillis, boolean encoded)
+            throws InterruptedException {
+        LongAdder lookups = new LongAdder();
+        LongAdder bytes = new LongAdder(); // Keeps the responses from being optimized away
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long[] deadline = new long[1];
+
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    long count = 0;
+                    long length = 0;
+                    while (System.nanoTime() - deadline[0] < 0) {
+                        byte[] response = encoded ? service.lookupResponse() : rebuildResponse(service);
+                        length += response.length;
+                        count++;
+                    }
+                    lookups.add(count);
+                    bytes.add(length);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+            thread.start();
+        }
+
+        long begin = System.nanoTime();
+        deadline[0] = begin + durationMillis * 1_000_000L;
+        start.countDown();
+        done.await();
+        return lookups.sum() / ((System.nanoTime() - begin) / 1e9);
+    }
+
+    /**
+     * Builds and encodes a lookup response the way the directory did before
+     * the snapshots.
+     */
+    private static byte[] rebuildResponse(DirectoryService service) {
+        synchronized (service) {
+            JSONObject response = new JSONObject();
+            response.put("recommended", service.recommendBroker());
+            response.put("brokers", service.getBrokerList());
+            return (response.toJSONString() + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package benchmark;
+
+import broker.Broker;
+import broker.ExecutionMode;
+import org.json.simple.JSONObject;
+import protocol.MessageStream;
+import publisher.Publisher;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Compares lock-step publishing, where each publish waits for its
+ * acknowledgement, with pipelined publishing through
+ * {@link Publisher#publishAsync(String, String)}, where up to the publisher's
+ * in-flight limit of requests are outstanding at once.
+ * By default an in-process broker on a loopback port is used; pass the address
+ * of a remote broker to measure the effect of real network latency.
+ */
+public class PublishPipelineBenchmark {
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args Optional: number of messages per run (default 20000), and the
+     *             address of a broker as ip:port.
+     */
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // Silence broker logging
+
+        String host = "localhost";
+        int port;
+        if (args.length > 1) {
+            String[] address = args[1].split(":");
+            host = address[0];
+            port = Integer.parseInt(address[1]);
+        } else {
+            port = startBroker();
+        }
+
+        try (Socket socket = new Socket(host, port);
+                MessageStream stream = new MessageStream(socket)) {
+            Publisher publisher = new Publisher(stream);
+            publisher.sendUserInfo("pipeline-benchmark");
+            String topicId = Long.toString(System.nanoTime() % 1000000000L);
+            JSONObject create = new JSONObject();
+            create.put("command", "create");
+            create.put("topic id", topicId);
+            create.put("topic name", "benchmark");
+            publisher.sendAsync(create).get();
+
+            // Warm up before measuring
+            runLockStep(publisher, topicId, messages / 4);
+            runPipelined(publisher, topicId, messages / 4);
+
+            double lockStep = runLockStep(publisher, topicId, messages);
+            double pipelined = runPipelined(publisher, topicId, messages);
+            console.println("mode        publishes/sec");
+            console.printf("lock-step   %13.0f%n", lockStep);
+            console.printf("pipelined   %13.0f%n", pipelined);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Publishes the messages one at a time, waiting for each acknowledgement.
+     *
+     * @return The number of publishes per second.
+     */
+    private static double runLockStep(Publisher publisher, String topicId, int messages) throws Exception {
+        long begin = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            publisher.publishAsync(topicId, "message " + i).get();
+        }
+        return messages / ((System.nanoTime() - begin) / 1e9);
+    }
+
+    /**
+     * Publishes the messages without waiting, then waits for all acknowledgements.
+     *
+     * @return The number of publishes per second.
+     */
+    private static double runPipelined(Publisher publisher, String topicId, int messages) throws Exception {
+        List<CompletableFuture<JSONObject>> acks = new ArrayList<>(messages);
+        long begin = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            acks.add(publisher.publishAsync(topicId, "message " + i));
+        }
+        CompletableFuture.allOf(acks.toArray(new CompletableFuture<?>[0])).get();
+        return messages / ((System.nanoTime() - begin) / 1e9);
+    }
+
+    /**
+     * Starts an in-process broker on a free port.
+     *
+     * @return The port number of the broker.
+     */
+    private static int startBroker() throws IOException {
+        Broker broker = new Broker(0);
+        ServerSocket serverSocket = new ServerSocket(0);
+        Thread acceptor = new Thread(() -> {
+            try {
+                broker.acceptConnections(serverSocket, ExecutionMode.current().newConnectionExecutor());
+            } catch (IOException e) {
+                // server socket closed
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return serverSocket.getLocalPort();
+    }
+}
@@ -0,0 +1,147 @@
+package benchmark;
+
+import broker.Broker;
+import broker.WriteAheadLog;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Measures how long a broker takes to restore its topics and subscriptions on
+ * startup, from a write-ahead log holding the whole history and from a
+ * snapshot plus an empty log.
+ * Each history leaves the same live state behind: a fixed set of topics and
+ * subscriptions, followed by a growing number of topics that are created,
+ * subscribed to, unsubscribed from and deleted again. Replaying the full log
+ * grows with the history, while loading the snapshot depends only on the live
+ * state.
+ */
+public class RestartBenchmark {
+    private static final int SUBSCRIBERS_PER_TOPIC = 10;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args Optional: number of live topics (default 10000), followed by
+     *             the history lengths in records (default 100000 400000
+     *             1600000).
+     */
+    public static void main(String[] args) throws Exception {
+        int liveTopics = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        long[] histories = { 100000, 400000, 1600000 };
+        if (args.length > 1) {
+            histories = new long[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                histories[i - 1] = Long.parseLong(args[i]);
+            }
+        }
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // Silence broker logging
+
+        // Warm up before measuring
+        for (int i = 0; i < 3; i++) {
+            run(liveTopics, histories[0]);
+        }
+
+        console.println("records      log bytes   full replay ms   snapshot bytes   snapshot load ms");
+        for (long history : histories) {
+            double[] result = run(liveTopics, history);
+            console.printf("%-12d %9.0f   %14.0f   %14.0f   %16.0f%n", history, result[0], result[1], result[2],
+                    result[3]);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Restores a broker from a full log, takes a snapshot and restores it again.
+     *
+     * @return The log size, the full replay time in milliseconds, the snapshot
+     *         size and the snapshot load time in milliseconds.
+     */
+    private static double[] run(int liveTopics, long history) throws IOException {
+        Path directory = Files.createTempDirectory("restart-benchmark");
+        try {
+            Path logPath = directory.resolve("broker.wal");
+            writeHistory(logPath, liveTopics, history);
+            long logBytes = Files.size(logPath);
+
+            long begin = System.nanoTime();
+            Broker broker = new Broker(0);
+            broker.openWriteAheadLog(logPath);
+            double fullReplay = (System.nanoTime() - begin) / 1e6;
+
+            long snapshotBytes = broker.takeSnapshot();
+
+            begin = System.nanoTime();
+            new Broker(0).openWriteAheadLog(logPath);
+            double snapshotLoad = (System.nanoTime() - begin) / 1e6;
+            return new double[] { logBytes, fullReplay, snapshotBytes, snapshotLoad };
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    /**
+     * Writes a log with the given number of records that leaves the live topics
+     * and their subscriptions behind.
+     */
+    private static void writeHistory(Path logPath, int liveTopics, long history) throws IOException {
+        long records = 0;
+        try (WriteAheadLog log = WriteAheadLog.open(logPath, record -> {
+        })) {
+            for (int topic = 0; topic < liveTopics; topic++) {
+                log.append(create(Integer.toString(topic)));
+                records++;
+                for (int subscriber = 0; subscriber < SUBSCRIBERS_PER_TOPIC; subscriber++) {
+                    log.append(subscription("subscribe", "sub" + (topic + subscriber) % 1000,
+                            Integer.toString(topic)));
+                    records++;
+                }
+            }
+            for (int topic = liveTopics; records < history; topic++) {
+                String topicId = Integer.toString(topic);
+                String subscriber = "sub" + topic % 1000;
+                log.append(create(topicId));
+                log.append(subscription("subscribe", subscriber, topicId));
+                log.append(subscription("unsubscribe", subscriber, topicId));
+                JSONObject delete = new JSONObject();
+                delete.put("action", "delete");
+                delete.put("topic id", topicId);
+                log.append(delete);
+                records += 4;
+            }
+        }
+    }
+
+    private static JSONObject create(String topicId) {
+        JSONObject record = new JSONObject();
+        record.put("action", "create");
+        record.put("topic id", topicId);
+        record.put("topic name", "topic " + topicId);
+        record.put("publisher", "pub" + topicId.hashCode() % 100);
+        return record;
+    }
+
+    private static JSONObject subscription(String action, String subscriber, String topicId) {
+        JSONObject record = new JSONObject();
+        record.put("action", action);
+        record.put("subscriber", subscriber);
+        record.put("topic id", topicId);
+        return record;
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
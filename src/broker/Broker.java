@@ -3,6 +3,13 @@
 
 package broker;
 
+import protocol.BinaryCodec;
+import protocol.EncodedMessage;
+import protocol.MessageStream;
+import protocol.ThreadFactories;
+import protocol.TopicNames;
+import protocol.WireFormat;
+
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
@@ -16,7 +23,21 @@ import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 /**
  * Broker class that handles the communication between publishers, subscribers,
@@ -27,19 +48,80 @@ import java.util.*;
  * and message publishing.
  * Additionally, it synchronizes topic creation and deletion across connected
  * brokers.
+ * <p>
+ * All tables are concurrent maps and are read without locking. Changes to a
+ * topic are serialized by a striped lock chosen from the topic ID, so requests
+ * for unrelated topics proceed in parallel, and each connection is locked only
+ * while its own lines are written.
+ * <p>
+ * When a replication link to another broker is opened, the link first streams
+ * this broker's topics and subscriptions in chunks. The chunks are cut while
+ * every topic lock is held, right after the pending sync messages have been
+ * handed to the existing links, so the new peer receives every change made
+ * before the cut through the chunks and every later one through live sync.
+ * <p>
+ * Publishes are forwarded only to the peers whose subscribers follow the
+ * topic. Each broker advertises the topics of its own subscribers through
+ * {@link LocalInterest}, and each {@link PeerLink} filters by the interest of
+ * its peer.
+ * <p>
+ * With the '-wal' option every change to topics and subscriptions is appended
+ * to a {@link WriteAheadLog} under the topic lock, and replayed on startup.
+ * Requests from clients are answered only after their change is on disk.
+ * A {@link StateSnapshot} of the tables is written in the background at a
+ * fixed interval and the log is cut back to the changes made since, so a
+ * restart costs a snapshot load plus a short replay however long the broker
+ * has been running.
+ * <p>
+ * With the '-retain' option every published message is also appended to a
+ * memory-mapped {@link TopicLog} of its topic and gets an offset, and a
+ * subscriber can ask to receive the retained messages from a given offset
+ * before the live ones.
+ * <p>
+ * With the '-shard' option each topic is owned by one broker instead of being
+ * replicated everywhere. The owner is chosen on a consistent-hash ring of the
+ * linked brokers, and a {@link ShardRouter} sends each request to it. When a
+ * broker joins the ring, the topics it now owns are handed over to it. The
+ * other brokers keep only the topics followed by their own subscribers, and
+ * the owner's publishes and deletions reach those subscribers through
+ * {@link LocalInterest}.
  */
 public class Broker {
+    private static final int LOCK_STRIPES = 64; // Number of striped locks guarding topic updates
+    private static final int REPLAY_BATCH = 256; // Retained messages read from a topic log at a time
+    private static final long REPLAY_WRITE_TIMEOUT_MILLIS = 30000; // Time a replaying subscriber has to read a batch
+    private static final int DEFAULT_SNAPSHOT_INTERVAL = 60; // Seconds between snapshots with a write-ahead log
+    private static final int SNAPSHOT_CHUNK = 512; // Topics or subscribers per chunk sent to a joining peer
+    private static final long HANDOFF_TIMEOUT_SECONDS = 5; // Maximum wait for a new owner to take a hand-off chunk
+    private static final long LOAD_REPORT_INTERVAL_MILLIS = 2000; // Time between load reports to the directory
+
     private int portNumber; // Port number for the broker
     private String ipAddress; // IP Address for the broker
-    private HashMap<String, String> topicList = new HashMap<>(); // Maps topic IDs to topic titles
-    private HashMap<String, String> publisherTopic = new HashMap<>(); // Maps topic IDs to publisher names
-    private HashMap<String, HashSet<String>> subscriberTopic = new HashMap<>(); // Maps subscriber names to a set of
-                                                                                // topic IDs they are subscribed to
-    private HashMap<String, Socket> subscriberSockets = new HashMap<>(); // Maps subscriber names to their socket
-                                                                         // connections
-    private HashMap<String, Socket> publisherSockets = new HashMap<>(); // Maps publisher names to their socket
-                                                                        // connections
-    private List<Socket> connectedBrokerSockets = new ArrayList<>(); // List of connected broker sockets
+    private Map<String, String> topicList = new ConcurrentHashMap<>(); // Maps topic IDs to topic titles
+    private Map<String, String> publisherTopic = new ConcurrentHashMap<>(); // Maps topic IDs to publisher names
+    private Map<String, Set<String>> subscriberTopic = new ConcurrentHashMap<>(); // Maps subscriber names to a set of
+                                                                                  // topic IDs they are subscribed to
+    private Map<String, Set<String>> topicSubscribers = new ConcurrentHashMap<>(); // Maps topic IDs to the set of
+                                                                                   // subscribers following them
+    private final SubscriptionTrie wildcardSubscribers = new SubscriptionTrie(); // Filters with wildcards and
+                                                                                 // their subscribers
+    private Map<String, Connection> subscriberSockets = new ConcurrentHashMap<>(); // Maps subscriber names to their
+                                                                                   // connections
+    private Map<String, Connection> publisherSockets = new ConcurrentHashMap<>(); // Maps publisher names to their
+                                                                                  // connections
+    private List<PeerLink> connectedBrokerSockets = new CopyOnWriteArrayList<>(); // Replication links to the
+                                                                                  // connected brokers
+    private final Lock[] topicLocks = new Lock[LOCK_STRIPES]; // Striped locks for per-topic updates
+    private final Lock peerLock = new ReentrantLock(); // Guards connecting to and registering with other brokers
+    private final Lock snapshotLock = new ReentrantLock(); // Allows one snapshot at a time
+    private final Lock handOffLock = new ReentrantLock(); // Allows one topic hand-off at a time
+    private final SyncBatcher syncBatcher = new SyncBatcher(this.connectedBrokerSockets); // Batches sync traffic
+    private final LocalInterest localInterest = new LocalInterest(); // Topics of the subscribers connected here
+    private volatile WriteAheadLog writeAheadLog; // Log of topic and subscription changes, null when disabled
+    private volatile MessageStore messageStore; // Retained messages of each topic, null when disabled
+    private volatile ShardRouter shardRouter; // Owner of each topic, null unless topics are partitioned
+    private final LongAdder messagesDelivered = new LongAdder(); // Messages fanned out to local subscribers
+    private final LongAdder droppedBeforeDisconnect = new LongAdder(); // Messages dropped for subscribers since gone
 
     /**
      * Constructor for Broker class. Initializes the broker with the specified port
@@ -50,6 +132,10 @@ public class Broker {
      */
     public Broker(int portNumber) {
         this.portNumber = portNumber;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            this.topicLocks[i] = new ReentrantLock();
+        }
+        this.syncBatcher.start();
         try {
             this.ipAddress = InetAddress.getLocalHost().getHostAddress();
         } catch (UnknownHostException e) {
@@ -63,69 +149,321 @@ public class Broker {
      * brokers.
      * If "-d" is provided as a command-line argument, it will register with a
      * Directory Service.
+     * If "-nio" is provided, connections are served by a java.nio selector based
+     * server with a small pool of event loop threads instead of one thread per
+     * connection.
+     * If "-virtual" is provided, each connection is handled on a virtual thread
+     * instead of a platform thread.
+     * If "-wal" is provided, topics and subscriptions are restored from the given
+     * write-ahead log, and every later change is appended to it.
+     * If "-snapshot" is provided, it sets the number of seconds between
+     * snapshots of the write-ahead log state.
+     * If "-retain" is provided, published messages are retained in per-topic
+     * logs under the given directory.
+     * If "-shard" is provided, each topic is owned by a single broker instead of
+     * being replicated to all of them. Every broker of the network must use it.
      *
      * @param args Command-line arguments. The first argument is the port number.
      *             Optional: "-b" followed by IP:Port of other brokers.
      *             Optional: "-d" followed by Directory Service IP and port to
      *             register with the directory.
+     *             Optional: "-nio" optionally followed by the number of event
+     *             loop threads (default: number of processors).
+     *             Optional: "-virtual" to use virtual threads.
+     *             Optional: "-wal" followed by the path of the write-ahead log.
+     *             Optional: "-snapshot" followed by the snapshot interval in
+     *             seconds (default: 60).
+     *             Optional: "-retain" followed by the directory of the message
+     *             logs.
+     *             Optional: "-shard" to partition the topics between brokers.
      */
     public synchronized static void main(String[] args) {
         int portNumber = Integer.parseInt(args[0]);
+        String directoryAddress = null;
+        List<String> brokerAddresses = new ArrayList<>();
+        int nioThreads = 0;
+        Path walPath = null;
+        int snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+        Path retainPath = null;
+        boolean shard = false;
+
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "-d":
+                    directoryAddress = args[++i];
+                    break;
+                case "-b":
+                    while (i + 1 < args.length && !args[i + 1].startsWith("-")) {
+                        brokerAddresses.add(args[++i]);
+                    }
+                    break;
+                case "-virtual":
+                    if (ThreadFactories.virtualThreadsSupported()) {
+                        ExecutionMode.select(ExecutionMode.VIRTUAL);
+                    } else {
+                        System.out.println("Virtual threads need Java 21 or later. Using platform threads.");
+                    }
+                    break;
+                case "-wal":
+                    walPath = Paths.get(args[++i]);
+                    break;
+                case "-snapshot":
+                    snapshotInterval = Integer.parseInt(args[++i]);
+                    break;
+                case "-retain":
+                    retainPath = Paths.get(args[++i]);
+                    break;
+                case "-shard":
+                    shard = true;
+                    break;
+                case "-nio":
+                    nioThreads = Runtime.getRuntime().availableProcessors();
+                    if (i + 1 < args.length && args[i + 1].matches("\\d+")) {
+                        nioThreads = Integer.parseInt(args[++i]);
+                    }
+                    break;
+                default:
+                    System.out.println("Unknown option: " + args[i]);
+            }
+        }
+
         Broker broker = new Broker(portNumber);
+        if (shard) {
+            broker.enableSharding();
+        }
+        if (walPath != null) {
+            try {
+                broker.openWriteAheadLog(walPath);
+            } catch (IOException e) {
+                System.out.println("Failed to open the write-ahead log: " + e.getMessage());
+                return;
+            }
+            broker.startSnapshots(snapshotInterval * 1000L);
+        }
+        if (retainPath != null) {
+            try {
+                broker.messageStore = new MessageStore(retainPath);
+            } catch (IOException e) {
+                System.out.println("Failed to open the message store: " + e.getMessage());
+                return;
+            }
+        }
+
+        if (nioThreads > 0) {
+            try (ServerSocketChannel serverChannel = NioBrokerServer.open(portNumber)) {
+                System.out.println("Broker is listening on port " + portNumber + " (nio, " + nioThreads
+                        + " event loops)");
+                broker.joinNetwork(directoryAddress, brokerAddresses);
+                new NioBrokerServer(broker, nioThreads).serve(serverChannel);
+            } catch (IOException e) {
+                System.out.println("Failed to start broker server: " + e.getMessage());
+            }
+            return;
+        }
 
         try (ServerSocket serverSocket = new ServerSocket(portNumber)) {
             // Broker starts listening first
-            System.out.println("Broker is listening on port " + portNumber);
+            System.out.println("Broker is listening on port " + portNumber + " ("
+                    + ExecutionMode.current().name().toLowerCase() + " threads)");
+            broker.joinNetwork(directoryAddress, brokerAddresses);
+            broker.acceptConnections(serverSocket, ExecutionMode.current().newConnectionExecutor());
+        } catch (IOException e) {
+            System.out.println("Failed to start broker server: " + e.getMessage());
+        }
+    }
 
-            // If directory service information is provided, register the broker
-            if (args.length > 1 && args[1].equals("-d")) {
-                String[] directoryAddress = args[2].split(":");
-                String directoryIp = directoryAddress[0];
-                int directoryPort = Integer.parseInt(directoryAddress[1]);
-                broker.registerWithDirectory(directoryIp, directoryPort);
+    /**
+     * Restores topics and subscriptions from a write-ahead log and keeps
+     * appending every later change to it. Must be called before any connection
+     * is accepted.
+     *
+     * @param path The log file, created if it does not exist.
+     * @throws IOException If the log cannot be read or opened.
+     */
+    public void openWriteAheadLog(Path path) throws IOException {
+        Path snapshot = snapshotPath(path);
+        if (Files.exists(snapshot)) {
+            StateSnapshot.read(snapshot, this.topicList, this.publisherTopic, this.subscriberTopic);
+            for (Map.Entry<String, Set<String>> entry : this.subscriberTopic.entrySet()) {
+                for (String topicId : entry.getValue()) {
+                    indexSubscription(entry.getKey(), topicId);
+                }
             }
+            System.out.println("Loaded snapshot: " + this.topicList.size() + " topics, "
+                    + this.subscriberTopic.size() + " subscribers");
+        }
+        long[] records = new long[1];
+        WriteAheadLog log = WriteAheadLog.open(path, record -> {
+            applyLogRecord(record);
+            records[0]++;
+        });
+        this.writeAheadLog = log;
+        System.out.println("Recovered " + records[0] + " log records: " + this.topicList.size() + " topics, "
+                + this.subscriberTopic.size() + " subscribers");
+    }
 
-            // Connect to other brokers only after starting the server socket
-            if (args.length > 1 && args[1].equals("-b")) {
-                for (int i = 2; i < args.length; i++) {
-                    String[] brokerAddress = args[i].split(":");
-                    String brokerIp = brokerAddress[0];
-                    int brokerPort = Integer.parseInt(brokerAddress[1]);
-                    // Use a new thread to connect to other brokers asynchronously
-                    broker.connectToOtherBroker(brokerIp, brokerPort);
+    /**
+     * Writes a snapshot of the topics and subscriptions and cuts the write-ahead
+     * log back to the changes made while it was written. Requests keep being
+     * served meanwhile. Does nothing without a write-ahead log.
+     *
+     * @return The size of the snapshot in bytes, or 0 without a log.
+     * @throws IOException If the snapshot or the log cannot be written.
+     */
+    public long takeSnapshot() throws IOException {
+        WriteAheadLog log = this.writeAheadLog;
+        if (log == null) {
+            return 0;
+        }
+        this.snapshotLock.lock();
+        try {
+            log.rotate();
+            long size = StateSnapshot.write(snapshotPath(log.getPath()), this.topicList, this.publisherTopic,
+                    this.subscriberTopic);
+            log.discardRotated();
+            return size;
+        } finally {
+            this.snapshotLock.unlock();
+        }
+    }
 
+    /**
+     * Starts a background thread that takes a snapshot at the given interval,
+     * whenever the write-ahead log has grown since the previous one.
+     *
+     * @param intervalMillis The time between snapshots in milliseconds.
+     */
+    public void startSnapshots(long intervalMillis) {
+        ExecutionMode.PLATFORM.newThread("snapshotter", () -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                WriteAheadLog log = this.writeAheadLog;
+                if (log == null || log.getRecordsSinceRotation() == 0) {
+                    continue;
+                }
+                try {
+                    long begin = System.nanoTime();
+                    long size = takeSnapshot();
+                    System.out.println("Snapshot written: " + size + " bytes in "
+                            + (System.nanoTime() - begin) / 1000000 + " ms");
+                } catch (IOException e) {
+                    System.out.println("Failed to write a snapshot: " + e.getMessage());
                 }
             }
+        }).start();
+    }
 
-            // Accept incoming connections from clients (publishers, subscribers, or
-            // brokers)
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("Publisher, Subscriber, or Broker is connected");
-                ClientHandler clientHandler = new ClientHandler(clientSocket, broker);
-                clientHandler.start();
-            }
-        } catch (IOException e) {
-            System.out.println("Failed to start broker server: " + e.getMessage());
+    /**
+     * @return The snapshot file kept next to a write-ahead log.
+     */
+    private static Path snapshotPath(Path logPath) {
+        return logPath.resolveSibling(logPath.getFileName() + ".snapshot");
+    }
+
+    /**
+     * Partitions the topics between the brokers of the network from now on.
+     * Must be called before joining the network.
+     */
+    public void enableSharding() {
+        this.shardRouter = new ShardRouter(getBrokerId(), this.localInterest, this.connectedBrokerSockets);
+    }
+
+    /**
+     * @return The router of the requests when topics are partitioned, or null.
+     */
+    public ShardRouter getShardRouter() {
+        return this.shardRouter;
+    }
+
+    /**
+     * @return true if changes are written to a write-ahead log, so that requests
+     *         changing topics or subscriptions wait for the disk before they are
+     *         answered.
+     */
+    public boolean hasWriteAheadLog() {
+        return this.writeAheadLog != null;
+    }
+
+    /**
+     * @return The ID of this broker, as ip:port, which its peers use on the
+     *         topic ring.
+     */
+    public String getBrokerId() {
+        return this.ipAddress + ":" + this.portNumber;
+    }
+
+    /**
+     * Accepts incoming connections from clients (publishers, subscribers, or
+     * brokers) until the server socket is closed, running one ClientHandler per
+     * connection on the given executor.
+     *
+     * @param serverSocket The bound server socket.
+     * @param executor     The executor that runs the client handlers.
+     * @throws IOException If accepting a connection fails.
+     */
+    public void acceptConnections(ServerSocket serverSocket, ExecutorService executor) throws IOException {
+        while (!serverSocket.isClosed()) {
+            Socket clientSocket = serverSocket.accept();
+            System.out.println("Publisher, Subscriber, or Broker is connected");
+            executor.execute(new ClientHandler(clientSocket, this));
+        }
+    }
+
+    /**
+     * Registers with the Directory Service and/or connects to the given brokers.
+     * Called only after the server socket has been opened, so that other brokers
+     * can connect back.
+     *
+     * @param directoryAddress IP:Port of the Directory Service, or null.
+     * @param brokerAddresses  IP:Port of brokers to connect to directly.
+     * @throws IOException If connecting to one of the brokers fails.
+     */
+    private void joinNetwork(String directoryAddress, List<String> brokerAddresses) throws IOException {
+        // If directory service information is provided, register the broker
+        if (directoryAddress != null) {
+            String[] address = directoryAddress.split(":");
+            String directoryIp = address[0];
+            int directoryPort = Integer.parseInt(address[1]);
+            registerWithDirectory(directoryIp, directoryPort);
+        }
+
+        // Connect to other brokers only after starting the server socket
+        for (String brokerAddress : brokerAddresses) {
+            String[] address = brokerAddress.split(":");
+            String brokerIp = address[0];
+            int brokerPort = Integer.parseInt(address[1]);
+            connectToOtherBroker(brokerIp, brokerPort);
         }
     }
 
     /**
      * Registers this broker with the Directory Service.
-     * The broker sends its IP address and port number to the directory service.
+     * The broker sends its IP address and port number to the directory service,
+     * then keeps the connection open to report its load periodically. The
+     * reports are also the heartbeats that keep the broker listed. The
+     * directory pushes membership changes on the same connection, and the
+     * broker connects to every broker that joins.
      *
      * @param directoryIp   The IP address of the Directory Service.
      * @param directoryPort The port number of the Directory Service.
+     * @return true if the broker has been registered.
      */
-    public synchronized void registerWithDirectory(String directoryIp, int directoryPort) {
-        try (Socket socket = new Socket(directoryIp, directoryPort);
-                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                PrintWriter writer = new PrintWriter(socket.getOutputStream(), true)) {
+    public boolean registerWithDirectory(String directoryIp, int directoryPort) {
+        Socket socket = null;
+        try {
+            socket = new Socket(directoryIp, directoryPort);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
 
             JSONObject registerMessage = new JSONObject();
             registerMessage.put("user type", "broker");
             registerMessage.put("brokerIp", this.ipAddress);
             registerMessage.put("brokerPort", this.portNumber + "");
+            registerMessage.put("watch", true);
             writer.println(registerMessage.toJSONString());
             // Retrieve the list of other brokers from the directory service
             String response = reader.readLine();
@@ -148,8 +486,130 @@ public class Broker {
                     connectToOtherBroker(brokerIp, brokerPort);
                 }
             }
+            startLoadReports(socket, writer, directoryIp, directoryPort);
+            startMembershipWatch(socket, reader);
+            return true;
         } catch (IOException | ParseException e) {
             System.out.println("Failed to register with Directory Service.");
+            closeQuietly(socket);
+            return false;
+        }
+    }
+
+    /**
+     * Starts a background thread that reports the load of this broker to the
+     * Directory Service every LOAD_REPORT_INTERVAL_MILLIS. If the connection to
+     * the directory is lost, the broker registers again at the same interval
+     * until it succeeds.
+     *
+     * @param socket        The connection to the Directory Service.
+     * @param writer        The writer of the connection.
+     * @param directoryIp   The IP address of the Directory Service.
+     * @param directoryPort The port number of the Directory Service.
+     */
+    private void startLoadReports(Socket socket, PrintWriter writer, String directoryIp, int directoryPort) {
+        ExecutionMode.PLATFORM.newThread("load-reporter", () -> {
+            long lastDelivered = this.messagesDelivered.sum();
+            long lastNanos = System.nanoTime();
+            while (true) {
+                try {
+                    Thread.sleep(LOAD_REPORT_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                long delivered = this.messagesDelivered.sum();
+                long now = System.nanoTime();
+                long rate = (delivered - lastDelivered) * 1000000000L / Math.max(1, now - lastNanos);
+                lastDelivered = delivered;
+                lastNanos = now;
+                writer.println(loadReport(rate).toJSONString());
+                if (writer.checkError()) {
+                    System.out.println("Lost the connection to the Directory Service.");
+                    break;
+                }
+            }
+            closeQuietly(socket);
+            do {
+                try {
+                    Thread.sleep(LOAD_REPORT_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            } while (!registerWithDirectory(directoryIp, directoryPort)); // Starts a new reporter
+        }).start();
+    }
+
+    /**
+     * Starts a background thread that reads the membership changes pushed by
+     * the Directory Service and connects to each broker that joins. A broker
+     * that leaves is dropped when its replication link closes. When the
+     * directory closes the connection, the socket is closed so that the load
+     * reporter notices and registers again.
+     *
+     * @param socket The connection to the Directory Service.
+     * @param reader The reader of the connection, after the registration
+     *               response.
+     */
+    private void startMembershipWatch(Socket socket, BufferedReader reader) {
+        ExecutionMode.PLATFORM.newThread("directory-watch", () -> {
+            JSONParser parser = new JSONParser();
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    JSONObject change = (JSONObject) parser.parse(line);
+                    String brokerIp = (String) change.get("brokerIp");
+                    String brokerPort = (String) change.get("brokerPort");
+                    if ("left".equals(change.get("membership"))) {
+                        System.out.println("Broker " + brokerIp + ":" + brokerPort + " left the network");
+                        continue;
+                    }
+                    int port = Integer.parseInt(brokerPort);
+                    if (!"joined".equals(change.get("membership"))
+                            || (brokerIp.equals(this.ipAddress) && port == this.portNumber)) {
+                        continue;
+                    }
+                    try {
+                        connectToOtherBroker(brokerIp, port);
+                    } catch (IOException e) {
+                        System.out.println("Failed to connect to broker " + brokerIp + ":" + brokerPort);
+                    }
+                }
+            } catch (IOException | ParseException e) {
+                // The connection is closed below
+            }
+            closeQuietly(socket);
+        }).start();
+    }
+
+    /**
+     * Builds a load report for the Directory Service.
+     *
+     * @param publishRate The number of messages delivered per second recently.
+     * @return The report.
+     */
+    private JSONObject loadReport(long publishRate) {
+        long queueDepth = 0;
+        for (Connection connection : this.subscriberSockets.values()) {
+            queueDepth += connection.queueDepth();
+        }
+        JSONObject report = new JSONObject();
+        report.put("user type", "broker");
+        report.put("command", "load");
+        report.put("brokerIp", this.ipAddress);
+        report.put("brokerPort", this.portNumber + "");
+        report.put("connections", (long) (this.subscriberSockets.size() + this.publisherSockets.size()));
+        report.put("queue depth", queueDepth);
+        report.put("publish rate", publishRate);
+        return report;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
         }
     }
 
@@ -162,49 +622,272 @@ public class Broker {
      * @param brokerPort The port number of the broker to connect to.
      * @throws IOException If there is an error during the connection.
      */
-    public synchronized void connectToOtherBroker(String brokerIp, int brokerPort) throws IOException {
-        // Check if the broker is already connected
+    public void connectToOtherBroker(String brokerIp, int brokerPort) throws IOException {
+        this.peerLock.lock();
+        try {
+            // Check if the broker is already connected
+            for (PeerLink peer : connectedBrokerSockets) {
+                if (peer.getRemoteAddress().equals(brokerIp) && peer.getRemotePort() == brokerPort) {
+                    return; // Already connected
+                }
+            }
+
+            // Connect to the broker
+            Socket socket = new Socket(brokerIp, brokerPort);
+
+            // Send connection details before any sync message can use the connection,
+            // and switch to the binary format if the other broker supports it
+            JSONObject brokerInfo = new JSONObject();
+            brokerInfo.put("user type", "broker");
+            brokerInfo.put("port number", this.portNumber + "");
+            brokerInfo.put("ip address", this.ipAddress);
+            MessageStream stream = new MessageStream(socket);
+            WireFormat format = stream.handshake(brokerInfo, true);
+            SocketConnection brokerConnection = new SocketConnection(socket);
+            brokerConnection.setFormat(format);
+            lockAllTopics();
+            try {
+                // Changes synced before this point are part of the snapshot, later ones go through the link.
+                // Partitioned topics are not replicated; the new peer gets only those it owns, once it has
+                // identified itself.
+                this.syncBatcher.flush();
+                List<JSONObject> snapshot = this.shardRouter == null ? snapshotForPeer(topicId -> true)
+                        : Collections.emptyList();
+                PeerLink link = new PeerLink(brokerConnection, stream, snapshot, this::peerIdentified,
+                        this::peerClosed);
+                this.connectedBrokerSockets.add(link);
+                link.start();
+            } finally {
+                unlockAllTopics();
+            }
+            System.out.println("Connected to broker at " + brokerIp + ":" + brokerPort);
+        } finally {
+            this.peerLock.unlock();
+        }
+    }
+
+    /**
+     * Called when a peer link learns the broker ID of its peer. With
+     * partitioned topics the peer joins the ring, and the topics it now owns
+     * are handed over to it. The hand-off waits for the peer's answers, which
+     * arrive on the thread calling this method, so it runs on its own thread.
+     *
+     * @param peer The link to the peer.
+     */
+    private void peerIdentified(PeerLink peer) {
+        ShardRouter router = this.shardRouter;
+        if (router != null && router.rebuild()) {
+            ExecutionMode.current().newThread("handoff-" + peer.getName(), () -> handOffTopics(router)).start();
+        }
+    }
+
+    /**
+     * Called once when a peer link is closed. With partitioned topics the peer
+     * leaves the ring; its topics are not recovered.
+     *
+     * @param peer The link to the peer.
+     */
+    private void peerClosed(PeerLink peer) {
+        this.connectedBrokerSockets.remove(peer);
+        ShardRouter router = this.shardRouter;
+        if (router != null) {
+            router.rebuild();
+        }
+    }
+
+    /**
+     * Sends the topics that now belong to another broker to their owner as
+     * "snapshot" chunks, together with their subscriptions, and drops them
+     * here once the owner has taken them. The chunks are cut while every topic
+     * is locked and sent afterwards, one at a time: each one is forwarded to
+     * the owner like a client request, and the next one waits for its answer,
+     * so the hand-off never fills the link's queue. Topics the owner has not
+     * acknowledged are kept here. The local subscribers of a moved topic keep
+     * following it through {@link LocalInterest}. Retained messages are not
+     * moved.
+     *
+     * @param router The router holding the new ring.
+     */
+    private void handOffTopics(ShardRouter router) {
+        this.handOffLock.lock();
+        try {
+            Map<PeerLink, Set<String>> moved = new HashMap<>();
+            Map<PeerLink, List<JSONObject>> chunks = new HashMap<>();
+            lockAllTopics();
+            try {
+                for (String topicId : this.topicList.keySet()) {
+                    PeerLink owner = router.linkFor(topicId);
+                    if (owner != null) {
+                        moved.computeIfAbsent(owner, k -> new HashSet<>()).add(topicId);
+                    }
+                }
+                for (Map.Entry<PeerLink, Set<String>> entry : moved.entrySet()) {
+                    chunks.put(entry.getKey(), snapshotForPeer(entry.getValue()::contains));
+                }
+            } finally {
+                unlockAllTopics();
+            }
+
+            for (Map.Entry<PeerLink, Set<String>> entry : moved.entrySet()) {
+                PeerLink owner = entry.getKey();
+                Set<String> topicIds = entry.getValue();
+                if (!sendHandOff(owner, chunks.get(owner))) {
+                    System.out.println("Broker " + owner.getPeerId() + " did not take over " + topicIds.size()
+                            + " topics. Keeping them here.");
+                    continue;
+                }
+                for (String topicId : topicIds) {
+                    Lock topicLock = lockFor(topicId);
+                    topicLock.lock();
+                    try {
+                        if (router.linkFor(topicId) == owner && this.topicList.remove(topicId) != null) {
+                            dropHandedOffTopic(topicId);
+                        }
+                    } finally {
+                        topicLock.unlock();
+                    }
+                }
+                System.out.println("Handed " + topicIds.size() + " topics over to broker " + owner.getPeerId());
+            }
+        } finally {
+            this.handOffLock.unlock();
+        }
+    }
 
-        for (Socket socket : connectedBrokerSockets) {
-            if (socket.getInetAddress().getHostAddress().equals(brokerIp) && socket.getPort() == brokerPort) {
-                return; // Already connected
+    /**
+     * Sends hand-off chunks to their new owner, each after the previous one has
+     * been applied there.
+     *
+     * @param owner  The link to the new owner.
+     * @param chunks The "snapshot" chunks of the moved topics.
+     * @return true if the owner has applied every chunk.
+     */
+    private boolean sendHandOff(PeerLink owner, List<JSONObject> chunks) {
+        for (JSONObject chunk : chunks) {
+            try {
+                owner.forward(chunk, getBrokerId()).get(HANDOFF_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException | TimeoutException e) {
+                return false;
             }
         }
+        return true;
+    }
 
-        // Connect to the broker
-        Socket brokerSocket = new Socket(brokerIp, brokerPort);
-        this.connectedBrokerSockets.add(brokerSocket);
+    /**
+     * Removes the rest of the state of a topic handed over to its new owner.
+     * The caller holds the topic's lock and has removed it from topicList.
+     *
+     * @param topicId The ID of the topic.
+     */
+    private void dropHandedOffTopic(String topicId) {
+        this.publisherTopic.remove(topicId);
+        Set<String> subscribers = this.topicSubscribers.remove(topicId);
+        if (subscribers != null) {
+            for (String subscriber : subscribers) {
+                Set<String> topics = this.subscriberTopic.get(subscriber);
+                if (topics != null) {
+                    topics.remove(topicId);
+                }
+            }
+        }
+        logDeleteTopic(topicId);
+    }
 
-        // Send connection details to the connected broker
-        JSONObject brokerInfo = new JSONObject();
-        brokerInfo.put("user type", "broker");
-        brokerInfo.put("port number", this.portNumber + "");
-        brokerInfo.put("ip address", this.ipAddress);
-        PrintWriter writer = new PrintWriter(brokerSocket.getOutputStream(), true);
-        writer.println(brokerInfo.toJSONString());
-        System.out.println("Connected to broker at " + brokerIp + ":" + brokerPort);
+    /**
+     * Adds a subscriber's connection to the subscriberSockets map.
+     * This is used to track which connection is associated with which subscriber.
+     * Messages for the subscriber are delivered through the connection's
+     * outbound queue.
+     *
+     * @param subscriberName The name of the subscriber.
+     * @param connection     The connection for the subscriber.
+     */
+    public void addSubscriberSocket(String subscriberName, Connection connection) {
+        this.subscriberSockets.put(subscriberName, connection);
+        Set<String> topics = this.subscriberTopic.get(subscriberName);
+        if (topics != null) {
+            for (String topicId : topics) {
+                this.localInterest.add(topicId, subscriberName); // Subscriptions restored from the log
+            }
+        }
     }
 
     /**
-     * Adds a subscriber's socket to the subscriberSockets map.
-     * This is used to track which socket is associated with which subscriber.
+     * Removes a subscriber's connection from the subscriberSockets map.
+     * Called when the subscriber disconnects.
      *
      * @param subscriberName The name of the subscriber.
-     * @param socket         The socket connection for the subscriber.
+     * @param connection     The connection that was closed.
+     */
+    public void removeSubscriberSocket(String subscriberName, Connection connection) {
+        if (this.subscriberSockets.remove(subscriberName, connection)) {
+            this.droppedBeforeDisconnect.add(connection.droppedCount());
+            if (this.shardRouter != null) {
+                // Topics owned by other brokers are recorded only in the local interest
+                this.localInterest.removeSubscriber(subscriberName);
+                return;
+            }
+            Set<String> topics = this.subscriberTopic.get(subscriberName);
+            if (topics != null) {
+                for (String topicId : topics) {
+                    this.localInterest.remove(topicId, subscriberName);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param subscriberName The name of a subscriber.
+     * @param connection     A connection of that subscriber.
+     * @return true if the connection is the one the subscriber currently uses on
+     *         this broker, false if it has reconnected since.
+     */
+    public boolean isSubscriberConnection(String subscriberName, Connection connection) {
+        return this.subscriberSockets.get(subscriberName) == connection;
+    }
+
+    /**
+     * Starts advertising the topics followed by the local subscribers to a peer
+     * broker that has connected to this broker.
+     *
+     * @param connection The connection the peer replicates to this broker on.
+     */
+    public void addInterestListener(Connection connection) {
+        this.localInterest.addListener(connection);
+    }
+
+    /**
+     * Stops advertising to a peer broker that has disconnected.
+     *
+     * @param connection The connection of the peer.
+     */
+    public void removeInterestListener(Connection connection) {
+        this.localInterest.removeListener(connection);
+    }
+
+    /**
+     * Adds a publisher's connection to the publisherSockets map.
+     * This is used to track which connection is associated with which publisher.
+     *
+     * @param publisherName The name of the publisher.
+     * @param connection    The connection for the publisher.
      */
-    public synchronized void addSubscriberSocket(String subscriberName, Socket socket) {
-        this.subscriberSockets.put(subscriberName, socket);
+    public void addPublisherSocket(String publisherName, Connection connection) {
+        this.publisherSockets.put(publisherName, connection);
     }
 
     /**
-     * Adds a publisher's socket to the publisherSockets map.
-     * This is used to track which socket is associated with which publisher.
+     * Removes a publisher's connection from the publisherSockets map.
+     * Called when the publisher disconnects.
      *
      * @param publisherName The name of the publisher.
-     * @param socket        The socket connection for the publisher.
+     * @param connection    The connection that was closed.
      */
-    public synchronized void addPublisherSocket(String publisherName, Socket socket) {
-        this.publisherSockets.put(publisherName, socket);
+    public void removePublisherSocket(String publisherName, Connection connection) {
+        this.publisherSockets.remove(publisherName, connection);
     }
 
     /**
@@ -219,18 +902,32 @@ public class Broker {
      * @param publisher The name of the publisher creating the topic.
      * @return A JSONObject containing the result of the topic creation.
      */
-    public synchronized JSONObject createTopic(String topicId, String topicName, String publisher) {
+    public JSONObject createTopic(String topicId, String topicName, String publisher) {
         JSONObject jsonObject = new JSONObject();
-        if (this.topicList.containsKey(topicId)) {
-            jsonObject.put("result", "failed");
-            jsonObject.put("detail", "Topic ID already exists.. use another one");
-        } else {
-            this.topicList.put(topicId, topicName);
+        long logged;
+        Lock topicLock = lockFor(topicId);
+        topicLock.lock();
+        try {
+            if (!TopicNames.isValidTopic(topicId)) {
+                jsonObject.put("result", "failed");
+                jsonObject.put("detail", "Topic ID must be levels separated by '/', without '+' or '#'");
+                return jsonObject;
+            }
+            if (this.topicList.containsKey(topicId)) {
+                jsonObject.put("result", "failed");
+                jsonObject.put("detail", "Topic ID already exists.. use another one");
+                return jsonObject;
+            }
             this.publisherTopic.put(topicId, publisher);
+            this.topicList.put(topicId, topicName);
+            logged = logCreateTopic(topicId, topicName, publisher);
             this.syncCreateTopicWithOtherBrokers(topicId, topicName, publisher);
-            jsonObject.put("result", "success");
-            jsonObject.put("detail", "Topic created successfully.");
+        } finally {
+            topicLock.unlock();
         }
+        awaitLogged(logged);
+        jsonObject.put("result", "success");
+        jsonObject.put("detail", "Topic created successfully.");
         return jsonObject;
     }
 
@@ -244,7 +941,10 @@ public class Broker {
      * @param topicName The name of the topic.
      * @param publisher The name of the publisher who created the topic.
      */
-    private synchronized void syncCreateTopicWithOtherBrokers(String topicId, String topicName, String publisher) {
+    private void syncCreateTopicWithOtherBrokers(String topicId, String topicName, String publisher) {
+        if (this.shardRouter != null) {
+            return; // Only the owner keeps the topic
+        }
         JSONObject syncMessage = new JSONObject();
         syncMessage.put("command", "sync");
         syncMessage.put("syncAction", "create");
@@ -267,7 +967,7 @@ public class Broker {
      * @return A JSONObject containing the result and details of the subscriber
      *         counts.
      */
-    public synchronized JSONObject countSubscribers(String publisher) {
+    public JSONObject countSubscribers(String publisher) {
         JSONObject response = new JSONObject();
         JSONArray subscribedCountArray = new JSONArray();
         boolean isExistTopic = false;
@@ -281,13 +981,16 @@ public class Broker {
             }
             if (entry.getValue().equals(publisher)) {
                 String topicId = entry.getKey();
-                int subscriberCount = 0;
-
-                // Count how many subscribers are subscribed to this topic
-                for (HashSet<String> subscribedTopics : this.subscriberTopic.values()) {
-                    if (subscribedTopics.contains(topicId)) {
-                        subscriberCount++;
+                Set<String> followers = this.topicSubscribers.get(topicId);
+                Set<String> matched = this.wildcardSubscribers.match(topicId);
+                int subscriberCount;
+                if (matched.isEmpty()) {
+                    subscriberCount = followers == null ? 0 : followers.size();
+                } else {
+                    if (followers != null) {
+                        matched.addAll(followers);
                     }
+                    subscriberCount = matched.size();
                 }
 
                 // Create a JSON object for the topic info
@@ -322,37 +1025,47 @@ public class Broker {
      *                                deletion.
      * @return A JSONObject containing the result of the deletion operation.
      */
-    public synchronized JSONObject deleteTopic(String topicId, String requestingPublisherName) {
+    public JSONObject deleteTopic(String topicId, String requestingPublisherName) {
         JSONObject response = new JSONObject(); // Initialize response object
+        String title;
+        String publisher;
+        Set<String> subscribers;
+        long logged;
 
-        // Check if the topic exists and if the requesting publisher is the original
-        // publisher
-        if (!this.topicList.containsKey(topicId) || !this.publisherTopic.containsKey(topicId)
-                || !this.publisherTopic.get(topicId).equals(requestingPublisherName)) {
-            response.put("result", "failed");
-            response.put("detail", "you do not have this topic id.");
-            return response;
-        }
+        Lock topicLock = lockFor(topicId);
+        topicLock.lock();
+        try {
+            // Check if the topic exists and if the requesting publisher is the original
+            // publisher
+            if (!this.topicList.containsKey(topicId) || !this.publisherTopic.containsKey(topicId)
+                    || !this.publisherTopic.get(topicId).equals(requestingPublisherName)) {
+                response.put("result", "failed");
+                response.put("detail", "you do not have this topic id.");
+                return response;
+            }
 
-        String title = this.topicList.get(topicId); // Get the topic name
-        String publisher = this.publisherTopic.get(topicId); // Get the publisher name
+            title = this.topicList.get(topicId); // Get the topic name
+            publisher = this.publisherTopic.get(topicId); // Get the publisher name
 
-        // Remove the topic from the broker
-        this.topicList.remove(topicId);
-        this.publisherTopic.remove(topicId);
+            // Remove the topic from the broker and from its subscribers
+            this.topicList.remove(topicId);
+            this.publisherTopic.remove(topicId);
+            subscribers = removeTopicSubscriptions(topicId);
+            logged = logDeleteTopic(topicId);
 
-        // Remove the topic from subscribers and notify them
-        for (Map.Entry<String, HashSet<String>> entry : this.subscriberTopic.entrySet()) {
-            HashSet<String> subscribedTopics = entry.getValue();
-            if (subscribedTopics.contains(topicId)) {
-                String subscriber = entry.getKey();
-                subscribedTopics.remove(topicId); // Remove from subscription list
-                notifySubscriber(topicId, subscriber, title, publisher); // Notify subscriber
-            }
+            // Synchronize the deletion with other brokers
+            syncDeleteTopicWithOtherBrokers(topicId, title, publisher);
+        } finally {
+            topicLock.unlock();
+        }
+        awaitLogged(logged);
+        deleteRetainedMessages(topicId);
+
+        // Notify the former subscribers outside of the topic lock
+        for (String subscriber : subscribers) {
+            notifySubscriber(topicId, subscriber, title, publisher); // Notify subscriber
         }
 
-        // Synchronize the deletion with other brokers
-        syncDeleteTopicWithOtherBrokers(topicId, publisher);
         response.put("result", "success");
         response.put("detail", "id: " + topicId + " has successfully been deleted.");
         return response;
@@ -366,38 +1079,37 @@ public class Broker {
      * @param title      The title of the deleted topic.
      * @param publisher  The name of the publisher who created the topic.
      */
-    public synchronized void notifySubscriber(String topicId, String subscriber, String title, String publisher) {
-        Socket subscriberSocket = subscriberSockets.get(subscriber);
+    public void notifySubscriber(String topicId, String subscriber, String title, String publisher) {
+        Connection connection = subscriberSockets.get(subscriber);
         JSONArray deletedTopics = new JSONArray();
-        if (subscriberSocket != null) {
-            try {
-                JSONObject message = new JSONObject();
-                message.put("message type", "deleteNotify");
-                JSONObject topicInfo = new JSONObject();
-                topicInfo.put("topic id", topicId);
-                topicInfo.put("title", title);
-                topicInfo.put("publisher", publisher);
-                deletedTopics.add(topicInfo);
-                message.put("deleted topic", deletedTopics);
-                PrintWriter writer = new PrintWriter(subscriberSocket.getOutputStream(), true);
-                writer.println(message.toJSONString());
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (connection != null) {
+            JSONObject message = new JSONObject();
+            message.put("message type", "deleteNotify");
+            JSONObject topicInfo = new JSONObject();
+            topicInfo.put("topic id", topicId);
+            topicInfo.put("title", title);
+            topicInfo.put("publisher", publisher);
+            deletedTopics.add(topicInfo);
+            message.put("deleted topic", deletedTopics);
+            connection.offer(new EncodedMessage(message));
         }
     }
 
     /**
      * Synchronizes the deletion of a topic with other brokers in the network.
+     * The title lets brokers that do not own the topic notify their
+     * subscribers.
      *
      * @param topicId   The ID of the deleted topic.
+     * @param title     The title of the deleted topic.
      * @param publisher The name of the publisher who created the topic.
      */
-    private synchronized void syncDeleteTopicWithOtherBrokers(String topicId, String publisher) {
+    private void syncDeleteTopicWithOtherBrokers(String topicId, String title, String publisher) {
         JSONObject syncMessage = new JSONObject();
         syncMessage.put("command", "sync");
         syncMessage.put("syncAction", "delete");
         syncMessage.put("topic id", topicId);
+        syncMessage.put("topic name", title);
         syncMessage.put("publisher", publisher);
 
         // Send the sync message to other brokers
@@ -410,7 +1122,7 @@ public class Broker {
      *
      * @param publisher The name of the publisher whose topics should be deleted.
      */
-    public synchronized void deleteAllTopicByPublisher(String publisher) {
+    public void deleteAllTopicByPublisher(String publisher) {
         ArrayList<String> idToRemove = new ArrayList<>();
 
         // Collect all topic IDs to remove
@@ -420,37 +1132,8 @@ public class Broker {
             }
         }
 
-        // Notify subscribers of the deleted topics
-        for (HashMap.Entry<String, HashSet<String>> entry : subscriberTopic.entrySet()) {
-            JSONObject message = new JSONObject();
-            JSONArray jsonArray = new JSONArray();
-            String subscriber = "";
-            message.put("message type", "deleteNotify");
-
-            for (String topicId : idToRemove) {
-                if (entry.getValue().contains(topicId)) {
-                    String title = this.topicList.get(topicId);
-                    subscriber = entry.getKey();
-                    JSONObject topicInfo = new JSONObject();
-                    topicInfo.put("topic id", topicId);
-                    topicInfo.put("title", title);
-                    topicInfo.put("publisher", publisher);
-                    jsonArray.add(topicInfo);
-                    subscriberTopic.get(subscriber).remove(topicId);
-                }
-            }
-
-            message.put("deleted topic", jsonArray);
-            if (!subscriber.isEmpty()) {
-                notifySubscriber(message, subscriber);
-            }
-        }
-
-        // Remove the topics from the topic list
-        for (String topicId : idToRemove) {
-            this.topicList.remove(topicId);
-            this.publisherTopic.remove(topicId);
-        }
+        // Remove the topics and notify their subscribers
+        removeTopicsAndNotify(publisher, idToRemove);
 
         // Synchronize the deletion with other brokers
         syncDeleteAllTopicsByPublisherWithOtherBrokers(publisher, idToRemove);
@@ -462,35 +1145,80 @@ public class Broker {
      * @param message    The message containing topic title and publisher name.
      * @param subscriber The name of the subscriber to notify.
      */
-    private synchronized void notifySubscriber(JSONObject message, String subscriber) {
-        Socket subscriberSocket = subscriberSockets.get(subscriber);
+    private void notifySubscriber(JSONObject message, String subscriber) {
+        Connection connection = subscriberSockets.get(subscriber);
 
-        // Check if the subscriber's socket exists
-        if (subscriberSocket != null) {
-            try {
-                // Send the message to the subscriber
-                PrintWriter writer = new PrintWriter(subscriberSocket.getOutputStream(), true);
-                writer.println(message.toJSONString());
-            } catch (IOException e) {
-                // Handle potential I/O errors during message sending
-                e.printStackTrace();
-            }
+        // Check if the subscriber is connected
+        if (connection != null) {
+            // Queue the message on the subscriber's outbound queue
+            connection.offer(new EncodedMessage(message));
         }
     }
 
     /**
-     * Synchronizes the deletion of all topics by a specific publisher with other
-     * brokers.
+     * Removes the given topics of a publisher, drops them from every subscription
+     * and sends each affected subscriber a single deleteNotify message listing the
+     * topics it lost. Only the followers recorded in topicSubscribers are visited.
      *
      * @param publisher  The name of the publisher whose topics have been deleted.
-     * @param idToRemove A list of topic IDs that were deleted.
+     * @param idToRemove A list of topic IDs that are being deleted.
      */
-    private synchronized void syncDeleteAllTopicsByPublisherWithOtherBrokers(String publisher,
+    private void removeTopicsAndNotify(String publisher, List<String> idToRemove) {
+        LinkedHashMap<String, JSONArray> deletedBySubscriber = new LinkedHashMap<>();
+
+        for (String topicId : idToRemove) {
+            String title;
+            Set<String> subscribers;
+            Lock topicLock = lockFor(topicId);
+            topicLock.lock();
+            try {
+                if (!publisher.equals(this.publisherTopic.get(topicId))) {
+                    continue; // Already deleted or recreated by someone else
+                }
+                title = this.topicList.remove(topicId);
+                this.publisherTopic.remove(topicId);
+                subscribers = removeTopicSubscriptions(topicId);
+                logDeleteTopic(topicId);
+                if (this.shardRouter != null) {
+                    // The subscribers of other brokers are known only there
+                    syncDeleteTopicWithOtherBrokers(topicId, title, publisher);
+                }
+            } finally {
+                topicLock.unlock();
+            }
+            deleteRetainedMessages(topicId);
+            for (String subscriber : subscribers) {
+                JSONObject topicInfo = new JSONObject();
+                topicInfo.put("topic id", topicId);
+                topicInfo.put("title", title);
+                topicInfo.put("publisher", publisher);
+                deletedBySubscriber.computeIfAbsent(subscriber, k -> new JSONArray()).add(topicInfo);
+            }
+        }
+
+        for (Map.Entry<String, JSONArray> entry : deletedBySubscriber.entrySet()) {
+            JSONObject message = new JSONObject();
+            message.put("message type", "deleteNotify");
+            message.put("deleted topic", entry.getValue());
+            notifySubscriber(message, entry.getKey());
+        }
+    }
+
+    /**
+     * Synchronizes the deletion of all topics by a specific publisher with other
+     * brokers.
+     *
+     * @param publisher  The name of the publisher whose topics have been deleted.
+     * @param idToRemove A list of topic IDs that were deleted, sent only when
+     *                   topics are replicated.
+     */
+    private void syncDeleteAllTopicsByPublisherWithOtherBrokers(String publisher,
             ArrayList<String> idToRemove) {
         JSONObject syncMessage = new JSONObject();
         syncMessage.put("command", "sync");
         syncMessage.put("syncAction", "deleteAllTopicsByPublisher");
-        syncMessage.put("deleted topics", idToRemove);
+        // With partitioned topics each owner looks up the publisher's topics itself
+        syncMessage.put("deleted topics", this.shardRouter == null ? idToRemove : null);
         syncMessage.put("publisher", publisher);
 
         // Send the sync message to other brokers
@@ -507,69 +1235,203 @@ public class Broker {
      * @param publisher The name of the publisher sending the message.
      * @return A JSONObject containing the result of the publishing operation.
      */
-    public synchronized JSONObject publishMessage(String topicId, String message, String publisher) {
+    public JSONObject publishMessage(String topicId, String message, String publisher) {
         JSONObject response = new JSONObject();
-        if (!this.publisherTopic.containsKey(topicId) || !this.publisherTopic.get(topicId).equals(publisher)) {
+        if (!deliverToSubscribers(topicId, message, publisher)) {
             response.put("result", "failed");
             response.put("detail", "you don't have this topic id");
             return response;
         }
 
-        ArrayList<String> subscribers = new ArrayList<>();
-        String title = this.topicList.get(topicId);
+        // Synchronize the message with other brokers
+        syncPublishMessageWithOtherBrokers(topicId, message, publisher);
+        response.put("result", "success");
+        response.put("detail", "message has been published!");
+        return response;
+    }
 
-        // Find all subscribers to the topic
-        for (HashMap.Entry<String, HashSet<String>> entry : this.subscriberTopic.entrySet()) {
-            String subscriber = entry.getKey();
-            HashSet<String> idSet = entry.getValue();
-            if (idSet.contains(topicId)) {
-                subscribers.add(subscriber);
-            }
+    /**
+     * Publishes a batch of messages in one pass. Each entry is delivered to the
+     * subscribers of its topic exactly as by {@link #publishMessage}, and all
+     * accepted entries are forwarded to the other brokers in a single sync
+     * message.
+     *
+     * @param messages  The entries to publish, each with a "topic id" and a
+     *                  "message".
+     * @param publisher The name of the publisher sending the messages.
+     * @return A JSONObject with the number of published messages and the topic
+     *         IDs of the rejected entries.
+     */
+    public JSONObject publishBatch(JSONArray messages, String publisher) {
+        JSONObject response = new JSONObject();
+        if (messages == null || messages.isEmpty()) {
+            response.put("result", "failed");
+            response.put("detail", "the batch is empty");
+            return response;
         }
 
-        // Send the message to all subscribers
-        if (!subscribers.isEmpty()) {
-            for (String subscriber : subscribers) {
-                sendMessageToSubscriber(subscriber, message, title, publisher, topicId);
+        JSONArray published = new JSONArray();
+        JSONArray failedTopics = new JSONArray();
+        for (Object item : messages) {
+            JSONObject entry = (JSONObject) item;
+            String topicId = (String) entry.get("topic id");
+            String message = (String) entry.get("message");
+            if (deliverToSubscribers(topicId, message, publisher)) {
+                JSONObject syncEntry = new JSONObject();
+                syncEntry.put("topic id", topicId);
+                syncEntry.put("message", message);
+                if (this.shardRouter != null) {
+                    syncEntry.put("topic name", this.topicList.get(topicId)); // Unknown to the other brokers
+                }
+                published.add(syncEntry);
+            } else {
+                failedTopics.add(topicId);
             }
         }
 
-        // Synchronize the message with other brokers
-        syncPublishMessageWithOtherBrokers(topicId, message, publisher);
-        response.put("result", "success");
-        response.put("detail", "message has been published!");
+        // Synchronize all published messages with other brokers at once
+        if (!published.isEmpty()) {
+            JSONObject syncMessage = new JSONObject();
+            syncMessage.put("command", "sync");
+            syncMessage.put("syncAction", "publishBatch");
+            syncMessage.put("messages", published);
+            syncMessage.put("publisher", publisher);
+            sendSyncMessageToOtherBrokers(syncMessage);
+        }
+
+        response.put("result", failedTopics.isEmpty() ? "success" : "failed");
+        response.put("detail", published.size() + " of " + messages.size() + " messages have been published!");
+        response.put("count", published.size() + "");
+        response.put("failed topics", failedTopics);
         return response;
     }
 
     /**
-     * Sends a message to a specific subscriber of a topic.
+     * Sends a message to all subscribers of a topic connected to this broker,
+     * after checking that the topic belongs to the publisher.
      *
-     * @param subscriber The name of the subscriber.
-     * @param message    The message to send.
-     * @param title      The title of the topic.
-     * @param publisher  The name of the publisher sending the message.
-     * @param topicId    The ID of the topic.
+     * @param topicId   The ID of the topic.
+     * @param message   The message to send.
+     * @param publisher The name of the publisher sending the message.
+     * @return true if the topic belongs to the publisher, false otherwise.
      */
-    private synchronized void sendMessageToSubscriber(String subscriber, String message, String title, String publisher,
-            String topicId) {
-        Socket subscriberSocket = subscriberSockets.get(subscriber);
-        if (subscriberSocket != null) {
+    private boolean deliverToSubscribers(String topicId, String message, String publisher) {
+        String owner = topicId == null ? null : this.publisherTopic.get(topicId);
+        if (owner == null || !owner.equals(publisher)) {
+            return false;
+        }
+
+        fanOut(topicId, message, publisher);
+        return true;
+    }
+
+    /**
+     * Sends a message to all subscribers of a topic connected to this broker.
+     * If messages are retained, the message is first appended to the topic's
+     * log, and the log stays locked until the message has been queued for every
+     * subscriber, so that subscribers catching up from the log never miss or
+     * repeat a message.
+     *
+     * @param topicId   The ID of the topic.
+     * @param message   The message to send.
+     * @param publisher The name of the publisher sending the message.
+     */
+    private void fanOut(String topicId, String message, String publisher) {
+        this.messagesDelivered.increment();
+        String title = this.topicList.get(topicId);
+        MessageStore store = this.messageStore;
+        TopicLog log = store == null ? null : store.get(topicId, () -> this.topicList.containsKey(topicId));
+        if (log == null) {
+            deliverBroadcast(topicId, encodeBroadcast(topicId, message, title, publisher));
+            return;
+        }
+
+        log.lock();
+        try {
+            JSONObject broadcast = broadcastMessage(topicId, message, title, publisher);
             try {
-                JSONObject jsonObject = new JSONObject();
-                jsonObject.put("message type", "broadcast");
-                jsonObject.put("publisher", publisher);
-                jsonObject.put("title", title);
-                jsonObject.put("topic id", topicId);
-                jsonObject.put("message", message);
-
-                PrintWriter writer = new PrintWriter(subscriberSocket.getOutputStream(), true);
-                writer.println(jsonObject.toJSONString());
+                log.append(broadcast);
             } catch (IOException e) {
-                e.printStackTrace();
+                System.out.println("Failed to retain a message of topic " + topicId + ": " + e.getMessage());
+            }
+            deliverBroadcast(topicId, new EncodedMessage(broadcast));
+        } finally {
+            log.unlock();
+        }
+    }
+
+    /**
+     * Queues a broadcast for every subscriber of a topic, and for every
+     * subscriber of a filter that matches it. A subscriber that follows both
+     * the topic and a matching filter receives the broadcast once.
+     *
+     * @param topicId   The ID of the topic.
+     * @param broadcast The broadcast shared by all recipients.
+     */
+    private void deliverBroadcast(String topicId, EncodedMessage broadcast) {
+        Set<String> subscribers = this.topicSubscribers.get(topicId);
+        Set<String> matched = this.wildcardSubscribers.match(topicId);
+        if (!matched.isEmpty()) {
+            if (subscribers != null) {
+                matched.addAll(subscribers);
+            }
+            subscribers = matched;
+        }
+        if (subscribers != null) {
+            for (String subscriber : subscribers) {
+                sendMessageToSubscriber(subscriber, broadcast);
             }
         }
     }
 
+    /**
+     * Encodes the broadcast sent to subscribers of a topic. The payload is the
+     * same for every recipient, so it is encoded at most once per wire format
+     * per publish.
+     *
+     * @param topicId   The ID of the topic.
+     * @param message   The message to send.
+     * @param title     The title of the topic.
+     * @param publisher The name of the publisher sending the message.
+     * @return The broadcast, shared by all recipients.
+     */
+    private EncodedMessage encodeBroadcast(String topicId, String message, String title, String publisher) {
+        return new EncodedMessage(broadcastMessage(topicId, message, title, publisher));
+    }
+
+    /**
+     * Builds the broadcast sent to subscribers of a topic.
+     *
+     * @param topicId   The ID of the topic.
+     * @param message   The message to send.
+     * @param title     The title of the topic.
+     * @param publisher The name of the publisher sending the message.
+     * @return The broadcast message.
+     */
+    private JSONObject broadcastMessage(String topicId, String message, String title, String publisher) {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("message type", "broadcast");
+        jsonObject.put("publisher", publisher);
+        jsonObject.put("title", title);
+        jsonObject.put("topic id", topicId);
+        jsonObject.put("message", message);
+        return jsonObject;
+    }
+
+    /**
+     * Queues an encoded broadcast for a specific subscriber of a topic. The
+     * subscriber's writer thread performs the actual socket write.
+     *
+     * @param subscriber The name of the subscriber.
+     * @param broadcast  The broadcast shared by all recipients.
+     */
+    private void sendMessageToSubscriber(String subscriber, EncodedMessage broadcast) {
+        Connection connection = subscriberSockets.get(subscriber);
+        if (connection != null) {
+            connection.offer(broadcast);
+        }
+    }
+
     /**
      * Synchronizes the publishing of a message with other brokers in the network.
      *
@@ -577,13 +1439,16 @@ public class Broker {
      * @param message   The message that was published.
      * @param publisher The name of the publisher who published the message.
      */
-    private synchronized void syncPublishMessageWithOtherBrokers(String topicId, String message, String publisher) {
+    private void syncPublishMessageWithOtherBrokers(String topicId, String message, String publisher) {
         JSONObject syncMessage = new JSONObject();
         syncMessage.put("command", "sync");
         syncMessage.put("syncAction", "publish");
         syncMessage.put("topic id", topicId);
         syncMessage.put("message", message);
         syncMessage.put("publisher", publisher);
+        if (this.shardRouter != null) {
+            syncMessage.put("topic name", this.topicList.get(topicId)); // Unknown to the other brokers
+        }
 
         // Send the sync message to other brokers
         sendSyncMessageToOtherBrokers(syncMessage);
@@ -595,7 +1460,7 @@ public class Broker {
      *
      * @return A JSONObject containing the result and the list of topics.
      */
-    public synchronized JSONObject listTopics() {
+    public JSONObject listTopics() {
         JSONObject response = new JSONObject();
         JSONArray topicArray = new JSONArray();
         boolean exist = false;
@@ -632,37 +1497,237 @@ public class Broker {
      * @param subscriber The name of the subscriber.
      * @return A JSONObject containing the result of the subscription operation.
      */
-    public synchronized JSONObject subscribe(String topicId, String subscriber) {
+    public JSONObject subscribe(String topicId, String subscriber) {
+        return subscribe(topicId, subscriber, null);
+    }
+
+    /**
+     * Subscribes a user to a specific topic, optionally replaying the retained
+     * messages of the topic first.
+     * With a numeric fromOffset, the retained messages from that offset on are
+     * sent to the subscriber in batches without holding any lock. A batch is
+     * sent only once the previous one has been written, so just a few batches
+     * are ever copied out of the log, and the caller must be allowed to block.
+     * When the subscriber has caught up with the end of the log, the
+     * subscription is added while the log is locked, so the first live message
+     * is the one right after the last replayed one.
+     *
+     * @param topicId    The ID of the topic to subscribe to.
+     * @param subscriber The name of the subscriber.
+     * @param fromOffset The first offset to receive, "latest" or null to receive
+     *                   only new messages.
+     * @return A JSONObject containing the result of the subscription operation.
+     */
+    public JSONObject subscribe(String topicId, String subscriber, String fromOffset) {
         JSONObject response = new JSONObject();
+        response.put("message type", "response");
+        MessageStore store = this.messageStore;
+        if (fromOffset == null || fromOffset.equals("latest") || store == null
+                || !this.topicList.containsKey(topicId) || isSubscribed(subscriber, topicId)) {
+            if (fromOffset != null && !fromOffset.equals("latest") && TopicNames.isWildcard(topicId)) {
+                response.put("result", "failed");
+                response.put("detail", "retained messages cannot be replayed for a topic filter");
+                return response;
+            }
+            if (fromOffset != null && !fromOffset.equals("latest") && store == null) {
+                response.put("result", "failed");
+                response.put("detail", "this broker does not retain messages");
+                return response;
+            }
+            return subscribeLatest(topicId, subscriber, response);
+        }
 
-        // Check if the subscriber is already subscribed to the topic
-        if (!this.subscriberTopic.containsKey(subscriber) || !this.subscriberTopic.get(subscriber).contains(topicId)) {
-            if (this.topicList.containsKey(topicId)) {
-                this.subscriberTopic.putIfAbsent(subscriber, new HashSet<>());
-                this.subscriberTopic.get(subscriber).add(topicId);
-                response.put("result", "success");
-                response.put("detail", "successfully subscribed to " + topicId);
-                syncSubscribeWithOtherBrokers(subscriber, topicId);
+        long next;
+        try {
+            next = Long.parseLong(fromOffset);
+        } catch (NumberFormatException e) {
+            response.put("result", "failed");
+            response.put("detail", "offset must be a number or \"latest\"");
+            return response;
+        }
+        TopicLog log = store.get(topicId, () -> this.topicList.containsKey(topicId));
+        Connection connection = this.subscriberSockets.get(subscriber);
+        if (log == null || connection == null) {
+            return subscribeLatest(topicId, subscriber, response);
+        }
+
+        long replayed = 0;
+        long logged = 0;
+        List<byte[]> frames = new ArrayList<>(REPLAY_BATCH);
+        while (true) {
+            next = log.read(next, REPLAY_BATCH, frames);
+            if (!frames.isEmpty()) {
+                try {
+                    sendRetained(connection, frames);
+                    connection.awaitDrained(REPLAY_BATCH, REPLAY_WRITE_TIMEOUT_MILLIS);
+                } catch (IOException e) {
+                    response.put("result", "failed");
+                    response.put("detail", "failed to replay topic " + topicId);
+                    return response;
+                }
+                replayed += frames.size();
+                frames.clear();
+                continue;
+            }
+
+            // Caught up: become a live subscriber unless new messages arrived meanwhile
+            Lock topicLock = lockFor(topicId);
+            topicLock.lock();
+            log.lock();
+            try {
+                if (log.endOffset() > next) {
+                    continue;
+                }
+                if (!this.topicList.containsKey(topicId)) {
+                    response.put("result", "failed");
+                    response.put("detail", "topic id: " + topicId + " does not exist");
+                    return response;
+                }
+                if (!isSubscribed(subscriber, topicId)) {
+                    logged = addSubscription(subscriber, topicId);
+                    syncSubscribeWithOtherBrokers(subscriber, topicId);
+                }
+            } finally {
+                log.unlock();
+                topicLock.unlock();
+            }
+            break;
+        }
+        awaitLogged(logged);
+        response.put("result", "success");
+        response.put("detail", "successfully subscribed to " + topicId + " (" + replayed
+                + " retained messages replayed)");
+        return response;
+    }
+
+    /**
+     * Subscribes a user to a topic for new messages only.
+     *
+     * @param topicId    The ID of the topic to subscribe to.
+     * @param subscriber The name of the subscriber.
+     * @param response   The response to fill in.
+     * @return The response.
+     */
+    private JSONObject subscribeLatest(String topicId, String subscriber, JSONObject response) {
+        long logged = 0;
+
+        Lock topicLock = lockFor(topicId);
+        topicLock.lock();
+        try {
+            // Check if the subscriber is already subscribed to the topic
+            if (!isSubscribed(subscriber, topicId)) {
+                if (canSubscribe(topicId)) {
+                    logged = addSubscription(subscriber, topicId);
+                    response.put("result", "success");
+                    response.put("detail", "successfully subscribed to " + topicId);
+                    syncSubscribeWithOtherBrokers(subscriber, topicId);
+                } else {
+                    response.put("result", "failed");
+                    response.put("detail", "topic id: " + topicId + " does not exist");
+                }
             } else {
                 response.put("result", "failed");
-                response.put("detail", "topic id: " + topicId + " does not exist");
+                response.put("detail", "you are already subscribed to " + topicId);
             }
-        } else {
-            response.put("result", "failed");
-            response.put("detail", "you are already subscribed to " + topicId);
+        } finally {
+            topicLock.unlock();
         }
+        awaitLogged(logged);
+
+        return response;
+    }
+
+    /**
+     * Subscribes a user to several topics for new messages, as a subscriber does
+     * when it resumes its session on this broker after its previous broker has
+     * failed. A topic the subscriber already follows, for example because the
+     * subscription was replicated from the previous broker, counts as
+     * subscribed. The write-ahead log is waited for once for the whole batch.
+     *
+     * @param topicIds   The IDs of the topics to subscribe to.
+     * @param subscriber The name of the subscriber.
+     * @return A JSONObject with the number of topics subscribed to and the IDs
+     *         of the topics that do not exist.
+     */
+    public JSONObject subscribeBatch(JSONArray topicIds, String subscriber) {
+        JSONObject response = new JSONObject();
         response.put("message type", "response");
+        if (topicIds == null || topicIds.isEmpty()) {
+            response.put("result", "failed");
+            response.put("detail", "the batch is empty");
+            return response;
+        }
 
+        long logged = 0;
+        int subscribed = 0;
+        JSONArray failedTopics = new JSONArray();
+        for (Object item : topicIds) {
+            String topicId = (String) item;
+            Lock topicLock = lockFor(topicId);
+            topicLock.lock();
+            try {
+                if (isSubscribed(subscriber, topicId)) {
+                    subscribed++;
+                } else if (canSubscribe(topicId)) {
+                    logged = addSubscription(subscriber, topicId);
+                    syncSubscribeWithOtherBrokers(subscriber, topicId);
+                    subscribed++;
+                } else {
+                    failedTopics.add(topicId);
+                }
+            } finally {
+                topicLock.unlock();
+            }
+        }
+        awaitLogged(logged);
+
+        response.put("result", failedTopics.isEmpty() ? "success" : "failed");
+        response.put("detail", subscribed + " of " + topicIds.size() + " subscriptions have been restored!");
+        response.put("count", subscribed + "");
+        response.put("failed topics", failedTopics);
         return response;
     }
 
+    /**
+     * Sends retained messages to a subscriber in the connection's wire format.
+     * Binary frames are sent exactly as they are stored.
+     *
+     * @param connection The subscriber's connection.
+     * @param frames     The stored binary frames.
+     * @throws IOException If the connection cannot be written to.
+     */
+    private void sendRetained(Connection connection, List<byte[]> frames) throws IOException {
+        for (byte[] frame : frames) {
+            if (connection.getFormat() == WireFormat.BINARY) {
+                connection.send(frame);
+            } else {
+                connection.send(BinaryCodec.decodeFrame(frame));
+            }
+        }
+    }
+
+    /**
+     * Deletes the retained messages of a deleted topic.
+     *
+     * @param topicId The ID of the topic.
+     */
+    private void deleteRetainedMessages(String topicId) {
+        MessageStore store = this.messageStore;
+        if (store != null) {
+            store.delete(topicId);
+        }
+    }
+
     /**
      * Synchronizes a subscription action with other brokers.
      *
      * @param subscriber The name of the subscriber.
      * @param topicId    The ID of the topic.
      */
-    private synchronized void syncSubscribeWithOtherBrokers(String subscriber, String topicId) {
+    private void syncSubscribeWithOtherBrokers(String subscriber, String topicId) {
+        if (this.shardRouter != null) {
+            return; // Only the owner keeps the subscription
+        }
         JSONObject syncMessage = new JSONObject();
         syncMessage.put("command", "sync");
         syncMessage.put("syncAction", "subscribe");
@@ -681,20 +1746,28 @@ public class Broker {
      * @param subscriber The name of the subscriber.
      * @return A JSONObject containing the result of the unsubscription operation.
      */
-    public synchronized JSONObject unsubscribe(String topicId, String subscriber) {
+    public JSONObject unsubscribe(String topicId, String subscriber) {
         JSONObject response = new JSONObject();
         response.put("message type", "response");
+        long logged = 0;
 
-        // Check if the subscriber is subscribed to the topic
-        if (this.subscriberTopic.containsKey(subscriber) && this.subscriberTopic.get(subscriber).contains(topicId)) {
-            this.subscriberTopic.get(subscriber).remove(topicId);
-            response.put("result", "success");
-            response.put("detail", "successfully unsubscribed from " + topicId);
-            syncUnsubscribeWithOtherBrokers(topicId, subscriber);
-        } else {
-            response.put("result", "failed");
-            response.put("detail", "you are not originally subscribed to " + topicId);
+        Lock topicLock = lockFor(topicId);
+        topicLock.lock();
+        try {
+            // Check if the subscriber is subscribed to the topic
+            if (isSubscribed(subscriber, topicId)) {
+                logged = removeSubscription(subscriber, topicId);
+                response.put("result", "success");
+                response.put("detail", "successfully unsubscribed from " + topicId);
+                syncUnsubscribeWithOtherBrokers(topicId, subscriber);
+            } else {
+                response.put("result", "failed");
+                response.put("detail", "you are not originally subscribed to " + topicId);
+            }
+        } finally {
+            topicLock.unlock();
         }
+        awaitLogged(logged);
         return response;
     }
 
@@ -704,7 +1777,10 @@ public class Broker {
      * @param subscriber The name of the subscriber.
      * @param topicId    The ID of the topic.
      */
-    private synchronized void syncUnsubscribeWithOtherBrokers(String topicId, String subscriber) {
+    private void syncUnsubscribeWithOtherBrokers(String topicId, String subscriber) {
+        if (this.shardRouter != null) {
+            return; // Only the owner keeps the subscription
+        }
         JSONObject syncMessage = new JSONObject();
         syncMessage.put("command", "sync");
         syncMessage.put("syncAction", "unsubscribe");
@@ -722,7 +1798,7 @@ public class Broker {
      * @return A JSONObject containing the list of topics the subscriber is
      *         currently subscribed to.
      */
-    public synchronized JSONObject showCurrentSubscription(String subscriber) {
+    public JSONObject showCurrentSubscription(String subscriber) {
         JSONObject response = new JSONObject();
         JSONArray subscribedTopics = new JSONArray();
         boolean exist = false;
@@ -733,8 +1809,13 @@ public class Broker {
                 for (String topicId : this.subscriberTopic.get(subscriber)) {
                     JSONObject topicInfo = new JSONObject();
                     topicInfo.put("topic id", topicId);
-                    topicInfo.put("title", this.topicList.get(topicId));
-                    topicInfo.put("publisher", this.publisherTopic.get(topicId));
+                    if (TopicNames.isWildcard(topicId)) {
+                        topicInfo.put("title", "(topic filter)");
+                        topicInfo.put("publisher", "(any)");
+                    } else {
+                        topicInfo.put("title", this.topicList.get(topicId));
+                        topicInfo.put("publisher", this.publisherTopic.get(topicId));
+                    }
                     subscribedTopics.add(topicInfo);
                     exist = true;
                 }
@@ -760,8 +1841,8 @@ public class Broker {
      *
      * @param subscriber The name of the subscriber.
      */
-    public synchronized void deleteAllTopicBySubscriber(String subscriber) {
-        subscriberTopic.remove(subscriber); // Remove all topics for the subscriber
+    public void deleteAllTopicBySubscriber(String subscriber) {
+        removeAllSubscriptions(subscriber); // Remove all topics for the subscriber
         syncDeleteAllTopicsBySubscriberWithOtherBrokers(subscriber);
     }
 
@@ -771,7 +1852,7 @@ public class Broker {
      *
      * @param subscriber The name of the subscriber.
      */
-    private synchronized void syncDeleteAllTopicsBySubscriberWithOtherBrokers(String subscriber) {
+    private void syncDeleteAllTopicsBySubscriberWithOtherBrokers(String subscriber) {
         JSONObject syncMessage = new JSONObject();
         syncMessage.put("command", "sync");
         syncMessage.put("syncAction", "deleteAllTopicsBySubscriber");
@@ -780,6 +1861,53 @@ public class Broker {
         sendSyncMessageToOtherBrokers(syncMessage); // Send sync message to other brokers
     }
 
+    /**
+     * Reports runtime metrics of the broker, including the depth of the
+     * subscribers' outbound queues and the messages dropped because a queue was
+     * full, counted since the broker started.
+     *
+     * @return A JSONObject containing the metrics.
+     */
+    public JSONObject getStats() {
+        long totalDepth = 0;
+        long maxDepth = 0;
+        long dropped = this.droppedBeforeDisconnect.sum();
+        for (Connection connection : this.subscriberSockets.values()) {
+            int depth = connection.queueDepth();
+            totalDepth += depth;
+            maxDepth = Math.max(maxDepth, depth);
+            dropped += connection.droppedCount();
+        }
+
+        JSONObject detail = new JSONObject();
+        detail.put("subscriber connections", this.subscriberSockets.size());
+        detail.put("outbound queue depth", totalDepth);
+        detail.put("max outbound queue depth", maxDepth);
+        detail.put("dropped messages", dropped);
+        detail.put("sync messages sent", this.syncBatcher.messagesSent());
+        detail.put("sync frames sent", this.syncBatcher.framesSent());
+        JSONArray peers = new JSONArray();
+        for (PeerLink peer : this.connectedBrokerSockets) {
+            JSONObject peerStats = new JSONObject();
+            peerStats.put("peer", peer.getName());
+            peerStats.put("queue depth", peer.queueDepth());
+            peerStats.put("bytes sent", peer.bytesSent());
+            peerStats.put("bytes per second", peer.bytesPerSecond());
+            peerStats.put("lag millis", peer.lagMillis());
+            peerStats.put("interested topics", peer.interestSize());
+            peerStats.put("skipped publishes", peer.publishesSkipped());
+            peers.add(peerStats);
+        }
+        detail.put("peers", peers);
+        detail.put("locally followed topics", this.localInterest.size());
+
+        JSONObject response = new JSONObject();
+        response.put("result", "success");
+        response.put("detail", detail);
+        response.put("message type", "stats");
+        return response;
+    }
+
     /**
      * Handles synchronization messages between brokers.
      * This method receives a sync message and processes the action accordingly
@@ -788,7 +1916,7 @@ public class Broker {
      * @param syncMessage The synchronization message received from another broker,
      *                    as a JSONObject.
      */
-    public synchronized void handleSyncMessage(JSONObject syncMessage) {
+    public void handleSyncMessage(JSONObject syncMessage) {
         String syncAction = (String) syncMessage.get("syncAction");
         String topicId;
         String topicName;
@@ -805,15 +1933,33 @@ public class Broker {
 
             case "delete":
                 topicId = (String) syncMessage.get("topic id");
+                topicName = (String) syncMessage.get("topic name");
                 publisher = (String) syncMessage.get("publisher");
-                this.syncDeleteTopic(topicId, publisher); // Delete topic locally
+                this.syncDeleteTopic(topicId, topicName, publisher); // Delete topic locally
                 break;
 
             case "publish":
                 topicId = (String) syncMessage.get("topic id");
                 String message = (String) syncMessage.get("message");
+                topicName = (String) syncMessage.get("topic name");
                 publisher = (String) syncMessage.get("publisher");
-                this.syncPublishMessage(topicId, message, publisher); // Publish message locally
+                this.syncPublishMessage(topicId, topicName, message, publisher); // Publish message locally
+                break;
+
+            case "batch":
+                // Several sync messages coalesced by the sending broker, applied in order
+                for (Object item : (JSONArray) syncMessage.get("messages")) {
+                    this.handleSyncMessage((JSONObject) item);
+                }
+                break;
+
+            case "publishBatch":
+                publisher = (String) syncMessage.get("publisher");
+                for (Object item : (JSONArray) syncMessage.get("messages")) {
+                    JSONObject entry = (JSONObject) item;
+                    this.syncPublishMessage((String) entry.get("topic id"), (String) entry.get("topic name"),
+                            (String) entry.get("message"), publisher); // Publish each message locally
+                }
                 break;
 
             case "subscribe":
@@ -825,7 +1971,7 @@ public class Broker {
             case "unsubscribe":
                 subscriber = (String) syncMessage.get("subscriber");
                 topicId = (String) syncMessage.get("topic id");
-                this.syncUnsubscribe(subscriber, topicId); // Remove subscriber locally
+                this.syncUnsubscribe(topicId, subscriber); // Remove subscriber locally
                 break;
 
             case "deleteAllTopicsByPublisher":
@@ -839,6 +1985,10 @@ public class Broker {
                 this.syncDeleteAllTopicBySubscriber(subscriber); // Delete all topics for a subscriber locally
                 break;
 
+            case "snapshot":
+                this.syncSnapshot(syncMessage); // Merge a chunk of a peer's state
+                break;
+
             default:
                 System.out.println("Unknown sync command: " + syncAction);
         }
@@ -846,20 +1996,17 @@ public class Broker {
 
     /**
      * Sends synchronization messages to other brokers connected to this broker.
+     * The message is handed to the {@link SyncBatcher}, which sends it together
+     * with other sync messages shortly afterwards, in the order they were added.
      *
      * @param syncMessage The synchronization message to send, as a JSONObject.
      */
-    private synchronized void sendSyncMessageToOtherBrokers(JSONObject syncMessage) {
+    private void sendSyncMessageToOtherBrokers(JSONObject syncMessage) {
 
-        // Send the sync message to each connected broker
-        for (Socket brokerSocket : connectedBrokerSockets) {
-            try {
-                PrintWriter writer = new PrintWriter(brokerSocket.getOutputStream(), true);
-                writer.println(syncMessage.toJSONString()); // Send sync message
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (connectedBrokerSockets.isEmpty()) {
+            return;
         }
+        this.syncBatcher.add(syncMessage);
     }
 
     /**
@@ -870,67 +2017,89 @@ public class Broker {
      * @param topicName The name of the topic being created.
      * @param publisher The publisher associated with the topic.
      */
-    private synchronized void syncCreateTopic(String topicId, String topicName, String publisher) {
-        this.topicList.put(topicId, topicName);
-        this.publisherTopic.put(topicId, publisher);
+    private void syncCreateTopic(String topicId, String topicName, String publisher) {
+        Lock topicLock = lockFor(topicId);
+        topicLock.lock();
+        try {
+            this.publisherTopic.put(topicId, publisher);
+            this.topicList.put(topicId, topicName);
+            logCreateTopic(topicId, topicName, publisher);
+        } finally {
+            topicLock.unlock();
+        }
     }
 
     /**
      * Synchronizes the publishing of a message with other brokers by notifying
-     * relevant subscribers locally.
+     * relevant subscribers locally. A topic owned by another broker is delivered
+     * to the local subscribers that follow it.
      *
      * @param topicId   The ID of the topic being published to.
+     * @param title     The title of the topic, sent only with partitioned topics.
      * @param message   The message content.
      * @param publisher The publisher sending the message.
      */
-    private synchronized void syncPublishMessage(String topicId, String message, String publisher) {
-        ArrayList<String> subscribers = new ArrayList<>();
-        String title = this.topicList.get(topicId);
-
-        // Find all subscribers for the topic
-        for (HashMap.Entry<String, HashSet<String>> entry : this.subscriberTopic.entrySet()) {
-            String subscriber = entry.getKey();
-            HashSet<String> idSet = entry.getValue();
-            if (idSet.contains(topicId)) {
-                subscribers.add(subscriber);
-            }
+    private void syncPublishMessage(String topicId, String title, String message, String publisher) {
+        if (this.topicList.containsKey(topicId)) {
+            fanOut(topicId, message, publisher);
+            return;
         }
-
-        // Send the message to all subscribers
+        if (this.shardRouter == null) {
+            return; // The topic has been deleted in the meantime
+        }
+        List<String> subscribers = this.localInterest.subscribersOf(topicId);
         if (!subscribers.isEmpty()) {
+            this.messagesDelivered.increment();
+            EncodedMessage broadcast = encodeBroadcast(topicId, message, title, publisher);
             for (String subscriber : subscribers) {
-                sendMessageToSubscriber(subscriber, message, title, publisher, topicId);
+                sendMessageToSubscriber(subscriber, broadcast);
             }
         }
     }
 
     /**
      * Synchronizes the deletion of a topic with other brokers by updating the local
-     * broker's state.
+     * broker's state. The local subscribers of a topic owned by another broker
+     * are notified and the topic is forgotten.
      *
      * @param topicId   The ID of the topic being deleted.
+     * @param topicName The title of the topic, sent only with partitioned topics.
      * @param publisher The publisher associated with the topic.
      */
-    private synchronized void syncDeleteTopic(String topicId, String publisher) {
-        if (!this.topicList.containsKey(topicId) || !this.publisherTopic.containsKey(topicId) ||
-                !this.publisherTopic.get(topicId).equals(publisher)) {
-            return; // Exit if the topic or publisher doesn't exist
+    private void syncDeleteTopic(String topicId, String topicName, String publisher) {
+        String title;
+        Set<String> subscribers;
+
+        if (this.shardRouter != null && !this.topicList.containsKey(topicId)) {
+            for (String subscriber : this.localInterest.removeTopic(topicId)) {
+                notifySubscriber(topicId, subscriber, topicName, publisher);
+            }
+            return;
         }
 
-        String title = this.topicList.get(topicId);
+        Lock topicLock = lockFor(topicId);
+        topicLock.lock();
+        try {
+            if (!this.topicList.containsKey(topicId) || !this.publisherTopic.containsKey(topicId) ||
+                    !this.publisherTopic.get(topicId).equals(publisher)) {
+                return; // Exit if the topic or publisher doesn't exist
+            }
 
-        // Remove topic locally
-        this.topicList.remove(topicId);
-        this.publisherTopic.remove(topicId);
+            title = this.topicList.get(topicId);
+
+            // Remove topic locally
+            this.topicList.remove(topicId);
+            this.publisherTopic.remove(topicId);
+            subscribers = removeTopicSubscriptions(topicId);
+            logDeleteTopic(topicId);
+        } finally {
+            topicLock.unlock();
+        }
+        deleteRetainedMessages(topicId);
 
         // Notify subscribers about the deletion
-        for (Map.Entry<String, HashSet<String>> entry : subscriberTopic.entrySet()) {
-            HashSet<String> subscribedTopics = entry.getValue();
-            if (subscribedTopics.contains(topicId)) {
-                String subscriber = entry.getKey();
-                subscribedTopics.remove(topicId); // Remove topic from subscriber's list
-                notifySubscriber(topicId, subscriber, title, publisher); // Notify subscriber
-            }
+        for (String subscriber : subscribers) {
+            notifySubscriber(topicId, subscriber, title, publisher); // Notify subscriber
         }
     }
 
@@ -939,39 +2108,20 @@ public class Broker {
      * broker's state.
      *
      * @param publisher  The publisher whose topics are being deleted.
-     * @param idToRemove List of topic IDs to be deleted.
+     * @param idToRemove List of topic IDs to be deleted, or null to delete every
+     *                   topic of the publisher held here.
      */
-    private synchronized void syncDeleteAllTopicByPublisher(String publisher, ArrayList<String> idToRemove) {
-        for (HashMap.Entry<String, HashSet<String>> entry : subscriberTopic.entrySet()) {
-            JSONObject message = new JSONObject();
-            JSONArray jsonArray = new JSONArray();
-            String subscriber = "";
-
-            // Create deletion notifications
-            for (String topicId : idToRemove) {
-                if (entry.getValue().contains(topicId)) {
-                    String title = this.topicList.get(topicId);
-                    subscriber = entry.getKey();
-                    JSONObject topicInfo = new JSONObject();
-                    topicInfo.put("topic id", topicId);
-                    topicInfo.put("title", title);
-                    topicInfo.put("publisher", publisher);
-                    jsonArray.add(topicInfo);
-                    this.subscriberTopic.get(subscriber).remove(topicId);
+    private void syncDeleteAllTopicByPublisher(String publisher, ArrayList<String> idToRemove) {
+        if (idToRemove == null) {
+            idToRemove = new ArrayList<>();
+            for (Map.Entry<String, String> entry : this.publisherTopic.entrySet()) {
+                if (publisher.equals(entry.getValue())) {
+                    idToRemove.add(entry.getKey());
                 }
             }
-            message.put("message type", "deleteNotify");
-            message.put("deleted topic", jsonArray);
-            if (!subscriber.isEmpty()) {
-                notifySubscriber(message, subscriber); // Notify subscribers about the deletion
-            }
-        }
-
-        // Remove topics locally
-        for (String topicId : idToRemove) {
-            this.topicList.remove(topicId);
-            this.publisherTopic.remove(topicId);
         }
+        // Remove topics locally and notify subscribers about the deletion
+        removeTopicsAndNotify(publisher, idToRemove);
     }
 
     /**
@@ -980,12 +2130,15 @@ public class Broker {
      * @param topicId    The ID of the topic the subscriber is subscribing to.
      * @param subscriber The subscriber's name.
      */
-    private synchronized void syncSubscribe(String topicId, String subscriber) {
-        if (!this.subscriberTopic.containsKey(subscriber) || !this.subscriberTopic.get(subscriber).contains(topicId)) {
-            if (this.topicList.containsKey(topicId)) {
-                this.subscriberTopic.putIfAbsent(subscriber, new HashSet<>());
-                this.subscriberTopic.get(subscriber).add(topicId);
+    private void syncSubscribe(String topicId, String subscriber) {
+        Lock topicLock = lockFor(topicId);
+        topicLock.lock();
+        try {
+            if (!isSubscribed(subscriber, topicId) && canSubscribe(topicId)) {
+                addSubscription(subscriber, topicId);
             }
+        } finally {
+            topicLock.unlock();
         }
     }
 
@@ -995,9 +2148,15 @@ public class Broker {
      * @param topicId    The ID of the topic the subscriber is unsubscribing from.
      * @param subscriber The subscriber's name.
      */
-    private synchronized void syncUnsubscribe(String topicId, String subscriber) {
-        if (this.subscriberTopic.containsKey(subscriber) && this.subscriberTopic.get(subscriber).contains(topicId)) {
-            this.subscriberTopic.get(subscriber).remove(topicId);
+    private void syncUnsubscribe(String topicId, String subscriber) {
+        Lock topicLock = lockFor(topicId);
+        topicLock.lock();
+        try {
+            if (isSubscribed(subscriber, topicId)) {
+                removeSubscription(subscriber, topicId);
+            }
+        } finally {
+            topicLock.unlock();
         }
     }
 
@@ -1007,8 +2166,405 @@ public class Broker {
      *
      * @param subscriber The subscriber whose topics are being deleted.
      */
-    public synchronized void syncDeleteAllTopicBySubscriber(String subscriber) {
-        this.subscriberTopic.remove(subscriber); // Remove all topics for the subscriber
+    public void syncDeleteAllTopicBySubscriber(String subscriber) {
+        if (this.subscriberSockets.containsKey(subscriber)) {
+            return; // The subscriber has moved to this broker, and its subscriptions are now kept here
+        }
+        removeAllSubscriptions(subscriber); // Remove all topics for the subscriber
+    }
+
+    /**
+     * Merges a chunk of the state of a newly connected peer: topics that do not
+     * exist locally are created, and missing subscriptions are added.
+     *
+     * @param chunk The "snapshot" sync message.
+     */
+    private void syncSnapshot(JSONObject chunk) {
+        JSONArray topics = (JSONArray) chunk.get("topics");
+        if (topics != null) {
+            for (Object item : topics) {
+                JSONObject topic = (JSONObject) item;
+                String topicId = (String) topic.get("topic id");
+                Lock topicLock = lockFor(topicId);
+                topicLock.lock();
+                try {
+                    if (!this.topicList.containsKey(topicId)) {
+                        String topicName = (String) topic.get("topic name");
+                        String publisher = (String) topic.get("publisher");
+                        this.publisherTopic.put(topicId, publisher);
+                        this.topicList.put(topicId, topicName);
+                        logCreateTopic(topicId, topicName, publisher);
+                    }
+                } finally {
+                    topicLock.unlock();
+                }
+            }
+        }
+        JSONArray subscriptions = (JSONArray) chunk.get("subscriptions");
+        if (subscriptions != null) {
+            for (Object item : subscriptions) {
+                JSONObject subscription = (JSONObject) item;
+                String subscriber = (String) subscription.get("subscriber");
+                for (Object topicId : (JSONArray) subscription.get("topics")) {
+                    syncSubscribe((String) topicId, subscriber);
+                }
+            }
+        }
+        if (((Number) chunk.get("remaining")).longValue() == 0) {
+            System.out.println("Received the state of a peer broker: " + this.topicList.size() + " topics, "
+                    + this.subscriberTopic.size() + " subscribers");
+        }
+    }
+
+    /**
+     * Cuts the state of this broker into "snapshot" sync messages for a new
+     * peer: first the topics, then the subscriptions, at most SNAPSHOT_CHUNK
+     * entries per message. The caller must hold every topic lock.
+     *
+     * @param included Selects the topic IDs to send, with their subscriptions.
+     * @return The chunks in the order they must be sent.
+     */
+    private List<JSONObject> snapshotForPeer(Predicate<String> included) {
+        List<JSONArray> topicChunks = new ArrayList<>();
+        JSONArray topics = new JSONArray();
+        for (Map.Entry<String, String> entry : this.topicList.entrySet()) {
+            if (!included.test(entry.getKey())) {
+                continue;
+            }
+            if (topics.size() == SNAPSHOT_CHUNK) {
+                topicChunks.add(topics);
+                topics = new JSONArray();
+            }
+            JSONObject topic = new JSONObject();
+            topic.put("topic id", entry.getKey());
+            topic.put("topic name", entry.getValue());
+            topic.put("publisher", this.publisherTopic.get(entry.getKey()));
+            topics.add(topic);
+        }
+        topicChunks.add(topics);
+
+        List<JSONArray> subscriptionChunks = new ArrayList<>();
+        JSONArray subscriptions = new JSONArray();
+        for (Map.Entry<String, Set<String>> entry : this.subscriberTopic.entrySet()) {
+            JSONArray topicIds = new JSONArray();
+            for (String topicId : entry.getValue()) {
+                if (included.test(topicId)) {
+                    topicIds.add(topicId);
+                }
+            }
+            if (topicIds.isEmpty()) {
+                continue;
+            }
+            if (subscriptions.size() == SNAPSHOT_CHUNK) {
+                subscriptionChunks.add(subscriptions);
+                subscriptions = new JSONArray();
+            }
+            JSONObject subscription = new JSONObject();
+            subscription.put("subscriber", entry.getKey());
+            subscription.put("topics", topicIds);
+            subscriptions.add(subscription);
+        }
+        if (!subscriptions.isEmpty()) {
+            subscriptionChunks.add(subscriptions);
+        }
+
+        List<JSONObject> chunks = new ArrayList<>();
+        int total = topicChunks.size() + subscriptionChunks.size();
+        for (int i = 0; i < total; i++) {
+            JSONObject chunk = new JSONObject();
+            chunk.put("command", "sync");
+            chunk.put("syncAction", "snapshot");
+            if (i < topicChunks.size()) {
+                chunk.put("topics", topicChunks.get(i));
+            } else {
+                chunk.put("subscriptions", subscriptionChunks.get(i - topicChunks.size()));
+            }
+            chunk.put("remaining", (long) (total - 1 - i));
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    /**
+     * Takes every striped topic lock, in a fixed order, to stop all topic and
+     * subscription changes for a moment.
+     */
+    private void lockAllTopics() {
+        for (Lock topicLock : this.topicLocks) {
+            topicLock.lock();
+        }
+    }
+
+    /**
+     * Releases the locks taken by {@link #lockAllTopics()}.
+     */
+    private void unlockAllTopics() {
+        for (int i = this.topicLocks.length - 1; i >= 0; i--) {
+            this.topicLocks[i].unlock();
+        }
+    }
+
+    /**
+     * Returns the striped lock guarding updates to the given topic.
+     *
+     * @param topicId The ID of the topic.
+     * @return The lock object shared by all topics hashing to the same stripe.
+     */
+    private Lock lockFor(String topicId) {
+        return this.topicLocks[(topicId.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    /**
+     * Checks whether a subscriber currently follows a topic.
+     *
+     * @param subscriber The subscriber's name.
+     * @param topicId    The ID of the topic.
+     * @return true if the subscription exists.
+     */
+    private boolean isSubscribed(String subscriber, String topicId) {
+        Set<String> topics = this.subscriberTopic.get(subscriber);
+        return topics != null && topics.contains(topicId);
+    }
+
+    /**
+     * @param topicId A topic ID or a topic filter.
+     * @return true if a subscription to it can be recorded: the topic exists, or
+     *         it is a valid filter with wildcards, which may match topics created
+     *         later.
+     */
+    private boolean canSubscribe(String topicId) {
+        return this.topicList.containsKey(topicId)
+                || (TopicNames.isWildcard(topicId) && TopicNames.isValidFilter(topicId));
+    }
+
+    /**
+     * Adds a subscriber to the index of the topic it follows: topicSubscribers
+     * for a topic ID, or wildcardSubscribers for a filter.
+     */
+    private void indexSubscription(String subscriber, String topicId) {
+        if (TopicNames.isWildcard(topicId)) {
+            this.wildcardSubscribers.add(topicId, subscriber);
+        } else {
+            this.topicSubscribers.computeIfAbsent(topicId, k -> ConcurrentHashMap.newKeySet()).add(subscriber);
+        }
+    }
+
+    /**
+     * Removes a subscriber from the index of the topic or filter it followed.
+     */
+    private void unindexSubscription(String subscriber, String topicId) {
+        if (TopicNames.isWildcard(topicId)) {
+            this.wildcardSubscribers.remove(topicId, subscriber);
+            return;
+        }
+        Set<String> subscribers = this.topicSubscribers.get(topicId);
+        if (subscribers != null) {
+            subscribers.remove(subscriber);
+            if (subscribers.isEmpty()) {
+                this.topicSubscribers.remove(topicId);
+            }
+        }
+    }
+
+    /**
+     * Records a subscription in both subscriberTopic and the index of the topic
+     * or filter, and in the write-ahead log. The caller must hold the lock of the
+     * topic.
+     *
+     * @param subscriber The subscriber's name.
+     * @param topicId    The ID of the topic being subscribed to.
+     * @return The log sequence number of the change, or 0 without a log.
+     */
+    private long addSubscription(String subscriber, String topicId) {
+        // Added inside compute, so removeAllSubscriptions cannot drop the set in between
+        this.subscriberTopic.compute(subscriber, (k, topics) -> {
+            if (topics == null) {
+                topics = ConcurrentHashMap.newKeySet();
+            }
+            topics.add(topicId);
+            return topics;
+        });
+        indexSubscription(subscriber, topicId);
+        if (this.subscriberSockets.containsKey(subscriber)) {
+            this.localInterest.add(topicId, subscriber);
+        }
+        return logSubscription("subscribe", subscriber, topicId);
+    }
+
+    /**
+     * Removes a single subscription from both subscriberTopic and the index of
+     * the topic or filter, and records the change in the write-ahead log. The
+     * caller must hold the lock of the topic.
+     *
+     * @param subscriber The subscriber's name.
+     * @param topicId    The ID of the topic being unsubscribed from.
+     * @return The log sequence number of the change, or 0 without a log.
+     */
+    private long removeSubscription(String subscriber, String topicId) {
+        this.subscriberTopic.computeIfPresent(subscriber, (k, topics) -> {
+            topics.remove(topicId);
+            return topics.isEmpty() ? null : topics;
+        });
+        unindexSubscription(subscriber, topicId);
+        this.localInterest.remove(topicId, subscriber);
+        return logSubscription("unsubscribe", subscriber, topicId);
+    }
+
+    /**
+     * Removes every subscription held by a subscriber from both maps, taking the
+     * lock of each affected topic in turn. Each subscription is removed and
+     * logged under the lock of its topic, like a single unsubscribe, so the
+     * write-ahead log orders it the same way as concurrent changes to the topic.
+     *
+     * @param subscriber The subscriber's name.
+     */
+    private void removeAllSubscriptions(String subscriber) {
+        Set<String> topics = this.subscriberTopic.get(subscriber);
+        if (topics == null) {
+            return;
+        }
+        for (String topicId : new ArrayList<>(topics)) {
+            Lock topicLock = lockFor(topicId);
+            topicLock.lock();
+            try {
+                if (topics.remove(topicId)) {
+                    unindexSubscription(subscriber, topicId);
+                    this.localInterest.remove(topicId, subscriber);
+                    logSubscription("unsubscribe", subscriber, topicId);
+                }
+            } finally {
+                topicLock.unlock();
+            }
+        }
+        this.subscriberTopic.computeIfPresent(subscriber, (k, remaining) -> remaining.isEmpty() ? null : remaining);
+    }
+
+    /**
+     * Drops a topic from the topicSubscribers index and from the subscription set
+     * of each of its followers. The caller must hold the lock of the topic.
+     *
+     * @param topicId The ID of the topic being removed.
+     * @return The subscribers that were following the topic.
+     */
+    private Set<String> removeTopicSubscriptions(String topicId) {
+        Set<String> subscribers = this.topicSubscribers.remove(topicId);
+        if (subscribers == null) {
+            return Collections.emptySet();
+        }
+        for (String subscriber : subscribers) {
+            Set<String> topics = this.subscriberTopic.get(subscriber);
+            if (topics != null) {
+                topics.remove(topicId);
+            }
+            this.localInterest.remove(topicId, subscriber);
+        }
+        return subscribers;
+    }
+
+    /**
+     * Applies one record of the write-ahead log while the broker starts up. No
+     * locks are needed because no connection has been accepted yet.
+     *
+     * @param record The log record.
+     */
+    private void applyLogRecord(JSONObject record) {
+        String action = (String) record.get("action");
+        String topicId = (String) record.get("topic id");
+        String subscriber = (String) record.get("subscriber");
+        switch (action) {
+            case "create":
+                this.publisherTopic.put(topicId, (String) record.get("publisher"));
+                this.topicList.put(topicId, (String) record.get("topic name"));
+                break;
+            case "delete":
+                this.topicList.remove(topicId);
+                this.publisherTopic.remove(topicId);
+                removeTopicSubscriptions(topicId);
+                break;
+            case "subscribe":
+                addSubscription(subscriber, topicId);
+                break;
+            case "unsubscribe":
+                removeSubscription(subscriber, topicId);
+                break;
+            default:
+                System.out.println("Unknown log record: " + action);
+        }
+    }
+
+    /**
+     * Records the creation of a topic in the write-ahead log. The caller must
+     * hold the lock of the topic.
+     *
+     * @return The log sequence number of the change, or 0 without a log.
+     */
+    private long logCreateTopic(String topicId, String topicName, String publisher) {
+        WriteAheadLog log = this.writeAheadLog;
+        if (log == null) {
+            return 0;
+        }
+        JSONObject record = new JSONObject();
+        record.put("action", "create");
+        record.put("topic id", topicId);
+        record.put("topic name", topicName);
+        record.put("publisher", publisher);
+        return log.append(record);
+    }
+
+    /**
+     * Records the deletion of a topic, together with all its subscriptions, in
+     * the write-ahead log. The caller must hold the lock of the topic.
+     *
+     * @return The log sequence number of the change, or 0 without a log.
+     */
+    private long logDeleteTopic(String topicId) {
+        WriteAheadLog log = this.writeAheadLog;
+        if (log == null) {
+            return 0;
+        }
+        JSONObject record = new JSONObject();
+        record.put("action", "delete");
+        record.put("topic id", topicId);
+        return log.append(record);
+    }
+
+    /**
+     * Records a subscription change in the write-ahead log.
+     *
+     * @param action     "subscribe" or "unsubscribe".
+     * @param subscriber The subscriber's name.
+     * @param topicId    The ID of the topic.
+     * @return The log sequence number of the change, or 0 without a log.
+     */
+    private long logSubscription(String action, String subscriber, String topicId) {
+        WriteAheadLog log = this.writeAheadLog;
+        if (log == null) {
+            return 0;
+        }
+        JSONObject record = new JSONObject();
+        record.put("action", action);
+        record.put("subscriber", subscriber);
+        record.put("topic id", topicId);
+        return log.append(record);
+    }
+
+    /**
+     * Waits until a logged change is on disk before the client is answered.
+     * Must be called without holding a topic lock, so that other requests can
+     * join the same group commit.
+     *
+     * @param sequence The log sequence number, or 0 if nothing was logged.
+     */
+    private void awaitLogged(long sequence) {
+        WriteAheadLog log = this.writeAheadLog;
+        if (log == null || sequence == 0) {
+            return;
+        }
+        try {
+            log.awaitDurable(sequence);
+        } catch (IOException e) {
+            System.out.println("Failed to write the log: " + e.getMessage());
+        }
     }
 
 }
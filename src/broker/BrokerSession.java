@@ -0,0 +1,406 @@
+package broker;
+
+import protocol.EncodedMessage;
+import protocol.WireFormat;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * Protocol state of a single client connection (publisher, subscriber, or
+ * broker).
+ * The session consumes the protocol one decoded message at a time: the first
+ * message carries the user information, every following message is a request
+ * that is executed against the Broker and answered on the same connection.
+ * A request may carry a "request id", which is echoed in its response so that
+ * clients can keep many requests in flight.
+ * The user information is always a JSON line; if it asks for the binary wire
+ * format, the session confirms with a JSON line and both directions switch to
+ * binary frames. It does not read from the network itself, so the same logic
+ * is shared by the blocking {@link ClientHandler} and by
+ * {@link NioBrokerServer}, which use {@link #getInputFormat()} to decode the
+ * next message.
+ * When topics are partitioned between brokers, client requests go through
+ * the broker's {@link ShardRouter}, and requests forwarded by a peer broker
+ * are executed here and answered on the peer's connection.
+ * <p>
+ * On an event loop of {@link NioBrokerServer} a request that may block (one
+ * that is forwarded to the owner of its topic, waits for the write-ahead log,
+ * replays retained messages to the client, or connects back to a peer broker)
+ * is run on a worker executor instead, so that the other connections of the
+ * loop are not held up. Once a request has been handed to the worker, the
+ * later messages and the disconnection of the same client follow it there, in
+ * order.
+ */
+public class BrokerSession {
+    private final Broker broker;
+    private final Connection connection;
+    private volatile WireFormat inputFormat = WireFormat.JSON; // Format of the next incoming message
+    private JSONObject userInfo;
+    private String userName;
+    private String userType;
+    private final Executor worker; // Runs requests that may block, or null if the connection has its own thread
+    private final Queue<Task> backlog = new ArrayDeque<>(); // Work handed to the worker, in arrival order
+    private boolean draining; // Whether the worker is running the backlog; guarded by this
+    private boolean disconnected; // Whether the disconnection has been handled; guarded by this
+
+    /**
+     * Work of the session that may block.
+     */
+    private interface Task {
+        void run() throws IOException;
+    }
+
+    /**
+     * Creates a session for a newly accepted connection served by its own
+     * thread, where every request is executed by the caller.
+     *
+     * @param broker     the broker instance that manages topics, publishers, and
+     *                   subscribers
+     * @param connection the connection used to answer the client
+     */
+    public BrokerSession(Broker broker, Connection connection) {
+        this(broker, connection, null);
+    }
+
+    /**
+     * Creates a session for a newly accepted connection served by an event
+     * loop.
+     *
+     * @param broker     the broker instance that manages topics, publishers, and
+     *                   subscribers
+     * @param connection the connection used to answer the client
+     * @param worker     the executor of the requests that may block, or null to
+     *                   execute every request in the caller
+     */
+    public BrokerSession(Broker broker, Connection connection, Executor worker) {
+        this.broker = broker;
+        this.connection = connection;
+        this.worker = worker;
+    }
+
+    /**
+     * @return the wire format in which the next message from the client is
+     *         encoded
+     */
+    public WireFormat getInputFormat() {
+        return this.inputFormat;
+    }
+
+    /**
+     * Processes one message received from the client.
+     *
+     * @param request the decoded message
+     * @throws IOException if the response cannot be sent, or a requested broker
+     *                     connection fails
+     */
+    public void handleMessage(JSONObject request) throws IOException {
+        if (this.userInfo == null) {
+            handleUserInfo(request);
+            return;
+        }
+        if (mayBlock(request)) {
+            runBlocking(() -> handleRequestMessage(request));
+        } else {
+            runInOrder(() -> handleRequestMessage(request));
+        }
+    }
+
+    /**
+     * Executes a request that follows the user information and sends its
+     * response.
+     *
+     * @param request the decoded message
+     * @throws IOException if the response cannot be sent, or a requested broker
+     *                     connection fails
+     */
+    private void handleRequestMessage(JSONObject request) throws IOException {
+        // if -d option is used, connect to other brokers.
+        if (request.containsKey("user type") && request.get("user type").equals("broker")) {
+            String brokerIp = (String) this.userInfo.get("ip address");
+            int brokerPort = Integer.parseInt((String) this.userInfo.get("port number"));
+            this.broker.connectToOtherBroker(brokerIp, brokerPort);
+        } else {
+            String command = (String) request.get("command");
+            // Handle the command from the client, on the broker owning its topic if topics are partitioned
+            ShardRouter router = this.broker.getShardRouter();
+            JSONObject response = router == null || "broker".equals(this.userType)
+                    ? handleRequest(command, request, this.userName)
+                    : router.handle(command, request, this.userName,
+                            r -> handleRequest((String) r.get("command"), r, this.userName));
+            if (response != null) {
+                if (request.containsKey("request id")) {
+                    // Echo the correlation ID so a pipelining client can match the response
+                    response.put("request id", request.get("request id"));
+                }
+                this.connection.send(response); // Send response to the client
+            }
+        }
+    }
+
+    /**
+     * @param request a request that follows the user information
+     * @return true if executing it may wait for another broker, for the disk or
+     *         for the client
+     */
+    private boolean mayBlock(JSONObject request) {
+        if ("broker".equals(request.get("user type"))) {
+            return true; // Connects back to the peer
+        }
+        if ("sync".equals(request.get("command")) && !"forward".equals(request.get("syncAction"))) {
+            return false; // Replicated changes are applied without waiting
+        }
+        if ("subscribe".equals(request.get("command")) && request.get("from offset") != null
+                && !"latest".equals(request.get("from offset"))) {
+            return true; // Waits for the client to read the replayed messages
+        }
+        return this.broker.getShardRouter() != null || this.broker.hasWriteAheadLog();
+    }
+
+    /**
+     * Runs a task on the worker if the session has one, otherwise in the caller.
+     */
+    private void runBlocking(Task task) throws IOException {
+        if (this.worker == null) {
+            task.run();
+            return;
+        }
+        synchronized (this) {
+            this.backlog.add(task);
+            if (this.draining) {
+                return;
+            }
+            this.draining = true;
+        }
+        this.worker.execute(this::drain);
+    }
+
+    /**
+     * Runs a task in the caller, unless earlier work of the session is still
+     * waiting on the worker, in which case it is queued behind it.
+     */
+    private void runInOrder(Task task) throws IOException {
+        if (this.worker != null) {
+            synchronized (this) {
+                if (this.draining) {
+                    this.backlog.add(task);
+                    return;
+                }
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * Runs the backlog on the worker until it is empty. If a task fails, the
+     * connection is closed, the client is disconnected and the rest of the
+     * backlog is dropped.
+     */
+    private void drain() {
+        while (true) {
+            Task task;
+            synchronized (this) {
+                task = this.backlog.poll();
+                if (task == null) {
+                    this.draining = false;
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Failed to handle a request: " + e);
+                synchronized (this) {
+                    this.backlog.clear();
+                    this.draining = false;
+                }
+                closeAndCleanUp();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Cleans up after the client has disconnected: the topics of a publisher are
+     * deleted and the subscriptions of a subscriber are removed, unless the
+     * subscriber has already reconnected to this broker. Requests of the client
+     * still waiting on the worker are executed first.
+     */
+    public void handleDisconnect() {
+        try {
+            runInOrder(this::cleanUp);
+        } catch (IOException e) {
+            // cleanUp does not send anything
+        }
+    }
+
+    /**
+     * Closes the connection from this side. The event loop no longer watches a
+     * closed channel, so the client is removed here.
+     */
+    private void closeAndCleanUp() {
+        try {
+            this.connection.close();
+        } catch (IOException e) {
+            // already closed
+        }
+        cleanUp();
+    }
+
+    /**
+     * Removes the client from the broker, once.
+     */
+    private void cleanUp() {
+        synchronized (this) {
+            if (this.disconnected) {
+                return;
+            }
+            this.disconnected = true;
+        }
+        System.out.println(this.userType);
+        if ("publisher".equals(this.userType)) {
+            this.broker.deleteAllTopicByPublisher(this.userName);
+            this.broker.removePublisherSocket(this.userName, this.connection);
+        } else if ("subscriber".equals(this.userType)) {
+            // A subscriber that has already reconnected keeps the subscriptions it restored
+            if (this.broker.isSubscriberConnection(this.userName, this.connection)) {
+                this.broker.deleteAllTopicBySubscriber(this.userName);
+            }
+            this.broker.removeSubscriberSocket(this.userName, this.connection);
+        } else if ("broker".equals(this.userType)) {
+            this.broker.removeInterestListener(this.connection);
+        }
+        System.out.println("Client disconnected.");
+    }
+
+    /**
+     * Registers the client as a subscriber, publisher, or broker based on the
+     * initial user information, and switches to the binary wire format if the
+     * client asked for it.
+     *
+     * @param userInfo the first message sent by the client
+     * @throws IOException if the acknowledgement cannot be sent, or connecting
+     *                     back to a broker fails
+     */
+    private void handleUserInfo(JSONObject userInfo) throws IOException {
+        this.userInfo = userInfo;
+        this.userName = (String) userInfo.get("user name");
+        this.userType = (String) userInfo.get("user type");
+
+        if (WireFormat.BINARY_NAME.equals(userInfo.get(WireFormat.HANDSHAKE_KEY))) {
+            // Acknowledge in JSON, then use binary frames in both directions
+            JSONObject ack = new JSONObject();
+            ack.put(WireFormat.HANDSHAKE_KEY, WireFormat.BINARY_NAME);
+            this.connection.send(ack);
+            this.connection.setFormat(WireFormat.BINARY);
+            this.inputFormat = WireFormat.BINARY;
+        }
+
+        if (this.userType != null) {
+            if (this.userType.equals("subscriber")) {
+                this.broker.addSubscriberSocket(this.userName, this.connection);
+            } else if (this.userType.equals("publisher")) {
+                this.broker.addPublisherSocket(this.userName, this.connection);
+            } else if (this.userType.equals("broker")) {
+                // Introduce this broker on the peer's link, then advertise the local interest
+                JSONObject hello = new JSONObject();
+                hello.put("command", "sync");
+                hello.put("syncAction", "hello");
+                hello.put("broker", this.broker.getBrokerId());
+                this.connection.offer(new EncodedMessage(hello));
+                this.broker.addInterestListener(this.connection);
+                String brokerIp = (String) userInfo.get("ip address");
+                int brokerPort = Integer.parseInt((String) userInfo.get("port number"));
+                runBlocking(() -> this.broker.connectToOtherBroker(brokerIp, brokerPort));
+            }
+        }
+    }
+
+    /**
+     * Handles a command sent by the client.
+     * This method processes different commands such as creating topics, publishing
+     * messages,
+     * subscribing/unsubscribing to topics, and returning responses based on the
+     * actions performed.
+     *
+     * @param command  the command to be executed (e.g., "create", "publish",
+     *                 "subscribe")
+     * @param request  the JSON request object containing details for the command
+     * @param userName the name of the user (publisher or subscriber) issuing the
+     *                 command
+     * @return a JSONObject containing the result of the command execution (success
+     *         or failure)
+     */
+    private JSONObject handleRequest(String command, JSONObject request, String userName) {
+        if (command == null) {
+            command = "";
+        }
+        switch (command) {
+            case "create":
+                return this.broker.createTopic((String) request.get("topic id"), (String) request.get("topic name"),
+                        userName);
+            case "publish":
+                return this.broker.publishMessage((String) request.get("topic id"), (String) request.get("message"),
+                        userName);
+            case "publishBatch":
+                return this.broker.publishBatch((JSONArray) request.get("messages"), userName);
+            case "countSubscriber":
+                return this.broker.countSubscribers(userName);
+            case "delete":
+                return this.broker.deleteTopic((String) request.get("topic id"), userName);
+            case "list":
+                return this.broker.listTopics();
+            case "subscribe":
+                return this.broker.subscribe((String) request.get("topic id"), userName,
+                        (String) request.get("from offset"));
+            case "subscribeBatch":
+                return this.broker.subscribeBatch((JSONArray) request.get("topics"), userName);
+            case "unsubscribe":
+                return this.broker.unsubscribe((String) request.get("topic id"), userName);
+            case "showCurrentSubscription":
+                return this.broker.showCurrentSubscription(userName);
+            case "stats":
+                return this.broker.getStats();
+            case "sync":
+                if ("forward".equals(request.get("syncAction"))) {
+                    handleForwardedRequest(request); // A client request sent by a peer broker to this owner
+                } else {
+                    this.broker.handleSyncMessage(request); // Handle synchronization messages from other brokers
+                }
+                return null;
+            default:
+                JSONObject response = new JSONObject();
+                response.put("result", "failed");
+                response.put("detail", "Invalid command.");
+                return response;
+        }
+    }
+
+    /**
+     * Executes a request that a peer broker has forwarded on behalf of one of
+     * its clients, and sends the response back to the peer.
+     *
+     * @param forward the "forward" sync message
+     */
+    private void handleForwardedRequest(JSONObject forward) {
+        JSONObject request = (JSONObject) forward.get("request");
+        JSONObject response = handleRequest((String) request.get("command"), request,
+                (String) forward.get("user name"));
+        JSONObject answer = new JSONObject();
+        answer.put("command", "sync");
+        answer.put("syncAction", "forwarded");
+        answer.put("request id", forward.get("request id"));
+        answer.put("response", response);
+        if (!this.connection.offer(new EncodedMessage(answer))) {
+            // The peer would wait for the answer until it times out; closing the connection fails it at once
+            System.out.println("Failed to answer a request forwarded by broker " + this.userName
+                    + ", closing the connection");
+            closeAndCleanUp();
+        }
+    }
+}
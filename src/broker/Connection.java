@@ -0,0 +1,135 @@
+package broker;
+
+import protocol.EncodedMessage;
+import protocol.WireFormat;
+
+import org.json.simple.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A connection to a subscriber, publisher or peer broker.
+ * All writes to a client must go through its Connection so that concurrent
+ * senders never interleave their frames.
+ * <p>
+ * Messages are written as pre-encoded frames in the connection's
+ * {@link WireFormat}: a JSON line by default, or a length-prefixed binary frame
+ * once the client has negotiated it. A message sent to many connections is
+ * wrapped in an {@link EncodedMessage} so that each format is encoded only
+ * once. A frame can either be sent synchronously with {@link #send(byte[])},
+ * or handed to the connection's bounded outbound queue with
+ * {@link #offer(byte[])}, which never blocks the caller.
+ * <p>
+ * {@link SocketConnection} is used by the thread-per-connection server and for
+ * outgoing peer links; {@link NioConnection} is used by {@link NioBrokerServer}.
+ */
+public abstract class Connection implements Closeable {
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024; // Maximum number of queued messages per connection
+
+    private volatile WireFormat format = WireFormat.JSON; // Format of outgoing frames
+
+    /**
+     * @return the wire format used for frames sent on this connection
+     */
+    public WireFormat getFormat() {
+        return this.format;
+    }
+
+    /**
+     * Switches the wire format of subsequent frames, after the handshake.
+     *
+     * @param format the negotiated wire format
+     */
+    public void setFormat(WireFormat format) {
+        this.format = format;
+    }
+
+    /**
+     * Encodes a message in the connection's format, sends it and flushes it
+     * immediately.
+     *
+     * @param message the message to send
+     * @throws IOException if the connection cannot be written to
+     */
+    public void send(JSONObject message) throws IOException {
+        send(this.format.encode(message));
+    }
+
+    /**
+     * Sends a shared message in the connection's format and flushes it
+     * immediately.
+     *
+     * @param message the message to send
+     * @throws IOException if the connection cannot be written to
+     */
+    public void send(EncodedMessage message) throws IOException {
+        send(message.bytes(this.format));
+    }
+
+    /**
+     * Queues a shared message in the connection's format without blocking.
+     *
+     * @param message the message to send
+     * @return true if the message was queued, false if the queue is full or closed
+     */
+    public boolean offer(EncodedMessage message) {
+        return offer(message.bytes(this.format));
+    }
+
+    /**
+     * Sends a single pre-encoded frame and flushes it immediately.
+     *
+     * @param frame the frame to send, already encoded in the connection's format
+     * @throws IOException if the connection cannot be written to
+     */
+    public abstract void send(byte[] frame) throws IOException;
+
+    /**
+     * Waits until at most maxPending frames sent with {@link #send(byte[])} are
+     * still waiting to be written, so that a long series of sends does not pile
+     * up in memory. Connections that write synchronously return at once.
+     *
+     * @param maxPending    the number of frames that may still be waiting
+     * @param timeoutMillis the maximum time to wait
+     * @throws IOException if the frames are not written in time or the
+     *                     connection is closed
+     */
+    public void awaitDrained(int maxPending, long timeoutMillis) throws IOException {
+    }
+
+    /**
+     * Queues an encoded frame for delivery without blocking. The same frame may be
+     * queued on many connections and must not be modified afterwards.
+     *
+     * @param frame the frame to send
+     * @return true if the frame was queued, false if the queue is full or closed
+     */
+    public abstract boolean offer(byte[] frame);
+
+    /**
+     * @return the number of frames waiting in the outbound queue
+     */
+    public abstract int queueDepth();
+
+    /**
+     * @return the number of frames dropped because the outbound queue was full
+     */
+    public abstract long droppedCount();
+
+    /**
+     * @return the IP address of the remote end
+     */
+    public abstract String getRemoteAddress();
+
+    /**
+     * @return the port number of the remote end
+     */
+    public abstract int getRemotePort();
+
+    /**
+     * Closes the connection and discards anything still queued.
+     */
+    @Override
+    public abstract void close() throws IOException;
+}
@@ -0,0 +1,63 @@
+package broker;
+
+import protocol.ThreadFactories;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Selects whether the broker runs its per-connection work (client handlers and
+ * subscriber writer threads) on platform threads or on virtual threads.
+ * With virtual threads an idle connection does not pin a platform thread stack,
+ * so a broker can hold many more idle subscriber connections. Locks that are
+ * held across socket I/O are ReentrantLocks rather than monitors so that a
+ * blocked virtual thread releases its carrier thread.
+ * Virtual threads need Java 21; on older runtimes only PLATFORM can be
+ * selected.
+ */
+public enum ExecutionMode {
+    PLATFORM,
+    VIRTUAL;
+
+    private static volatile ExecutionMode current = PLATFORM;
+
+    /**
+     * @return the mode selected for this process
+     */
+    public static ExecutionMode current() {
+        return current;
+    }
+
+    /**
+     * Selects the mode for this process. Must be called before the server starts
+     * accepting connections.
+     *
+     * @param mode the mode to use
+     */
+    public static void select(ExecutionMode mode) {
+        current = mode;
+    }
+
+    /**
+     * Creates an executor that runs each submitted client handler on its own
+     * thread of this mode.
+     *
+     * @return a thread-per-task executor
+     */
+    public ExecutorService newConnectionExecutor() {
+        if (this == VIRTUAL) {
+            return ThreadFactories.newThreadPerTaskExecutor(ThreadFactories.virtual("client-"));
+        }
+        return ThreadFactories.newThreadPerTaskExecutor(ThreadFactories.platform("client-", false));
+    }
+
+    /**
+     * Creates an unstarted daemon thread of this mode.
+     *
+     * @param name the thread name
+     * @param task the task to run
+     * @return the new thread
+     */
+    public Thread newThread(String name, Runnable task) {
+        return ThreadFactories.newThread(name, task, this == VIRTUAL);
+    }
+}
@@ -0,0 +1,93 @@
+package broker;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Immutable consistent-hash ring that assigns each topic ID to one broker.
+ * Every broker is placed on the ring at VIRTUAL_NODES points, and a key is
+ * owned by the broker at the first point at or after the key's hash. Brokers
+ * that build a ring from the same members agree on every owner, and adding or
+ * removing a broker only moves the keys next to its points.
+ */
+public final class HashRing {
+    private static final int VIRTUAL_NODES = 128; // Points per broker, to even out the share of each
+
+    private final Set<String> members;
+    private final long[] points; // Sorted hashes of the virtual nodes
+    private final String[] owners; // Broker at each point
+
+    private HashRing(Set<String> members, long[] points, String[] owners) {
+        this.members = members;
+        this.points = points;
+        this.owners = owners;
+    }
+
+    /**
+     * Builds a ring.
+     *
+     * @param members the broker IDs (ip:port), at least one
+     * @return the ring
+     */
+    public static HashRing of(Collection<String> members) {
+        Set<String> sorted = new TreeSet<>(members);
+        List<long[]> nodes = new ArrayList<>(sorted.size() * VIRTUAL_NODES);
+        List<String> names = new ArrayList<>(sorted);
+        for (int m = 0; m < names.size(); m++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                nodes.add(new long[] { hash(names.get(m) + "#" + v), m });
+            }
+        }
+        nodes.sort((a, b) -> Long.compare(a[0], b[0]));
+        long[] points = new long[nodes.size()];
+        String[] owners = new String[nodes.size()];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = nodes.get(i)[0];
+            owners[i] = names.get((int) nodes.get(i)[1]);
+        }
+        return new HashRing(Collections.unmodifiableSet(sorted), points, owners);
+    }
+
+    /**
+     * @param key a topic ID
+     * @return the ID of the broker that owns the key
+     */
+    public String ownerOf(String key) {
+        int index = Arrays.binarySearch(this.points, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return this.owners[index == this.points.length ? 0 : index];
+    }
+
+    /**
+     * @return the broker IDs on the ring, sorted
+     */
+    public Set<String> members() {
+        return this.members;
+    }
+
+    /**
+     * FNV-1a over the UTF-8 bytes, followed by the MurmurHash3 finalizer so that
+     * similar keys such as consecutive topic IDs spread over the whole ring.
+     */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
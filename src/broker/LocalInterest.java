@@ -0,0 +1,212 @@
+package broker;
+
+import protocol.EncodedMessage;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The set of topics followed by the subscribers connected to this broker, and
+ * the peer brokers it is advertised to.
+ * A peer that connects to this broker receives the whole set once, then an
+ * "add" or "remove" delta whenever a topic gains its first local subscriber or
+ * loses its last one. The messages go back over the peer's own replication
+ * connection, where its {@link PeerLink} reads them and stops forwarding
+ * publishes for topics nobody here follows.
+ * When topics are partitioned between brokers, the set is also the routing
+ * state for the topics owned by other brokers: it tells which local
+ * subscribers receive a publish or a deletion forwarded by the owner.
+ */
+public class LocalInterest {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Set<String>> subscribers = new HashMap<>(); // Topic IDs to local subscribers
+    private final List<Connection> listeners = new ArrayList<>(); // Connections of the peer brokers
+
+    /**
+     * Records that a locally connected subscriber follows a topic.
+     *
+     * @param topicId    the ID of the topic
+     * @param subscriber the subscriber's name
+     * @return true if the subscriber was not recorded for the topic yet
+     */
+    public boolean add(String topicId, String subscriber) {
+        this.lock.lock();
+        try {
+            Set<String> followers = this.subscribers.computeIfAbsent(topicId, k -> new HashSet<>());
+            if (!followers.add(subscriber)) {
+                return false;
+            }
+            if (followers.size() == 1) {
+                publish(delta(topicId, "add"));
+            }
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Records that a subscriber no longer follows a topic through this broker.
+     * Does nothing if it was not recorded.
+     *
+     * @param topicId    the ID of the topic
+     * @param subscriber the subscriber's name
+     */
+    public void remove(String topicId, String subscriber) {
+        this.lock.lock();
+        try {
+            Set<String> followers = this.subscribers.get(topicId);
+            if (followers != null && followers.remove(subscriber) && followers.isEmpty()) {
+                this.subscribers.remove(topicId);
+                publish(delta(topicId, "remove"));
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets every topic of a subscriber that has disconnected.
+     *
+     * @param subscriber the subscriber's name
+     */
+    public void removeSubscriber(String subscriber) {
+        this.lock.lock();
+        try {
+            Iterator<Map.Entry<String, Set<String>>> entries = this.subscribers.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<String, Set<String>> entry = entries.next();
+                if (entry.getValue().remove(subscriber) && entry.getValue().isEmpty()) {
+                    entries.remove();
+                    publish(delta(entry.getKey(), "remove"));
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets a deleted topic.
+     *
+     * @param topicId the ID of the topic
+     * @return the local subscribers that were following it
+     */
+    public Set<String> removeTopic(String topicId) {
+        this.lock.lock();
+        try {
+            Set<String> followers = this.subscribers.remove(topicId);
+            if (followers == null) {
+                return Collections.emptySet();
+            }
+            publish(delta(topicId, "remove"));
+            return followers;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @param topicId the ID of the topic
+     * @return a copy of the local subscribers following the topic
+     */
+    public List<String> subscribersOf(String topicId) {
+        this.lock.lock();
+        try {
+            Set<String> followers = this.subscribers.get(topicId);
+            return followers == null ? Collections.emptyList() : new ArrayList<>(followers);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Starts advertising to a peer broker: sends the current set, then every
+     * later change.
+     *
+     * @param connection the connection the peer replicates to this broker on
+     */
+    public void addListener(Connection connection) {
+        this.lock.lock();
+        try {
+            JSONObject message = new JSONObject();
+            message.put("command", "sync");
+            message.put("syncAction", "interest");
+            JSONArray topics = new JSONArray();
+            topics.addAll(this.subscribers.keySet());
+            message.put("topics", topics);
+            this.listeners.add(connection);
+            publish(message);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Stops advertising to a peer broker that has disconnected.
+     *
+     * @param connection the connection of the peer
+     */
+    public void removeListener(Connection connection) {
+        this.lock.lock();
+        try {
+            this.listeners.remove(connection);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of topics followed by local subscribers
+     */
+    public int size() {
+        this.lock.lock();
+        try {
+            return this.subscribers.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private static JSONObject delta(String topicId, String action) {
+        JSONObject message = new JSONObject();
+        message.put("command", "sync");
+        message.put("syncAction", "interest");
+        message.put("topic id", topicId);
+        message.put("action", action);
+        return message;
+    }
+
+    /**
+     * Queues a message on every listener. The caller must hold the lock, so the
+     * deltas reach each peer in the order they happened. A peer whose queue is
+     * full would miss a delta, so it is disconnected instead.
+     */
+    private void publish(JSONObject message) {
+        EncodedMessage encoded = new EncodedMessage(message);
+        for (int i = this.listeners.size() - 1; i >= 0; i--) {
+            Connection connection = this.listeners.get(i);
+            if (!connection.offer(encoded)) {
+                System.out.println("Peer broker " + connection.getRemoteAddress() + ":" + connection.getRemotePort()
+                        + " is not reading interest updates. Disconnecting.");
+                this.listeners.remove(i);
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    // already closed
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package broker;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The retained message logs of all topics of a broker, one {@link TopicLog}
+ * per topic in its own subdirectory. Logs are opened on first use and reopened
+ * with their offsets intact after a restart.
+ */
+public class MessageStore {
+    private final Path directory;
+    private final Map<String, TopicLog> logs = new ConcurrentHashMap<>();
+
+    /**
+     * @param directory the directory holding one subdirectory per topic
+     * @throws IOException if the directory cannot be created
+     */
+    public MessageStore(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    /**
+     * Returns the log of a topic, opening or creating it if needed. A log is
+     * created only while the topic exists, so that a publish finishing after
+     * the topic has been deleted does not bring its log back. The check is made
+     * under the same map entry lock as {@link #delete(String)}.
+     *
+     * @param topicId     the ID of the topic
+     * @param topicExists tells whether the topic still exists
+     * @return the topic's log, or null if the topic no longer exists or its log
+     *         cannot be opened
+     */
+    public TopicLog get(String topicId, BooleanSupplier topicExists) {
+        return this.logs.computeIfAbsent(topicId, id -> {
+            if (!topicExists.getAsBoolean()) {
+                return null;
+            }
+            try {
+                return TopicLog.open(this.directory.resolve(directoryName(id)));
+            } catch (IOException e) {
+                System.out.println("Failed to open the log of topic " + id + ": " + e.getMessage());
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Deletes the log of a deleted topic.
+     *
+     * @param topicId the ID of the topic
+     */
+    public void delete(String topicId) {
+        this.logs.compute(topicId, (id, log) -> {
+            try {
+                if (log == null && Files.isDirectory(this.directory.resolve(directoryName(id)))) {
+                    log = TopicLog.open(this.directory.resolve(directoryName(id)));
+                }
+                if (log != null) {
+                    log.delete();
+                }
+            } catch (IOException e) {
+                System.out.println("Failed to delete the log of topic " + id + ": " + e.getMessage());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Maps a topic ID to a safe directory name. Plain IDs are used as they are;
+     * anything else is hex encoded behind a '%', which no plain ID contains, so
+     * two topics never share a directory.
+     */
+    private static String directoryName(String topicId) {
+        if (topicId.matches("[A-Za-z0-9_-]{1,64}")) {
+            return topicId;
+        }
+        StringBuilder name = new StringBuilder("%");
+        for (byte b : topicId.getBytes(StandardCharsets.UTF_8)) {
+            name.append(String.format("%02x", b));
+        }
+        return name.toString();
+    }
+}
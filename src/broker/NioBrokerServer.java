@@ -0,0 +1,235 @@
+package broker;
+
+import protocol.FrameDecoder;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Alternative broker server built on a java.nio Selector instead of one
+ * {@link ClientHandler} thread per connection.
+ * An acceptor thread accepts connections and hands them round-robin to a small
+ * pool of event loops. Each event loop owns a Selector, decodes JSON lines or
+ * binary frames from its non-blocking channels and feeds every complete
+ * message to the connection's {@link BrokerSession}, so publishers,
+ * subscribers and brokers are served exactly as by the blocking server.
+ * Requests that may block are run by the sessions on a worker executor, so
+ * that an event loop never waits for another broker, for the disk or for a
+ * slow client.
+ */
+public class NioBrokerServer {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private final Broker broker;
+    private final EventLoop[] eventLoops;
+    private final ExecutorService worker; // Runs the requests that may block, off the event loops
+    private int nextLoop;
+
+    /**
+     * Creates the server and its event loops.
+     *
+     * @param broker  the broker that executes the requests
+     * @param threads the number of event loop threads
+     * @throws IOException if a selector cannot be opened
+     */
+    public NioBrokerServer(Broker broker, int threads) throws IOException {
+        this.broker = broker;
+        this.worker = ExecutionMode.current().newConnectionExecutor();
+        this.eventLoops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            this.eventLoops[i] = new EventLoop(i);
+        }
+    }
+
+    /**
+     * Starts the event loops and accepts connections on the given server channel
+     * until it is closed. This method blocks the calling thread.
+     *
+     * @param serverChannel a bound server channel in blocking mode
+     * @throws IOException if accepting fails
+     */
+    public void serve(ServerSocketChannel serverChannel) throws IOException {
+        for (EventLoop eventLoop : this.eventLoops) {
+            eventLoop.start();
+        }
+        while (serverChannel.isOpen()) {
+            SocketChannel channel = serverChannel.accept();
+            System.out.println("Publisher, Subscriber, or Broker is connected");
+            channel.configureBlocking(false);
+            this.eventLoops[this.nextLoop].register(channel);
+            this.nextLoop = (this.nextLoop + 1) % this.eventLoops.length;
+        }
+    }
+
+    /**
+     * Per-channel state kept as the attachment of the selection key.
+     */
+    private static class ChannelState {
+        private final NioConnection connection;
+        private final BrokerSession session;
+        private final FrameDecoder decoder = new FrameDecoder();
+        private boolean disconnected; // Whether the session has been told the connection is gone
+
+        ChannelState(NioConnection connection, BrokerSession session) {
+            this.connection = connection;
+            this.session = session;
+        }
+    }
+
+    /**
+     * An event loop thread with its own Selector.
+     */
+    class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+        private final Queue<NioConnection> flushes = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        EventLoop(int index) throws IOException {
+            super("broker-event-loop-" + index);
+            this.selector = Selector.open();
+            setDaemon(true);
+        }
+
+        /**
+         * Hands a newly accepted channel to this loop.
+         */
+        void register(SocketChannel channel) {
+            this.registrations.add(channel);
+            this.selector.wakeup();
+        }
+
+        /**
+         * Asks this loop to write the pending frames of a connection.
+         */
+        void requestFlush(NioConnection connection) {
+            this.flushes.add(connection);
+            if (Thread.currentThread() != this) {
+                this.selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    this.selector.select();
+                    registerPending();
+                    flushPending();
+
+                    Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ChannelState state = (ChannelState) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                state.connection.flush();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                read(key, state);
+                            }
+                        } catch (IOException | ParseException e) {
+                            disconnect(state);
+                        } catch (RuntimeException e) {
+                            // A malformed message must not end the loop and strand its other connections
+                            System.out.println("Dropping connection after a bad message: " + e);
+                            disconnect(state);
+                        }
+                    }
+                    // Responses produced while handling reads
+                    flushPending();
+                } catch (IOException e) {
+                    System.out.println("Event loop error: " + e.getMessage());
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = this.registrations.poll()) != null) {
+                try {
+                    NioConnection connection = new NioConnection(channel, this);
+                    ChannelState state = new ChannelState(connection, new BrokerSession(broker, connection, worker));
+                    connection.setKey(channel.register(this.selector, SelectionKey.OP_READ, state));
+                } catch (IOException e) {
+                    System.out.println("Failed to register connection: " + e.getMessage());
+                }
+            }
+        }
+
+        private void flushPending() {
+            NioConnection connection;
+            while ((connection = this.flushes.poll()) != null) {
+                try {
+                    connection.flush();
+                } catch (IOException e) {
+                    SelectionKey key = connection.getKey();
+                    if (key != null) {
+                        disconnect((ChannelState) key.attachment());
+                    }
+                }
+            }
+        }
+
+        /**
+         * Reads available bytes and passes every complete message to the session.
+         */
+        private void read(SelectionKey key, ChannelState state) throws IOException, ParseException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            this.readBuffer.clear();
+            int read = channel.read(this.readBuffer);
+            if (read < 0) {
+                disconnect(state);
+                return;
+            }
+            this.readBuffer.flip();
+            state.decoder.append(this.readBuffer);
+            JSONObject message;
+            while ((message = state.decoder.next(state.session.getInputFormat())) != null) {
+                state.session.handleMessage(message);
+            }
+        }
+
+        /**
+         * Closes a connection and lets its session clean up, once.
+         */
+        private void disconnect(ChannelState state) {
+            if (state.disconnected) {
+                return;
+            }
+            state.disconnected = true;
+            try {
+                state.connection.close();
+            } catch (IOException e) {
+                // already closed
+            }
+            state.session.handleDisconnect();
+        }
+    }
+
+    /**
+     * Opens a server channel on the given port.
+     *
+     * @param portNumber the port to listen on
+     * @return the bound server channel, in blocking mode
+     * @throws IOException if the port cannot be bound
+     */
+    static ServerSocketChannel open(int portNumber) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(portNumber));
+        return serverChannel;
+    }
+}
@@ -0,0 +1,197 @@
+package broker;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A Connection backed by a non-blocking SocketChannel that is served by one of
+ * the event loops of {@link NioBrokerServer}.
+ * Sending never blocks: frames are appended to a pending queue and the owning
+ * event loop writes them when the channel becomes writable. Frames offered
+ * through {@link #offer(byte[])} are bounded by the queue capacity, while
+ * direct responses sent with {@link #send(byte[])} are always accepted and,
+ * when sent from the event loop itself, written out immediately.
+ */
+public class NioConnection extends Connection {
+    private static final int MAX_GATHER = 64; // Maximum number of frames handed to one write call
+
+    private final SocketChannel channel;
+    private final NioBrokerServer.EventLoop eventLoop;
+    private final InetSocketAddress remoteAddress;
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final LongAdder dropped = new LongAdder();
+    private SelectionKey key;
+    private boolean closed;
+
+    /**
+     * Wraps an accepted channel.
+     *
+     * @param channel   the non-blocking channel
+     * @param eventLoop the event loop the channel is registered with
+     * @throws IOException if the remote address cannot be determined
+     */
+    NioConnection(SocketChannel channel, NioBrokerServer.EventLoop eventLoop) throws IOException {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+    }
+
+    /**
+     * Sets the selection key once the channel has been registered.
+     *
+     * @param key the key of the channel in the event loop's selector
+     */
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * @return the key of the channel in the event loop's selector, or null
+     *         before registration
+     */
+    SelectionKey getKey() {
+        return this.key;
+    }
+
+    @Override
+    public void send(byte[] frame) throws IOException {
+        synchronized (this) {
+            if (this.closed) {
+                throw new IOException("Connection closed");
+            }
+            this.pending.add(ByteBuffer.wrap(frame));
+        }
+        if (Thread.currentThread() == this.eventLoop) {
+            flush(); // Answer without waiting for the next pass of the loop
+        } else {
+            requestFlush();
+        }
+    }
+
+    @Override
+    public boolean offer(byte[] frame) {
+        synchronized (this) {
+            if (this.closed) {
+                return false;
+            }
+            if (this.pending.size() >= DEFAULT_QUEUE_CAPACITY) {
+                this.dropped.increment();
+                return false;
+            }
+            this.pending.add(ByteBuffer.wrap(frame));
+        }
+        requestFlush();
+        return true;
+    }
+
+    @Override
+    public void awaitDrained(int maxPending, long timeoutMillis) throws IOException {
+        if (Thread.currentThread() == this.eventLoop) {
+            return; // Only the event loop itself writes the frames out
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (this) {
+            while (!this.closed && this.pending.size() > maxPending) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("The client is not reading");
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the client", e);
+                }
+            }
+            if (this.closed) {
+                throw new IOException("Connection closed");
+            }
+        }
+    }
+
+    @Override
+    public synchronized int queueDepth() {
+        return this.pending.size();
+    }
+
+    @Override
+    public long droppedCount() {
+        return this.dropped.sum();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return this.remoteAddress.getAddress().getHostAddress();
+    }
+
+    @Override
+    public int getRemotePort() {
+        return this.remoteAddress.getPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            this.pending.clear();
+            notifyAll();
+        }
+        if (this.key != null) {
+            this.key.cancel();
+        }
+        this.channel.close();
+    }
+
+    /**
+     * Asks the event loop to flush this connection, at most once until the flush
+     * has happened.
+     */
+    private void requestFlush() {
+        if (this.flushRequested.compareAndSet(false, true)) {
+            this.eventLoop.requestFlush(this);
+        }
+    }
+
+    /**
+     * Writes as many pending frames as the channel accepts. Called only from the
+     * event loop thread. Write interest is kept while data remains.
+     *
+     * @throws IOException if the channel cannot be written to
+     */
+    void flush() throws IOException {
+        this.flushRequested.set(false);
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            while (!this.pending.isEmpty()) {
+                ByteBuffer[] buffers = this.pending.stream().limit(MAX_GATHER).toArray(ByteBuffer[]::new);
+                this.channel.write(buffers);
+                while (!this.pending.isEmpty() && !this.pending.peek().hasRemaining()) {
+                    this.pending.poll();
+                }
+                notifyAll(); // Wakes up awaitDrained
+                if (buffers[buffers.length - 1].hasRemaining()) {
+                    break; // The socket buffer is full; wait until the channel is writable
+                }
+            }
+            if (this.key != null && this.key.isValid()) {
+                int ops = SelectionKey.OP_READ;
+                if (!this.pending.isEmpty()) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+                this.key.interestOps(ops);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package broker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded queue of outgoing frames for a single socket connection.
+ * Publishing threads only enqueue messages; a dedicated writer thread drains
+ * the queue and writes to the socket, so a subscriber that reads slowly cannot
+ * stall the publisher or any other client. When the queue is full the message
+ * is dropped for that subscriber and counted. Drops are reported at most once
+ * per DROP_REPORT_INTERVAL_MILLIS, since they happen when the broker is
+ * already overloaded.
+ */
+public class OutboundQueue {
+    private static final int MAX_BATCH = 256; // Maximum number of frames written before a flush
+    private static final long DROP_REPORT_INTERVAL_MILLIS = 5000; // Minimum time between two drop reports
+
+    private final String name;
+    private final SocketConnection connection;
+    private final BlockingQueue<byte[]> queue;
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicLong lastDropReport = new AtomicLong(); // Time of the last drop report, in milliseconds
+    private final Thread writerThread;
+    private volatile boolean closed;
+
+    /**
+     * Creates an outbound queue for a socket connection. The writer thread is
+     * not started until {@link #start()} is called.
+     *
+     * @param name       the remote address, used to name the writer thread
+     * @param connection the connection the queue writes to
+     * @param capacity   the maximum number of messages waiting to be written
+     */
+    public OutboundQueue(String name, SocketConnection connection, int capacity) {
+        this.name = name;
+        this.connection = connection;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.writerThread = ExecutionMode.current().newThread("outbound-" + name, this::drain);
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    public void start() {
+        this.writerThread.start();
+    }
+
+    /**
+     * Queues an encoded frame for delivery without blocking. The same frame may be
+     * queued for many subscribers and must not be modified afterwards.
+     *
+     * @param frame the frame to send to the subscriber
+     * @return true if the frame was queued, false if the queue is full or closed
+     */
+    public boolean offer(byte[] frame) {
+        if (this.closed) {
+            return false;
+        }
+        if (!this.queue.offer(frame)) {
+            this.dropped.increment();
+            reportDrops();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reports the drops so far, unless they were reported less than
+     * DROP_REPORT_INTERVAL_MILLIS ago.
+     */
+    private void reportDrops() {
+        long now = System.currentTimeMillis();
+        long last = this.lastDropReport.get();
+        if (now - last >= DROP_REPORT_INTERVAL_MILLIS && this.lastDropReport.compareAndSet(last, now)) {
+            System.out.println("Outbound queue of " + this.name + " is full. " + this.dropped.sum()
+                    + " messages dropped so far.");
+        }
+    }
+
+    /**
+     * @return the number of messages waiting to be written
+     */
+    public int depth() {
+        return this.queue.size();
+    }
+
+    /**
+     * @return the number of messages dropped because the queue was full
+     */
+    public long droppedCount() {
+        return this.dropped.sum();
+    }
+
+    /**
+     * Stops the writer thread. Messages still in the queue are discarded.
+     */
+    public void close() {
+        this.closed = true;
+        this.writerThread.interrupt();
+    }
+
+    /**
+     * Writer loop: waits for at least one message, then writes everything that
+     * is queued (up to MAX_BATCH frames) and flushes once.
+     */
+    private void drain() {
+        List<byte[]> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (!this.closed) {
+                batch.add(this.queue.take());
+                this.queue.drainTo(batch, MAX_BATCH - 1);
+                this.connection.sendAll(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // The subscriber's socket is no longer writable
+            System.out.println("Failed to write to " + this.name + ": " + e.getMessage());
+        }
+        this.closed = true;
+        this.queue.clear();
+    }
+}
@@ -0,0 +1,434 @@
+package broker;
+
+import protocol.EncodedMessage;
+import protocol.MessageStream;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Replication channel to one peer broker.
+ * Sync frames are put on a bounded queue and written by a sender thread owned
+ * by the link, so a slow or half-dead peer only delays its own queue. A peer
+ * that falls too far behind is isolated: when its queue is full, or its oldest
+ * unsent frame is older than MAX_LAG_MILLIS, the link is closed and removed
+ * instead of blocking the broker or buffering without bound.
+ * A new link first streams the chunks of the broker's state it was created
+ * with, and only then the queued sync frames, so the peer sees the state at the
+ * moment the link was registered followed by every change made after it.
+ * A reader thread receives the peer's {@link LocalInterest} over the same
+ * socket, and {@link #route(List)} drops the publishes for topics that no
+ * subscriber of the peer follows, directly or through a wildcard filter kept in
+ * a {@link SubscriptionTrie}. Until the peer has sent its interest, for
+ * example because it predates interest routing, everything is forwarded.
+ * The peer also introduces itself with its broker ID, and answers requests
+ * forwarded to it with {@link #forward(JSONObject, String)} when topics are
+ * partitioned between brokers.
+ * The link reports its queue depth, throughput and replication lag.
+ */
+public class PeerLink {
+    private static final int QUEUE_CAPACITY = 1024; // Maximum number of frames waiting for the peer
+    private static final int MAX_BATCH = 64; // Maximum number of frames written before a flush
+    private static final long MAX_LAG_MILLIS = 10000; // Lag after which the peer is considered stuck
+
+    private final SocketConnection connection;
+    private final MessageStream stream;
+    private final String name;
+    private final Consumer<PeerLink> onIdentified;
+    private final Consumer<PeerLink> onClose;
+    private final Map<Long, CompletableFuture<JSONObject>> pending = new ConcurrentHashMap<>(); // Forwarded
+                                                                                                // requests by ID
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private volatile String peerId; // Broker ID announced by the peer, null until it has introduced itself
+    private List<JSONObject> snapshot; // State chunks to send before any queued frame, null once sent
+    private final BlockingQueue<Frame> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder publishesSkipped = new LongAdder();
+    private volatile SubscriptionTrie interest; // Topics and filters of the peer's subscribers, null until advertised
+    private volatile Thread senderThread; // Set by start()
+    private volatile long writingSince; // Enqueue time of the oldest frame being written, 0 when idle
+    private volatile boolean closed;
+    private long sampleNanos = System.nanoTime(); // Start of the current throughput sample
+    private long sampleBytes;
+
+    /**
+     * A queued frame and the time it was queued.
+     */
+    private static class Frame {
+        private final byte[] bytes;
+        private final long enqueuedNanos;
+
+        Frame(byte[] bytes, long enqueuedNanos) {
+            this.bytes = bytes;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    /**
+     * Creates the link. Its threads are not started until {@link #start()} is
+     * called.
+     *
+     * @param connection the connection to the peer, after the handshake
+     * @param stream     the stream the handshake was made on, to read the peer's
+     *                   interest from
+     * @param snapshot   the sync messages carrying the broker's state, sent
+     *                   before anything else
+     * @param onIdentified called once the peer has announced its broker ID
+     * @param onClose    called once when the link is closed, to unregister it
+     */
+    public PeerLink(SocketConnection connection, MessageStream stream, List<JSONObject> snapshot,
+            Consumer<PeerLink> onIdentified, Consumer<PeerLink> onClose) {
+        this.connection = connection;
+        this.stream = stream;
+        this.snapshot = snapshot;
+        this.name = connection.getRemoteAddress() + ":" + connection.getRemotePort();
+        this.onIdentified = onIdentified;
+        this.onClose = onClose;
+    }
+
+    /**
+     * Starts the sender and reader threads, once the link is fully built.
+     */
+    public void start() {
+        this.senderThread = ExecutionMode.current().newThread("peer-" + this.name, this::drain);
+        this.senderThread.start();
+        ExecutionMode.current().newThread("peer-reader-" + this.name, this::readPeer).start();
+    }
+
+    /**
+     * @return the IP address of the peer
+     */
+    public String getRemoteAddress() {
+        return this.connection.getRemoteAddress();
+    }
+
+    /**
+     * @return the port number of the peer
+     */
+    public int getRemotePort() {
+        return this.connection.getRemotePort();
+    }
+
+    /**
+     * @return the peer address as ip:port
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Queues a sync message in the peer's wire format without blocking. If the
+     * peer is stuck, the link is closed instead.
+     *
+     * @param message the message to send
+     * @return true if the message was queued
+     */
+    public boolean offer(EncodedMessage message) {
+        if (this.closed) {
+            return false;
+        }
+        if (lagMillis() > MAX_LAG_MILLIS
+                || !this.queue.offer(new Frame(message.bytes(this.connection.getFormat()), System.nanoTime()))) {
+            System.out.println("Peer broker " + this.name + " is not keeping up. Disconnecting.");
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Selects the messages of a sync batch that this peer needs: publishes are
+     * kept only for topics the peer has advertised interest in, and every
+     * other message is kept.
+     *
+     * @param batch the sync messages
+     * @return the batch itself if nothing was dropped, otherwise a new list
+     */
+    public List<JSONObject> route(List<JSONObject> batch) {
+        SubscriptionTrie topics = this.interest;
+        if (topics == null) {
+            return batch;
+        }
+        List<JSONObject> routed = null;
+        for (int i = 0; i < batch.size(); i++) {
+            JSONObject message = batch.get(i);
+            JSONObject kept = route(message, topics);
+            if (kept != message && routed == null) {
+                routed = new ArrayList<>(batch.subList(0, i));
+            }
+            if (routed != null && kept != null) {
+                routed.add(kept);
+            }
+        }
+        return routed == null ? batch : routed;
+    }
+
+    /**
+     * @return the message, a copy of it without the publishes of other topics,
+     *         or null if nothing of it is needed
+     */
+    private JSONObject route(JSONObject message, SubscriptionTrie topics) {
+        Object action = message.get("syncAction");
+        if ("publish".equals(action)) {
+            if (topics.matches((String) message.get("topic id"))) {
+                return message;
+            }
+            this.publishesSkipped.increment();
+            return null;
+        }
+        if ("publishBatch".equals(action)) {
+            JSONArray entries = (JSONArray) message.get("messages");
+            JSONArray kept = new JSONArray();
+            for (Object entry : entries) {
+                if (topics.matches((String) ((JSONObject) entry).get("topic id"))) {
+                    kept.add(entry);
+                }
+            }
+            this.publishesSkipped.add(entries.size() - kept.size());
+            if (kept.size() == entries.size()) {
+                return message;
+            }
+            if (kept.isEmpty()) {
+                return null;
+            }
+            JSONObject copy = new JSONObject(message);
+            copy.put("messages", kept);
+            return copy;
+        }
+        return message;
+    }
+
+    /**
+     * @return the number of publishes not forwarded because the peer has no
+     *         subscriber for their topic
+     */
+    public long publishesSkipped() {
+        return this.publishesSkipped.sum();
+    }
+
+    /**
+     * @return the number of topics the peer has advertised, or -1 before it has
+     */
+    public int interestSize() {
+        SubscriptionTrie topics = this.interest;
+        return topics == null ? -1 : topics.size();
+    }
+
+    /**
+     * @return the broker ID (ip:port) the peer announced, or null before it has
+     */
+    public String getPeerId() {
+        return this.peerId;
+    }
+
+    /**
+     * Sends a client request to the peer, to be executed there on behalf of the
+     * client.
+     *
+     * @param request  the request, as received from the client
+     * @param userName the name of the client
+     * @return the peer's response, completed exceptionally if the link closes
+     *         first
+     */
+    public CompletableFuture<JSONObject> forward(JSONObject request, String userName) {
+        CompletableFuture<JSONObject> response = new CompletableFuture<>();
+        long requestId = this.nextRequestId.incrementAndGet();
+        this.pending.put(requestId, response);
+        JSONObject message = new JSONObject();
+        message.put("command", "sync");
+        message.put("syncAction", "forward");
+        message.put("request id", requestId);
+        message.put("user name", userName);
+        message.put("request", request);
+        if (!offer(new EncodedMessage(message)) || this.closed) {
+            this.pending.remove(requestId);
+            response.completeExceptionally(new IOException("Link to peer broker " + this.name + " is closed"));
+        }
+        return response;
+    }
+
+    /**
+     * @return the number of frames waiting to be written
+     */
+    public int queueDepth() {
+        return this.queue.size();
+    }
+
+    /**
+     * @return the total number of bytes written to the peer
+     */
+    public long bytesSent() {
+        return this.bytesSent.sum();
+    }
+
+    /**
+     * Returns the throughput since the previous call, so a monitor that polls
+     * the stats sees the rate of its own polling interval.
+     *
+     * @return the bytes written per second since the previous call
+     */
+    public synchronized long bytesPerSecond() {
+        long now = System.nanoTime();
+        long bytes = this.bytesSent.sum();
+        long elapsed = Math.max(1, now - this.sampleNanos);
+        long rate = (bytes - this.sampleBytes) * TimeUnit.SECONDS.toNanos(1) / elapsed;
+        this.sampleNanos = now;
+        this.sampleBytes = bytes;
+        return rate;
+    }
+
+    /**
+     * @return how long the oldest unsent frame has been waiting, in milliseconds
+     */
+    public long lagMillis() {
+        long oldest = this.writingSince;
+        if (oldest == 0) {
+            Frame head = this.queue.peek();
+            if (head == null) {
+                return 0;
+            }
+            oldest = head.enqueuedNanos;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest);
+    }
+
+    /**
+     * @return true once the link has been closed
+     */
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Closes the connection to the peer, discards the queue and unregisters the
+     * link. Safe to call more than once.
+     */
+    public void close() {
+        synchronized (this.queue) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+        }
+        Thread sender = this.senderThread;
+        if (sender != null) {
+            sender.interrupt();
+        }
+        this.queue.clear();
+        try {
+            this.connection.close(); // Also unblocks a write stuck on a full socket
+        } catch (IOException e) {
+            // already closed
+        }
+        IOException closed = new IOException("Link to peer broker " + this.name + " is closed");
+        for (Long requestId : this.pending.keySet()) {
+            CompletableFuture<JSONObject> response = this.pending.remove(requestId);
+            if (response != null) {
+                response.completeExceptionally(closed);
+            }
+        }
+        this.onClose.accept(this);
+    }
+
+    /**
+     * Reader loop: handles what the peer sends back over the connection (its
+     * broker ID, its interest and the responses to forwarded requests) until
+     * the connection is closed.
+     */
+    private void readPeer() {
+        try {
+            JSONObject message;
+            while ((message = this.stream.read()) != null) {
+                Object action = message.get("syncAction");
+                if ("hello".equals(action)) {
+                    this.peerId = (String) message.get("broker");
+                    this.onIdentified.accept(this);
+                    continue;
+                }
+                if ("forwarded".equals(action)) {
+                    CompletableFuture<JSONObject> response = this.pending
+                            .remove(((Number) message.get("request id")).longValue());
+                    if (response != null) {
+                        response.complete((JSONObject) message.get("response"));
+                    }
+                    continue;
+                }
+                if (!"interest".equals(action)) {
+                    continue;
+                }
+                JSONArray topics = (JSONArray) message.get("topics");
+                if (topics != null) {
+                    SubscriptionTrie advertised = new SubscriptionTrie();
+                    for (Object topicId : topics) {
+                        advertised.add((String) topicId, this.name);
+                    }
+                    this.interest = advertised;
+                } else if (this.interest != null) {
+                    if ("add".equals(message.get("action"))) {
+                        this.interest.add((String) message.get("topic id"), this.name);
+                    } else {
+                        this.interest.remove((String) message.get("topic id"), this.name);
+                    }
+                }
+            }
+        } catch (IOException | ParseException e) {
+            if (!this.closed) {
+                System.out.println("Lost connection to peer broker " + this.name + ": " + e.getMessage());
+            }
+        }
+        close();
+    }
+
+    /**
+     * Sender loop: streams the snapshot, then waits for at least one frame and
+     * writes everything that is queued (up to MAX_BATCH frames) and flushes once.
+     */
+    private void drain() {
+        List<Frame> batch = new ArrayList<>(MAX_BATCH);
+        List<byte[]> frames = new ArrayList<>(MAX_BATCH);
+        try {
+            for (JSONObject chunk : this.snapshot) {
+                byte[] frame = new EncodedMessage(chunk).bytes(this.connection.getFormat());
+                this.connection.send(frame);
+                this.bytesSent.add(frame.length);
+            }
+            this.snapshot = null;
+            while (!this.closed) {
+                batch.add(this.queue.take());
+                this.queue.drainTo(batch, MAX_BATCH - 1);
+                long bytes = 0;
+                for (Frame frame : batch) {
+                    frames.add(frame.bytes);
+                    bytes += frame.bytes.length;
+                }
+                this.writingSince = batch.get(0).enqueuedNanos;
+                this.connection.sendAll(frames);
+                this.writingSince = 0;
+                this.bytesSent.add(bytes);
+                batch.clear();
+                frames.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            if (!this.closed) {
+                System.out.println("Lost connection to peer broker " + this.name + ": " + e.getMessage());
+            }
+        }
+        close();
+    }
+}
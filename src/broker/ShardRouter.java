@@ -0,0 +1,397 @@
+package broker;
+
+import protocol.TopicNames;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Routes client requests when each topic is owned by a single broker.
+ * The owner of a topic ID is chosen on a {@link HashRing} built from this
+ * broker and the peers it is linked to, which with '-d' are the brokers listed
+ * by the Directory Service. Requests about one topic (create, publish, delete,
+ * subscribe, unsubscribe) are executed by the owner: locally, or forwarded over
+ * the owner's {@link PeerLink} while the client waits for the answer, and
+ * batches (publishBatch, subscribeBatch) are split by owner. Requests about all
+ * topics (list, showCurrentSubscription, countSubscriber) are sent to every
+ * broker and the answers are merged.
+ * <p>
+ * The other brokers keep only routing state: the topics followed by their own
+ * subscribers, kept in {@link LocalInterest}, through which the owner's
+ * publishes and deletions reach them.
+ * Topic filters with wildcards are refused, since the topics they match may be
+ * owned by any broker.
+ */
+public class ShardRouter {
+    private static final long FORWARD_TIMEOUT_SECONDS = 5; // Maximum wait for the owner of a topic
+
+    private final String selfId;
+    private final LocalInterest localInterest;
+    private final List<PeerLink> peers;
+    private final ReentrantLock lock = new ReentrantLock(); // Serializes ring rebuilds
+    private volatile HashRing ring;
+
+    /**
+     * Creates a router whose ring holds only this broker until peers identify
+     * themselves.
+     *
+     * @param selfId        the ID (ip:port) of this broker
+     * @param localInterest the topics followed by the local subscribers
+     * @param peers         the live list of peer broker links
+     */
+    public ShardRouter(String selfId, LocalInterest localInterest, List<PeerLink> peers) {
+        this.selfId = selfId;
+        this.localInterest = localInterest;
+        this.peers = peers;
+        this.ring = HashRing.of(List.of(selfId));
+    }
+
+    /**
+     * Rebuilds the ring from this broker and the identified peer links.
+     *
+     * @return true if the members of the ring have changed
+     */
+    public boolean rebuild() {
+        this.lock.lock();
+        try {
+            List<String> members = new ArrayList<>();
+            members.add(this.selfId);
+            for (PeerLink peer : this.peers) {
+                if (peer.getPeerId() != null && !peer.isClosed()) {
+                    members.add(peer.getPeerId());
+                }
+            }
+            HashRing next = HashRing.of(members);
+            if (next.members().equals(this.ring.members())) {
+                return false;
+            }
+            this.ring = next;
+            System.out.println("Topic owners: " + next.members());
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @param topicId the ID of a topic
+     * @return true if this broker owns the topic
+     */
+    public boolean ownsTopic(String topicId) {
+        return this.selfId.equals(this.ring.ownerOf(topicId));
+    }
+
+    /**
+     * @param topicId the ID of a topic
+     * @return the link to the broker owning the topic, or null if this broker
+     *         owns it or the owner is no longer linked
+     */
+    public PeerLink linkFor(String topicId) {
+        String owner = this.ring.ownerOf(topicId);
+        if (this.selfId.equals(owner)) {
+            return null;
+        }
+        for (PeerLink peer : this.peers) {
+            if (owner.equals(peer.getPeerId()) && !peer.isClosed()) {
+                return peer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Executes a client request on the broker that owns its topic.
+     *
+     * @param command  the command of the request
+     * @param request  the request
+     * @param userName the name of the client
+     * @param local    executes a request on this broker
+     * @return the response for the client
+     */
+    public JSONObject handle(String command, JSONObject request, String userName,
+            Function<JSONObject, JSONObject> local) {
+        if (command == null) {
+            return local.apply(request);
+        }
+        switch (command) {
+            case "create":
+            case "publish":
+            case "delete":
+                return toOwner((String) request.get("topic id"), request, userName, local);
+            case "subscribe":
+                return subscribe(request, userName, local);
+            case "unsubscribe":
+                return unsubscribe(request, userName, local);
+            case "publishBatch":
+                return publishBatch(request, userName, local);
+            case "subscribeBatch":
+                return subscribeBatch(request, userName, local);
+            case "list":
+            case "showCurrentSubscription":
+            case "countSubscriber":
+                return gather(request, userName, local);
+            default:
+                return local.apply(request);
+        }
+    }
+
+    /**
+     * Executes a request on the owner of a topic.
+     */
+    private JSONObject toOwner(String topicId, JSONObject request, String userName,
+            Function<JSONObject, JSONObject> local) {
+        if (topicId == null || ownsTopic(topicId)) {
+            return local.apply(request);
+        }
+        PeerLink owner = linkFor(topicId);
+        if (owner == null) {
+            return failed("the broker owning topic " + topicId + " is not reachable");
+        }
+        return await(owner.forward(request, userName), owner);
+    }
+
+    /**
+     * Subscribes on the owner of the topic. The topic is recorded as followed
+     * here first, so that the owner forwards its publishes as soon as the
+     * subscription exists.
+     */
+    private JSONObject subscribe(JSONObject request, String userName, Function<JSONObject, JSONObject> local) {
+        String topicId = (String) request.get("topic id");
+        if (topicId != null && TopicNames.isWildcard(topicId)) {
+            return failed("topic filters are not supported when topics are partitioned");
+        }
+        if (topicId == null || ownsTopic(topicId)) {
+            return local.apply(request);
+        }
+        boolean added = this.localInterest.add(topicId, userName);
+        JSONObject response = toOwner(topicId, request, userName, local);
+        if (added && !"success".equals(response.get("result"))) {
+            this.localInterest.remove(topicId, userName);
+        }
+        return response;
+    }
+
+    /**
+     * Unsubscribes on the owner of the topic and stops following it here.
+     */
+    private JSONObject unsubscribe(JSONObject request, String userName, Function<JSONObject, JSONObject> local) {
+        String topicId = (String) request.get("topic id");
+        if (topicId == null || ownsTopic(topicId)) {
+            return local.apply(request);
+        }
+        JSONObject response = toOwner(topicId, request, userName, local);
+        if ("success".equals(response.get("result"))) {
+            this.localInterest.remove(topicId, userName);
+        }
+        return response;
+    }
+
+    /**
+     * Splits a batch by owner, sends each part to its owner and merges the
+     * answers.
+     */
+    private JSONObject publishBatch(JSONObject request, String userName, Function<JSONObject, JSONObject> local) {
+        JSONArray messages = (JSONArray) request.get("messages");
+        if (messages == null || messages.isEmpty()) {
+            return local.apply(request);
+        }
+        Map<PeerLink, JSONArray> remote = new HashMap<>();
+        JSONArray own = new JSONArray();
+        JSONArray failedTopics = new JSONArray();
+        for (Object item : messages) {
+            String topicId = (String) ((JSONObject) item).get("topic id");
+            if (topicId == null || ownsTopic(topicId)) {
+                own.add(item);
+                continue;
+            }
+            PeerLink owner = linkFor(topicId);
+            if (owner == null) {
+                failedTopics.add(topicId);
+            } else {
+                remote.computeIfAbsent(owner, k -> new JSONArray()).add(item);
+            }
+        }
+
+        Map<PeerLink, CompletableFuture<JSONObject>> pending = new HashMap<>();
+        for (Map.Entry<PeerLink, JSONArray> part : remote.entrySet()) {
+            pending.put(part.getKey(), part.getKey().forward(withItems(request, "messages", part.getValue()), userName));
+        }
+        List<JSONObject> responses = new ArrayList<>();
+        if (!own.isEmpty()) {
+            responses.add(local.apply(withItems(request, "messages", own)));
+        }
+        for (Map.Entry<PeerLink, CompletableFuture<JSONObject>> answer : pending.entrySet()) {
+            JSONObject response = await(answer.getValue(), answer.getKey());
+            if (response.get("count") == null) {
+                for (Object item : remote.get(answer.getKey())) {
+                    failedTopics.add(((JSONObject) item).get("topic id"));
+                }
+            } else {
+                responses.add(response);
+            }
+        }
+
+        long published = sumCounts(responses, failedTopics);
+        JSONObject response = new JSONObject();
+        response.put("result", failedTopics.isEmpty() ? "success" : "failed");
+        response.put("detail", published + " of " + messages.size() + " messages have been published!");
+        response.put("count", published + "");
+        response.put("failed topics", failedTopics);
+        return response;
+    }
+
+    /**
+     * Splits a bulk subscription by owner, like {@link #subscribe}: the topics
+     * owned by other brokers are recorded as followed here before the request
+     * is forwarded, and dropped again if the owner rejects them.
+     */
+    private JSONObject subscribeBatch(JSONObject request, String userName, Function<JSONObject, JSONObject> local) {
+        JSONArray topics = (JSONArray) request.get("topics");
+        if (topics == null || topics.isEmpty()) {
+            return local.apply(request);
+        }
+        Map<PeerLink, JSONArray> remote = new HashMap<>();
+        JSONArray own = new JSONArray();
+        JSONArray failedTopics = new JSONArray();
+        for (Object item : topics) {
+            String topicId = (String) item;
+            if (TopicNames.isWildcard(topicId)) {
+                failedTopics.add(topicId); // Filters would have to match topics on every owner
+                continue;
+            }
+            if (ownsTopic(topicId)) {
+                own.add(topicId);
+                continue;
+            }
+            PeerLink owner = linkFor(topicId);
+            if (owner == null) {
+                failedTopics.add(topicId);
+            } else {
+                this.localInterest.add(topicId, userName);
+                remote.computeIfAbsent(owner, k -> new JSONArray()).add(topicId);
+            }
+        }
+
+        Map<PeerLink, CompletableFuture<JSONObject>> pending = new HashMap<>();
+        for (Map.Entry<PeerLink, JSONArray> part : remote.entrySet()) {
+            pending.put(part.getKey(), part.getKey().forward(withItems(request, "topics", part.getValue()), userName));
+        }
+        List<JSONObject> responses = new ArrayList<>();
+        if (!own.isEmpty()) {
+            responses.add(local.apply(withItems(request, "topics", own)));
+        }
+        for (Map.Entry<PeerLink, CompletableFuture<JSONObject>> answer : pending.entrySet()) {
+            JSONObject response = await(answer.getValue(), answer.getKey());
+            if (response.get("count") == null) {
+                failedTopics.addAll(remote.get(answer.getKey()));
+            } else {
+                responses.add(response);
+            }
+        }
+
+        long subscribed = sumCounts(responses, failedTopics);
+        for (Object topicId : failedTopics) {
+            if (!ownsTopic((String) topicId)) {
+                this.localInterest.remove((String) topicId, userName);
+            }
+        }
+        JSONObject response = new JSONObject();
+        response.put("message type", "response");
+        response.put("result", failedTopics.isEmpty() ? "success" : "failed");
+        response.put("detail", subscribed + " of " + topics.size() + " subscriptions have been restored!");
+        response.put("count", subscribed + "");
+        response.put("failed topics", failedTopics);
+        return response;
+    }
+
+    /**
+     * Adds up the "count" of the answers to the parts of a batch, and collects
+     * their "failed topics".
+     */
+    private static long sumCounts(List<JSONObject> responses, JSONArray failedTopics) {
+        long count = 0;
+        for (JSONObject response : responses) {
+            count += Long.parseLong(response.get("count").toString());
+            JSONArray failed = (JSONArray) response.get("failed topics");
+            if (failed != null) {
+                failedTopics.addAll(failed);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Sends a request to every broker and concatenates the "detail" lists of
+     * the successful answers. The first answer is kept as the frame of the
+     * response, so a request that finds nothing anywhere is answered as by a
+     * single broker.
+     */
+    private JSONObject gather(JSONObject request, String userName, Function<JSONObject, JSONObject> local) {
+        Map<PeerLink, CompletableFuture<JSONObject>> pending = new HashMap<>();
+        for (PeerLink peer : this.peers) {
+            if (peer.getPeerId() != null && !peer.isClosed()) {
+                pending.put(peer, peer.forward(request, userName));
+            }
+        }
+        JSONObject response = local.apply(request);
+        JSONArray detail = new JSONArray();
+        if ("success".equals(response.get("result"))) {
+            detail.addAll((JSONArray) response.get("detail"));
+        }
+        for (Map.Entry<PeerLink, CompletableFuture<JSONObject>> answer : pending.entrySet()) {
+            JSONObject part = await(answer.getValue(), answer.getKey());
+            if ("success".equals(part.get("result"))) {
+                detail.addAll((JSONArray) part.get("detail"));
+            }
+        }
+        if (!detail.isEmpty()) {
+            response.put("result", "success");
+            response.put("detail", detail);
+        }
+        return response;
+    }
+
+    /**
+     * Waits for the answer of a forwarded request. Under an event loop the
+     * session runs routed requests on its worker, so only that request waits.
+     *
+     * @return the answer, or a failed response if the owner did not answer in
+     *         time
+     */
+    private JSONObject await(CompletableFuture<JSONObject> response, PeerLink owner) {
+        try {
+            return response.get(FORWARD_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return failed("interrupted while waiting for broker " + owner.getPeerId());
+        } catch (ExecutionException | TimeoutException e) {
+            return failed("broker " + owner.getPeerId() + " did not answer");
+        }
+    }
+
+    private static JSONObject withItems(JSONObject request, String key, JSONArray items) {
+        JSONObject part = new JSONObject();
+        part.putAll(request);
+        part.put(key, items);
+        return part;
+    }
+
+    private static JSONObject failed(String detail) {
+        JSONObject response = new JSONObject();
+        response.put("message type", "response");
+        response.put("result", "failed");
+        response.put("detail", detail);
+        return response;
+    }
+}
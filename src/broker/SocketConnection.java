@@ -0,0 +1,131 @@
+package broker;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A Connection backed by a blocking socket.
+ * The connection owns a single buffered output stream that is reused for every
+ * message sent over the socket. Frames are buffered until the caller flushes,
+ * so a batch of messages costs one system call instead of one per line.
+ * The outbound queue and its writer thread are created on the first
+ * {@link #offer(byte[])}, so publisher and peer connections never start one.
+ * Writes are serialized with a ReentrantLock instead of a monitor so that a
+ * virtual thread blocked on a full socket does not pin its carrier thread.
+ */
+public class SocketConnection extends Connection {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final Socket socket;
+    private final BufferedOutputStream out;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile OutboundQueue outbound;
+    private volatile boolean closed;
+
+    /**
+     * Wraps a connected socket.
+     *
+     * @param socket the connected socket
+     * @throws IOException if the socket's output stream cannot be opened
+     */
+    public SocketConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+    }
+
+    /**
+     * @return the underlying socket
+     */
+    public Socket getSocket() {
+        return this.socket;
+    }
+
+    @Override
+    public void send(byte[] frame) throws IOException {
+        this.writeLock.lock();
+        try {
+            this.out.write(frame);
+            this.out.flush();
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends a batch of pre-encoded frames and flushes once after the last one.
+     *
+     * @param frames the frames to send
+     * @throws IOException if the socket cannot be written to
+     */
+    public void sendAll(List<byte[]> frames) throws IOException {
+        this.writeLock.lock();
+        try {
+            for (byte[] frame : frames) {
+                this.out.write(frame);
+            }
+            this.out.flush();
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(byte[] frame) {
+        OutboundQueue queue = this.outbound;
+        if (queue == null) {
+            synchronized (this) {
+                if (this.closed) {
+                    return false;
+                }
+                if (this.outbound == null) {
+                    this.outbound = new OutboundQueue(getRemoteAddress() + ":" + getRemotePort(), this,
+                            DEFAULT_QUEUE_CAPACITY);
+                    this.outbound.start();
+                }
+                queue = this.outbound;
+            }
+        }
+        return queue.offer(frame);
+    }
+
+    @Override
+    public int queueDepth() {
+        OutboundQueue queue = this.outbound;
+        return queue == null ? 0 : queue.depth();
+    }
+
+    @Override
+    public long droppedCount() {
+        OutboundQueue queue = this.outbound;
+        return queue == null ? 0 : queue.droppedCount();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return this.socket.getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public int getRemotePort() {
+        return this.socket.getPort();
+    }
+
+    /**
+     * Stops the writer thread, if any, and closes the underlying socket.
+     */
+    @Override
+    public void close() throws IOException {
+        OutboundQueue queue;
+        synchronized (this) {
+            this.closed = true;
+            queue = this.outbound;
+        }
+        if (queue != null) {
+            queue.close();
+        }
+        this.socket.close();
+    }
+}
@@ -0,0 +1,199 @@
+package broker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact binary image of a broker's topics and subscriptions, written in the
+ * background while requests keep being served.
+ * <p>
+ * The file holds the topics as (ID, name, publisher) entries and the
+ * subscriptions as (subscriber, topic IDs) entries, each list ended by a zero
+ * byte, followed by the CRC32 of everything before it. Every string is written
+ * once; later occurrences refer to it by number, so topic IDs and client names
+ * repeated across subscriptions cost a varint each.
+ * <p>
+ * The maps are read while they change, so the image is not a point in time.
+ * It is made consistent by replaying the write-ahead log records appended
+ * since the log was rotated, just before the image was started: every record
+ * sets a topic or subscription to a given state, so replaying it over a newer
+ * state gives the same result.
+ */
+public class StateSnapshot {
+    private static final int MAGIC = 0x50535331; // "PSS1"
+
+    private StateSnapshot() {
+    }
+
+    /**
+     * Writes an image of the tables to a temporary file, forces it to disk and
+     * moves it over the previous snapshot.
+     *
+     * @param path            the snapshot file
+     * @param topicList       topic IDs to topic names
+     * @param publisherTopic  topic IDs to publisher names
+     * @param subscriberTopic subscriber names to subscribed topic IDs
+     * @return the size of the snapshot in bytes
+     * @throws IOException if the snapshot cannot be written
+     */
+    public static long write(Path path, Map<String, String> topicList, Map<String, String> publisherTopic,
+            Map<String, Set<String>> subscriberTopic) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16),
+                    new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            StringTable strings = new StringTable(out);
+            out.writeInt(MAGIC);
+            for (Map.Entry<String, String> topic : topicList.entrySet()) {
+                String publisher = publisherTopic.get(topic.getKey());
+                if (publisher == null) {
+                    continue; // Deleted while the snapshot was being written
+                }
+                out.writeByte(1);
+                strings.write(topic.getKey());
+                strings.write(topic.getValue());
+                strings.write(publisher);
+            }
+            out.writeByte(0);
+            for (Map.Entry<String, Set<String>> subscriber : subscriberTopic.entrySet()) {
+                List<String> topics = new ArrayList<>(subscriber.getValue());
+                if (topics.isEmpty()) {
+                    continue;
+                }
+                out.writeByte(1);
+                strings.write(subscriber.getKey());
+                writeVarint(out, topics.size());
+                for (String topicId : topics) {
+                    strings.write(topicId);
+                }
+            }
+            out.writeByte(0);
+            out.flush();
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            channel.force(false);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return Files.size(path);
+    }
+
+    /**
+     * Loads a snapshot into empty tables.
+     *
+     * @param path            the snapshot file
+     * @param topicList       receives topic IDs to topic names
+     * @param publisherTopic  receives topic IDs to publisher names
+     * @param subscriberTopic receives subscriber names to subscribed topic IDs
+     * @throws IOException if the snapshot cannot be read or is corrupt
+     */
+    public static void read(Path path, Map<String, String> topicList, Map<String, String> publisherTopic,
+            Map<String, Set<String>> subscriberTopic) throws IOException {
+        try (CheckedInputStream checked = new CheckedInputStream(
+                new BufferedInputStream(Files.newInputStream(path), 1 << 16), new CRC32())) {
+            DataInputStream in = new DataInputStream(checked);
+            List<String> strings = new ArrayList<>();
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a broker snapshot: " + path);
+            }
+            while (in.readByte() != 0) {
+                String topicId = readString(in, strings);
+                topicList.put(topicId, readString(in, strings));
+                publisherTopic.put(topicId, readString(in, strings));
+            }
+            while (in.readByte() != 0) {
+                String subscriber = readString(in, strings);
+                Set<String> topics = subscriberTopic.computeIfAbsent(subscriber,
+                        k -> ConcurrentHashMap.newKeySet());
+                for (int count = readVarint(in); count > 0; count--) {
+                    topics.add(readString(in, strings));
+                }
+            }
+            int expected = (int) checked.getChecksum().getValue();
+            if (in.readInt() != expected) {
+                throw new IOException("Corrupt snapshot: " + path);
+            }
+        }
+    }
+
+    /**
+     * Reads a string written by {@link StringTable#write(String)}.
+     */
+    private static String readString(DataInputStream in, List<String> strings) throws IOException {
+        int reference = readVarint(in);
+        if (reference == 0) {
+            String value = in.readUTF();
+            strings.add(value);
+            return value;
+        }
+        if (reference > strings.size()) {
+            throw new IOException("Corrupt snapshot: unknown string " + reference);
+        }
+        return strings.get(reference - 1);
+    }
+
+    private static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in snapshot");
+    }
+
+    /**
+     * Writes each distinct string once: a zero followed by the string the first
+     * time, and its number afterwards.
+     */
+    private static class StringTable {
+        private final DataOutputStream out;
+        private final Map<String, Integer> numbers = new HashMap<>();
+
+        StringTable(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void write(String value) throws IOException {
+            Integer number = this.numbers.get(value);
+            if (number != null) {
+                writeVarint(this.out, number);
+                return;
+            }
+            writeVarint(this.out, 0);
+            this.out.writeUTF(value);
+            this.numbers.put(value, this.numbers.size() + 1);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package broker;
+
+import protocol.TopicNames;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Topic filters, stored level by level in a trie, with the subscribers that
+ * follow each of them.
+ * The subscribers of a published topic are found by walking the topic's levels
+ * from the root: at each node, the child for the next level and the "+" child
+ * are followed, and the "#" child matches the rest of the topic. The cost
+ * depends on the depth of the topic and on the filters that actually match it,
+ * not on how many filters are stored.
+ * Lookups share a read lock, so concurrent publishes do not wait for each
+ * other.
+ */
+public class SubscriptionTrie {
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Node root = new Node();
+    private int size; // Number of filter and subscriber pairs
+
+    /**
+     * A level of the trie.
+     */
+    private static class Node {
+        private final Map<String, Node> children = new HashMap<>(); // Next levels, including "+" and "#"
+        private final Set<String> subscribers = new HashSet<>(); // Followers of the filter ending here
+    }
+
+    /**
+     * Records that a subscriber follows a filter.
+     *
+     * @param filter     a valid topic filter
+     * @param subscriber the subscriber's name
+     * @return true if the subscriber did not follow the filter yet
+     */
+    public boolean add(String filter, String subscriber) {
+        this.lock.writeLock().lock();
+        try {
+            Node node = this.root;
+            for (String level : TopicNames.levels(filter)) {
+                node = node.children.computeIfAbsent(level, k -> new Node());
+            }
+            if (!node.subscribers.add(subscriber)) {
+                return false;
+            }
+            this.size++;
+            return true;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Records that a subscriber no longer follows a filter, and drops the
+     * levels no other filter uses.
+     *
+     * @param filter     a topic filter
+     * @param subscriber the subscriber's name
+     * @return true if the subscriber was following the filter
+     */
+    public boolean remove(String filter, String subscriber) {
+        this.lock.writeLock().lock();
+        try {
+            String[] levels = TopicNames.levels(filter);
+            List<Node> path = new ArrayList<>(levels.length + 1);
+            Node node = this.root;
+            path.add(node);
+            for (String level : levels) {
+                node = node.children.get(level);
+                if (node == null) {
+                    return false;
+                }
+                path.add(node);
+            }
+            if (!node.subscribers.remove(subscriber)) {
+                return false;
+            }
+            this.size--;
+            for (int i = levels.length; i > 0; i--) {
+                Node child = path.get(i);
+                if (!child.subscribers.isEmpty() || !child.children.isEmpty()) {
+                    break;
+                }
+                path.get(i - 1).children.remove(levels[i - 1]);
+            }
+            return true;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param topicId the ID of a published topic
+     * @return the subscribers of every filter that matches the topic
+     */
+    public Set<String> match(String topicId) {
+        this.lock.readLock().lock();
+        try {
+            if (this.size == 0) {
+                return Collections.emptySet();
+            }
+            Set<String> subscribers = new HashSet<>();
+            collect(this.root, TopicNames.levels(topicId), 0, subscribers);
+            return subscribers;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param topicId the ID of a published topic
+     * @return true if some filter matches the topic
+     */
+    public boolean matches(String topicId) {
+        return !match(topicId).isEmpty();
+    }
+
+    /**
+     * @return the number of filter and subscriber pairs
+     */
+    public int size() {
+        this.lock.readLock().lock();
+        try {
+            return this.size;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    private static void collect(Node node, String[] levels, int depth, Set<String> subscribers) {
+        Node rest = node.children.get(TopicNames.MULTI_LEVEL);
+        if (rest != null) {
+            subscribers.addAll(rest.subscribers);
+        }
+        if (depth == levels.length) {
+            subscribers.addAll(node.subscribers);
+            return;
+        }
+        Node exact = node.children.get(levels[depth]);
+        if (exact != null) {
+            collect(exact, levels, depth + 1, subscribers);
+        }
+        Node any = node.children.get(TopicNames.SINGLE_LEVEL);
+        if (any != null) {
+            collect(any, levels, depth + 1, subscribers);
+        }
+    }
+}
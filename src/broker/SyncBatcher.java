@@ -0,0 +1,191 @@
+package broker;
+
+import protocol.EncodedMessage;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Collects the sync messages a broker sends to its peers and sends them in
+ * batches.
+ * Callers only append to a buffer; a sender thread waits until the buffer holds
+ * MAX_BATCH messages or the oldest message is FLUSH_DELAY_MICROS old, then
+ * wraps the buffered messages in one sync message with the "batch" action and
+ * queues it on every {@link PeerLink} as a single frame. The sender never
+ * waits for a peer; each link writes to its own socket. Messages keep the order
+ * in which
+ * they were added, so callers that add under a topic lock keep the per-topic
+ * order of the sync traffic.
+ * Taking a batch and queueing it on the peers happen under a separate send
+ * lock, so {@link #flush()} can draw a line in the sync stream: every message
+ * added before it has been queued on the peers known at that moment.
+ */
+public class SyncBatcher {
+    private static final int MAX_BATCH = 512; // Maximum number of sync messages per frame
+    private static final long FLUSH_DELAY_MICROS = 1000; // Maximum time a sync message waits for a batch
+
+    private final List<PeerLink> peers;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ReentrantLock sendLock = new ReentrantLock(); // Held while a batch is taken and queued
+    private final Condition ready = this.lock.newCondition();
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder framesSent = new LongAdder();
+    private List<JSONObject> buffer = new ArrayList<>();
+    private long oldestNanos; // When the oldest buffered message was added
+
+    /**
+     * Creates the batcher. Its sender thread is not started until
+     * {@link #start()} is called.
+     *
+     * @param peers the live list of peer broker links
+     */
+    public SyncBatcher(List<PeerLink> peers) {
+        this.peers = peers;
+    }
+
+    /**
+     * Starts the sender thread.
+     */
+    public void start() {
+        ExecutionMode.current().newThread("sync-batcher", this::run).start();
+    }
+
+    /**
+     * Adds a sync message to the current batch. Never blocks on the network.
+     *
+     * @param syncMessage the sync message, which must not be modified afterwards
+     */
+    public void add(JSONObject syncMessage) {
+        this.lock.lock();
+        try {
+            if (this.buffer.isEmpty()) {
+                this.oldestNanos = System.nanoTime();
+                this.ready.signal();
+            }
+            this.buffer.add(syncMessage);
+            if (this.buffer.size() == MAX_BATCH) {
+                this.ready.signal();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Queues every buffered message on the peers right away. Used when a peer
+     * is added, so that messages from before it joined are not sent to it.
+     */
+    public void flush() {
+        this.sendLock.lock();
+        try {
+            List<JSONObject> batch = takeBatch();
+            if (!batch.isEmpty()) {
+                send(batch);
+            }
+        } finally {
+            this.sendLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of sync messages queued for the peers
+     */
+    public long messagesSent() {
+        return this.messagesSent.sum();
+    }
+
+    /**
+     * @return the number of frames queued for each peer
+     */
+    public long framesSent() {
+        return this.framesSent.sum();
+    }
+
+    /**
+     * Sender loop: waits for a full batch or the flush deadline, then sends the
+     * batch to every peer.
+     */
+    private void run() {
+        try {
+            while (true) {
+                this.lock.lock();
+                try {
+                    while (this.buffer.isEmpty()) {
+                        this.ready.await();
+                    }
+                    long deadline = this.oldestNanos + TimeUnit.MICROSECONDS.toNanos(FLUSH_DELAY_MICROS);
+                    long remaining;
+                    while (this.buffer.size() < MAX_BATCH && (remaining = deadline - System.nanoTime()) > 0) {
+                        this.ready.awaitNanos(remaining);
+                    }
+                } finally {
+                    this.lock.unlock();
+                }
+                flush(); // The buffer may have been flushed for a new peer in the meantime
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Takes the buffered messages.
+     *
+     * @return the messages in the order they were added, possibly none
+     */
+    private List<JSONObject> takeBatch() {
+        this.lock.lock();
+        try {
+            List<JSONObject> batch = this.buffer;
+            this.buffer = new ArrayList<>();
+            return batch;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Encodes a batch once and queues it on every peer link. A peer that does
+     * not need some of the publishes in the batch gets its own smaller frame.
+     *
+     * @param batch the sync messages in the order they were added
+     */
+    private void send(List<JSONObject> batch) {
+        EncodedMessage message = new EncodedMessage(frame(batch)); // Encode once per format for all peers
+
+        for (PeerLink peer : this.peers) {
+            List<JSONObject> routed = peer.route(batch);
+            if (routed == batch) {
+                peer.offer(message); // A stuck peer is disconnected by its link
+            } else if (!routed.isEmpty()) {
+                peer.offer(new EncodedMessage(frame(routed)));
+            }
+        }
+        this.messagesSent.add(batch.size());
+        this.framesSent.increment();
+    }
+
+    /**
+     * Wraps sync messages in one "batch" sync message. A batch of one message
+     * is sent as that message alone.
+     */
+    private static JSONObject frame(List<JSONObject> batch) {
+        if (batch.size() == 1) {
+            return batch.get(0);
+        }
+        JSONArray messages = new JSONArray();
+        messages.addAll(batch);
+        JSONObject frame = new JSONObject();
+        frame.put("command", "sync");
+        frame.put("syncAction", "batch");
+        frame.put("messages", messages);
+        return frame;
+    }
+}
@@ -0,0 +1,310 @@
+package broker;
+
+import protocol.BinaryCodec;
+
+import org.json.simple.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Retained message log of a single topic, stored in memory-mapped segment
+ * files so that retained messages stay off the Java heap.
+ * <p>
+ * Every appended broadcast gets the next offset of the topic, starting at 0.
+ * A segment is a file of SEGMENT_SIZE bytes named after the offset of its first
+ * message; each record is a 4-byte length followed by the broadcast encoded as
+ * a binary frame (see {@link BinaryCodec}), and a zero length marks the end of
+ * the written part. When a segment is full a new one is started, and only the
+ * newest MAX_SEGMENTS segments are kept. Each segment keeps the position of
+ * every INDEX_INTERVAL-th record in memory, so a read starts close to the
+ * requested offset instead of scanning the segment from its beginning.
+ * <p>
+ * The log has its own lock. The broker holds it while it appends a message and
+ * delivers it, and while it turns a catching-up subscriber into a live one, so
+ * that the subscriber sees every offset exactly once.
+ * <p>
+ * A segment's file channel is closed as soon as the file is mapped, since the
+ * mapping stays valid without it, so a topic holds no file descriptors. Once
+ * the log is closed or deleted, reads return nothing and appends fail.
+ */
+public class TopicLog implements Closeable {
+    static final int SEGMENT_SIZE = 16 * 1024 * 1024; // Size of one segment file
+    static final int MAX_SEGMENTS = 8; // Number of segments retained per topic
+    static final int INDEX_INTERVAL = 64; // Records between two entries of a segment's offset index
+    private static final String SUFFIX = ".log";
+
+    private final Path directory;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TreeMap<Long, Segment> segments = new TreeMap<>(); // Segments by the offset of their first message
+    private Segment active;
+    private long nextOffset;
+    private boolean closed;
+
+    /**
+     * One memory-mapped segment file.
+     */
+    private static class Segment {
+        private final long baseOffset;
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private int[] index = new int[16]; // Position of every INDEX_INTERVAL-th record
+        private int count; // Number of records in the segment
+        private int writePosition;
+
+        Segment(long baseOffset, Path path) throws IOException {
+            this.baseOffset = baseOffset;
+            this.path = path;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+            }
+            // Find the end of the records written before a restart
+            while (this.writePosition + Integer.BYTES <= SEGMENT_SIZE) {
+                int length = this.buffer.getInt(this.writePosition);
+                if (length <= 0 || this.writePosition + Integer.BYTES + length > SEGMENT_SIZE) {
+                    break;
+                }
+                added(length);
+            }
+        }
+
+        /**
+         * Accounts for the record of the given length written at writePosition.
+         */
+        void added(int length) {
+            if (this.count % INDEX_INTERVAL == 0) {
+                int slot = this.count / INDEX_INTERVAL;
+                if (slot == this.index.length) {
+                    this.index = Arrays.copyOf(this.index, slot * 2);
+                }
+                this.index[slot] = this.writePosition;
+            }
+            this.writePosition += Integer.BYTES + length;
+            this.count++;
+        }
+
+        /**
+         * @param offset an offset of the segment
+         * @return the offset of the closest indexed record at or before it
+         */
+        long indexedOffset(long offset) {
+            return this.baseOffset + (offset - this.baseOffset) / INDEX_INTERVAL * INDEX_INTERVAL;
+        }
+
+        /**
+         * @param indexedOffset an offset returned by {@link #indexedOffset(long)}
+         * @return the position of its record
+         */
+        int positionOf(long indexedOffset) {
+            return this.index[(int) ((indexedOffset - this.baseOffset) / INDEX_INTERVAL)];
+        }
+    }
+
+    private TopicLog(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Opens the log stored in a directory, creating the directory if needed.
+     *
+     * @param directory the directory holding the topic's segments
+     * @return the opened log
+     * @throws IOException if the segments cannot be opened
+     */
+    public static TopicLog open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        TopicLog log = new TopicLog(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                long baseOffset = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                log.segments.put(baseOffset, new Segment(baseOffset, file));
+            }
+        }
+        if (log.segments.isEmpty()) {
+            log.roll(0);
+        } else {
+            log.active = log.segments.lastEntry().getValue();
+            log.nextOffset = log.active.baseOffset + log.active.count;
+        }
+        return log;
+    }
+
+    /**
+     * Locks the log. Appends and reads lock it themselves; the broker locks it
+     * around a series of operations that must not interleave with appends.
+     */
+    public void lock() {
+        this.lock.lock();
+    }
+
+    /**
+     * Releases the lock taken by {@link #lock()}.
+     */
+    public void unlock() {
+        this.lock.unlock();
+    }
+
+    /**
+     * Appends a broadcast, adding its "offset" field.
+     *
+     * @param broadcast the broadcast message, which receives the offset
+     * @return the offset of the message
+     * @throws IOException if a new segment cannot be created
+     */
+    public long append(JSONObject broadcast) throws IOException {
+        this.lock.lock();
+        try {
+            if (this.closed) {
+                throw new IOException("The topic log is closed");
+            }
+            long offset = this.nextOffset;
+            broadcast.put("offset", offset);
+            byte[] frame = BinaryCodec.encodeFrame(broadcast);
+            if (Integer.BYTES + frame.length + Integer.BYTES > SEGMENT_SIZE) {
+                throw new IOException("Message too large for the topic log");
+            }
+            if (this.active.writePosition + Integer.BYTES + frame.length > SEGMENT_SIZE) {
+                roll(offset);
+            }
+            Segment segment = this.active;
+            segment.buffer.put(segment.writePosition + Integer.BYTES, frame);
+            segment.buffer.putInt(segment.writePosition, frame.length); // Length last, so a record is never half visible
+            segment.added(frame.length);
+            this.nextOffset++;
+            return offset;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Reads retained messages starting at an offset. Offsets that are no longer
+     * retained are skipped.
+     *
+     * @param from       the first offset to read
+     * @param maxRecords the maximum number of messages to read
+     * @param frames     receives the binary frames of the messages, in offset
+     *                   order
+     * @return the offset following the last message read, or from if the log
+     *         is closed
+     */
+    public long read(long from, int maxRecords, List<byte[]> frames) {
+        this.lock.lock();
+        try {
+            if (this.closed) {
+                return from;
+            }
+            long offset = Math.max(from, startOffset());
+            int limit = frames.size() + maxRecords;
+            Map.Entry<Long, Segment> entry = this.segments.floorEntry(offset);
+            while (entry != null && frames.size() < limit) {
+                Segment segment = entry.getValue();
+                long current = segment.baseOffset;
+                int position = 0;
+                if (offset > segment.baseOffset && offset < segment.baseOffset + segment.count) {
+                    current = segment.indexedOffset(offset);
+                    position = segment.positionOf(current);
+                }
+                for (; current < segment.baseOffset + segment.count && frames.size() < limit; current++) {
+                    int length = segment.buffer.getInt(position);
+                    if (current >= offset) {
+                        byte[] frame = new byte[length];
+                        segment.buffer.get(position + Integer.BYTES, frame);
+                        frames.add(frame);
+                        offset = current + 1;
+                    }
+                    position += Integer.BYTES + length;
+                }
+                entry = this.segments.higherEntry(entry.getKey());
+            }
+            return offset;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the oldest retained offset, or the end offset if the log is
+     *         closed
+     */
+    public long startOffset() {
+        this.lock.lock();
+        try {
+            if (this.segments.isEmpty()) {
+                return this.nextOffset;
+            }
+            return this.segments.firstKey();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the offset the next message will get
+     */
+    public long endOffset() {
+        this.lock.lock();
+        try {
+            return this.nextOffset;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the log and deletes its files, when the topic is deleted.
+     *
+     * @throws IOException if a file cannot be deleted
+     */
+    public void delete() throws IOException {
+        this.lock.lock();
+        try {
+            close();
+            for (Segment segment : this.segments.values()) {
+                Files.deleteIfExists(segment.path);
+            }
+            this.segments.clear();
+            Files.deleteIfExists(this.directory);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        this.lock.lock();
+        try {
+            this.closed = true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Starts a new segment and drops the oldest ones beyond MAX_SEGMENTS.
+     *
+     * @param baseOffset the offset of the first message of the new segment
+     */
+    private void roll(long baseOffset) throws IOException {
+        Path path = this.directory.resolve(String.format("%020d%s", baseOffset, SUFFIX));
+        this.active = new Segment(baseOffset, path);
+        this.segments.put(baseOffset, this.active);
+        while (this.segments.size() > MAX_SEGMENTS) {
+            Segment oldest = this.segments.pollFirstEntry().getValue();
+            Files.deleteIfExists(oldest.path);
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package broker;
+
+import protocol.BinaryCodec;
+
+import org.json.simple.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the changes to a broker's topics and subscriptions,
+ * replayed on startup to restore the state the broker had before it stopped.
+ * <p>
+ * Each record is a binary frame (see {@link BinaryCodec}) followed by the
+ * CRC32 of the frame. Records are appended to an in-memory buffer under a
+ * short lock; a committer thread writes everything buffered so far and calls
+ * fsync once for the whole group, so concurrent requests share one fsync.
+ * Callers that must not answer before their change is durable wait with
+ * {@link #awaitDurable(long)} after releasing their own locks.
+ * A record torn by a crash is detected by its length or checksum on replay and
+ * cut off together with everything after it.
+ * <p>
+ * When a snapshot of the broker state is taken, the log is first rotated:
+ * later records go to a second file next to the log, and once the snapshot is
+ * on disk that file replaces the log, so the log only ever holds the changes
+ * since the last snapshot. If the broker stops in between, both files are
+ * replayed in order on the next start.
+ */
+public class WriteAheadLog implements Closeable {
+    private final Path path;
+    private volatile FileChannel channel; // Only replaced by the committer thread
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = this.lock.newCondition(); // Signalled when records are buffered
+    private final Condition committed = this.lock.newCondition(); // Signalled after each fsync
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private ByteArrayOutputStream beforeRotation; // Records that still belong in the current file
+    private boolean rotating; // Set until the committer has switched to the rotated file
+    private long rotationSequence; // Sequence number of the last record before the rotation
+    private long appendedSequence; // Sequence number of the last appended record
+    private long durableSequence; // Sequence number of the last record on disk
+    private IOException failure;
+    private boolean closed;
+
+    private WriteAheadLog(Path path, FileChannel channel) {
+        this.path = path;
+        this.channel = channel;
+        ExecutionMode.PLATFORM.newThread("wal-committer", this::commitLoop).start();
+    }
+
+    /**
+     * Opens a log, passing every intact record to the given consumer in order,
+     * and truncates a torn tail left by a crash.
+     *
+     * @param path   the log file, created if missing
+     * @param replay receives each recovered record
+     * @return the log, positioned after the last intact record
+     * @throws IOException if the file cannot be read or opened
+     */
+    public static WriteAheadLog open(Path path, Consumer<JSONObject> replay) throws IOException {
+        long validLength = 0;
+        if (Files.exists(path)) {
+            validLength = replay(path, replay);
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (channel.size() > validLength) {
+            System.out.println("Discarding " + (channel.size() - validLength) + " bytes of a torn log record");
+            channel.truncate(validLength);
+        }
+        channel.position(validLength);
+        Path rotated = rotatedPath(path);
+        if (Files.exists(rotated)) {
+            // Stopped before a snapshot completed: fold the newer records back into the log
+            long rotatedLength = replay(rotated, replay);
+            try (FileChannel in = FileChannel.open(rotated, StandardOpenOption.READ)) {
+                for (long copied = 0; copied < rotatedLength;) {
+                    copied += in.transferTo(copied, rotatedLength - copied, channel);
+                }
+            }
+            channel.force(false);
+            Files.delete(rotated);
+        }
+        return new WriteAheadLog(path, channel);
+    }
+
+    /**
+     * Reads the intact records of a log file.
+     *
+     * @param path   the log file
+     * @param replay receives each record
+     * @return the length of the intact prefix of the file
+     * @throws IOException if the file cannot be read
+     */
+    private static long replay(Path path, Consumer<JSONObject> replay) throws IOException {
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            while (true) {
+                byte[] frame;
+                int checksum;
+                try {
+                    frame = readFrame(in);
+                    if (frame == null) {
+                        break; // Clean end of the log
+                    }
+                    checksum = in.readInt();
+                } catch (EOFException e) {
+                    break; // Torn record
+                }
+                CRC32 crc = new CRC32();
+                crc.update(frame);
+                if ((int) crc.getValue() != checksum) {
+                    break; // Corrupt record
+                }
+                replay.accept(BinaryCodec.decodeFrame(frame));
+                position += frame.length + Integer.BYTES;
+            }
+        } catch (IOException e) {
+            // Malformed frame: keep what has been replayed so far
+        }
+        return position;
+    }
+
+    /**
+     * Appends a record. The record is buffered and written by the committer
+     * thread; use {@link #awaitDurable(long)} to wait until it is on disk.
+     *
+     * @param record the record to append
+     * @return the sequence number of the record
+     */
+    public long append(JSONObject record) {
+        byte[] frame = BinaryCodec.encodeFrame(record);
+        CRC32 crc = new CRC32();
+        crc.update(frame);
+        int checksum = (int) crc.getValue();
+        this.lock.lock();
+        try {
+            this.buffer.writeBytes(frame);
+            this.buffer.write(checksum >>> 24);
+            this.buffer.write(checksum >>> 16);
+            this.buffer.write(checksum >>> 8);
+            this.buffer.write(checksum);
+            this.appendedSequence++;
+            this.appended.signal();
+            return this.appendedSequence;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the record with the given sequence number, and every record
+     * before it, has been forced to disk.
+     *
+     * @param sequence the sequence number returned by {@link #append}
+     * @throws IOException if the log can no longer be written
+     */
+    public void awaitDurable(long sequence) throws IOException {
+        this.lock.lock();
+        try {
+            while (this.durableSequence < sequence && this.failure == null) {
+                try {
+                    this.committed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the log");
+                }
+            }
+            if (this.durableSequence < sequence) {
+                throw this.failure;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Switches to a new file: records appended after this call are written to
+     * the rotated file, and records appended before it are on disk in the
+     * current one when this method returns. Fails while the file of an earlier
+     * rotation has not been discarded, so that its records are never
+     * overwritten.
+     *
+     * @throws IOException if the log can no longer be written
+     */
+    public void rotate() throws IOException {
+        if (Files.exists(rotatedPath(this.path))) {
+            // The records before the last rotation are not covered by a snapshot yet
+            throw new IOException("The previous rotation of the log was not completed");
+        }
+        this.lock.lock();
+        try {
+            if (this.rotating) {
+                throw new IOException("The log is already being rotated");
+            }
+            this.beforeRotation = this.buffer;
+            this.buffer = new ByteArrayOutputStream();
+            this.rotationSequence = this.appendedSequence;
+            this.rotating = true;
+            this.appended.signal();
+            while (this.rotating && this.failure == null) {
+                try {
+                    this.committed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while rotating the log");
+                }
+            }
+            if (this.rotating) {
+                throw this.failure;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the log by the file it was rotated to, dropping every record
+     * from before the last rotation. Called once those records are covered by
+     * a snapshot.
+     *
+     * @throws IOException if the file cannot be moved
+     */
+    public void discardRotated() throws IOException {
+        Files.move(rotatedPath(this.path), this.path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the number of records appended since the last rotation
+     */
+    public long getRecordsSinceRotation() {
+        this.lock.lock();
+        try {
+            return this.appendedSequence - this.rotationSequence;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the log file
+     */
+    public Path getPath() {
+        return this.path;
+    }
+
+    /**
+     * Writes the remaining records and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        long last;
+        this.lock.lock();
+        try {
+            last = this.appendedSequence;
+        } finally {
+            this.lock.unlock();
+        }
+        try {
+            awaitDurable(last);
+        } finally {
+            this.lock.lock();
+            try {
+                this.closed = true;
+                this.appended.signal();
+            } finally {
+                this.lock.unlock();
+            }
+            this.channel.close();
+        }
+    }
+
+    /**
+     * Committer loop: takes everything appended so far, writes it with one
+     * write and one fsync, and wakes the waiting callers.
+     */
+    private void commitLoop() {
+        while (true) {
+            byte[] group;
+            long sequence;
+            boolean rotate;
+            this.lock.lock();
+            try {
+                while (this.buffer.size() == 0 && !this.rotating && !this.closed) {
+                    this.appended.await();
+                }
+                if (this.closed) {
+                    return;
+                }
+                rotate = this.rotating;
+                if (rotate) {
+                    group = this.beforeRotation.toByteArray();
+                    sequence = this.rotationSequence;
+                    this.beforeRotation = null;
+                } else {
+                    group = this.buffer.toByteArray();
+                    sequence = this.appendedSequence;
+                    this.buffer = new ByteArrayOutputStream(group.length);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                this.lock.unlock();
+            }
+            try {
+                ByteBuffer bytes = ByteBuffer.wrap(group);
+                while (bytes.hasRemaining()) {
+                    this.channel.write(bytes);
+                }
+                this.channel.force(false);
+                if (rotate) {
+                    FileChannel next = FileChannel.open(rotatedPath(this.path), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    this.channel.close();
+                    this.channel = next;
+                }
+            } catch (IOException e) {
+                System.out.println("Failed to write the log: " + e.getMessage());
+                this.lock.lock();
+                try {
+                    this.failure = e;
+                    this.committed.signalAll();
+                } finally {
+                    this.lock.unlock();
+                }
+                return;
+            }
+            this.lock.lock();
+            try {
+                this.durableSequence = sequence;
+                if (rotate) {
+                    this.rotating = false;
+                }
+                this.committed.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the file that records are written to after a rotation
+     */
+    private static Path rotatedPath(Path path) {
+        return path.resolveSibling(path.getFileName() + ".next");
+    }
+
+    /**
+     * Reads one length-prefixed frame, including its length prefix.
+     *
+     * @return the frame, or null at the end of the stream
+     */
+    private static byte[] readFrame(InputStream in) throws IOException {
+        ByteArrayOutputStream prefix = new ByteArrayOutputStream(5);
+        long length = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return null;
+                }
+                throw new EOFException();
+            }
+            if (shift > 28) {
+                throw new IOException("Malformed log record");
+            }
+            prefix.write(b);
+            length |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length > BinaryCodec.MAX_FRAME_SIZE) {
+            throw new IOException("Malformed log record");
+        }
+        byte[] payload = in.readNBytes((int) length);
+        if (payload.length < length) {
+            throw new EOFException();
+        }
+        prefix.writeBytes(payload);
+        return prefix.toByteArray();
+    }
+}
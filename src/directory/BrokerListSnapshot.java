@@ -0,0 +1,122 @@
+package directory;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable view of the registered brokers, with the lookup responses already
+ * encoded. There is one response per broker, recommending that broker, so a
+ * lookup only picks a broker and writes the bytes of its response.
+ * The DirectoryService builds a new snapshot whenever a broker joins or leaves
+ * and publishes it through a volatile field, so lookups read it without taking
+ * the service's monitor. The loads are shared with the service and change
+ * between snapshots.
+ */
+public final class BrokerListSnapshot {
+    public static final BrokerListSnapshot EMPTY = of(List.of(), Map.of());
+
+    private final String[][] brokers; // IP address and port number of each broker
+    private final String encodedList; // JSON array of the brokers
+    private final BrokerLoad[] loads; // Load of each broker
+    private final byte[][] responses; // Lookup response recommending each broker, as a UTF-8 line
+    private final byte[] noBrokerResponse; // Lookup response when no broker is registered
+
+    private BrokerListSnapshot(String[][] brokers, String encodedList, String[] encodedBrokers,
+            BrokerLoad[] loads) {
+        this.brokers = brokers;
+        this.encodedList = encodedList;
+        this.loads = loads;
+        this.responses = new byte[encodedBrokers.length][];
+        for (int i = 0; i < encodedBrokers.length; i++) {
+            this.responses[i] = encodeResponse(encodedBrokers[i]);
+        }
+        this.noBrokerResponse = encodeResponse("null");
+    }
+
+    /**
+     * Builds a snapshot.
+     *
+     * @param brokers the brokers in registration order, each with "brokerIp" and "brokerPort"
+     * @param loads   the load of each broker, by ip:port
+     * @return the snapshot
+     */
+    public static BrokerListSnapshot of(List<? extends Map<String, String>> brokers, Map<String, BrokerLoad> loads) {
+        String[][] pairs = new String[brokers.size()][];
+        String[] encodedBrokers = new String[brokers.size()];
+        BrokerLoad[] brokerLoads = new BrokerLoad[brokers.size()];
+        StringBuilder list = new StringBuilder("[");
+        for (int i = 0; i < brokers.size(); i++) {
+            Map<String, String> broker = brokers.get(i);
+            pairs[i] = new String[] { broker.get("brokerIp"), broker.get("brokerPort") };
+            encodedBrokers[i] = toJSONObject(pairs[i]).toJSONString();
+            brokerLoads[i] = loads.get(pairs[i][0] + ":" + pairs[i][1]);
+            list.append(i == 0 ? "" : ",").append(encodedBrokers[i]);
+        }
+        return new BrokerListSnapshot(pairs, list.append(']').toString(), encodedBrokers, brokerLoads);
+    }
+
+    /**
+     * @return the number of brokers
+     */
+    public int size() {
+        return this.loads.length;
+    }
+
+    /**
+     * @param index the index of a broker
+     * @return the load of the broker
+     */
+    public BrokerLoad load(int index) {
+        return this.loads[index];
+    }
+
+    /**
+     * @param index the index of a broker, or -1 for none
+     * @return the encoded lookup response recommending the broker, ending with a line feed
+     */
+    public byte[] response(int index) {
+        return index < 0 ? this.noBrokerResponse : this.responses[index];
+    }
+
+    /**
+     * @param index the index of a broker
+     * @return the broker as a new JSON object with "brokerIp" and "brokerPort"
+     */
+    public JSONObject broker(int index) {
+        return toJSONObject(this.brokers[index]);
+    }
+
+    /**
+     * @return the brokers as a JSON array
+     */
+    public String encodedList() {
+        return this.encodedList;
+    }
+
+    /**
+     * @return the brokers as a new JSON array
+     */
+    public JSONArray toJSONArray() {
+        JSONArray brokerArray = new JSONArray();
+        for (String[] broker : this.brokers) {
+            brokerArray.add(toJSONObject(broker));
+        }
+        return brokerArray;
+    }
+
+    private byte[] encodeResponse(String recommended) {
+        return ("{\"recommended\":" + recommended + ",\"brokers\":" + this.encodedList + "}\n")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static JSONObject toJSONObject(String[] broker) {
+        JSONObject brokerJson = new JSONObject();
+        brokerJson.put("brokerIp", broker[0]);
+        brokerJson.put("brokerPort", broker[1]);
+        return brokerJson;
+    }
+}
@@ -0,0 +1,80 @@
+package directory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The last load reported by a broker, plus the clients the directory has sent
+ * to it since then, and when the broker was last heard from.
+ * The clients sent since the last report are counted so that a burst of
+ * lookups between two reports is not sent to the same broker.
+ * Reports are recorded under the DirectoryService's monitor, while lookups
+ * read the score and count their clients without it.
+ */
+public class BrokerLoad {
+    private static final double QUEUED_PER_CONNECTION = 64; // Queued messages weighing as much as a connection
+    private static final double RATE_PER_CONNECTION = 1000; // Messages per second weighing as much as a connection
+
+    private volatile long connections; // Publishers and subscribers connected to the broker
+    private volatile long queueDepth; // Messages waiting in the broker's outbound queues
+    private volatile long publishRate; // Messages delivered by the broker per second
+    private final AtomicLong assigned = new AtomicLong(); // Clients sent to the broker since its last report
+    private long lastHeardNanos; // Time of the registration or of the last report
+    private final Object registration; // Connection the broker registered on
+
+    /**
+     * @param registration the connection the broker registered on
+     * @param nowNanos     the time of the registration
+     */
+    public BrokerLoad(Object registration, long nowNanos) {
+        this.registration = registration;
+        this.lastHeardNanos = nowNanos;
+    }
+
+    /**
+     * Records a load report. Not thread-safe; guarded by the DirectoryService.
+     *
+     * @param connections the number of connected publishers and subscribers
+     * @param queueDepth  the number of queued outbound messages
+     * @param publishRate the number of messages delivered per second
+     * @param nowNanos    the time the report was received
+     */
+    public void update(long connections, long queueDepth, long publishRate, long nowNanos) {
+        this.lastHeardNanos = nowNanos;
+        this.connections = connections;
+        this.queueDepth = queueDepth;
+        this.publishRate = publishRate;
+        this.assigned.set(0);
+    }
+
+    /**
+     * @return the time of the registration or of the last report
+     */
+    public long lastHeardNanos() {
+        return this.lastHeardNanos;
+    }
+
+    /**
+     * @param connection a connection to the directory
+     * @return true if the broker registered on that connection
+     */
+    public boolean isOwnedBy(Object connection) {
+        return this.registration == connection;
+    }
+
+    /**
+     * Counts a client sent to the broker. Thread-safe.
+     */
+    public void assign() {
+        this.assigned.incrementAndGet();
+    }
+
+    /**
+     * @return the load of the broker in connections: each connection counts one,
+     *         and so do every QUEUED_PER_CONNECTION queued messages and every
+     *         RATE_PER_CONNECTION messages per second
+     */
+    public double score() {
+        return this.connections + this.assigned.get() + this.queueDepth / QUEUED_PER_CONNECTION
+                + this.publishRate / RATE_PER_CONNECTION;
+    }
+}
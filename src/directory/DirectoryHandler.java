@@ -3,29 +3,62 @@ package directory;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
+import protocol.ThreadFactories;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.SequenceInputStream;
 import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * DirectoryHandler handles client connections to the directory service.
- * It processes broker registration and broker list requests from publishers and subscribers.
+ * It processes broker registration and load reports, and broker list requests from publishers and
+ * subscribers. A broker keeps its connection open; its registration is removed when the connection
+ * closes.
+ * A request with "watch" set keeps the connection open as well: the response is followed by a
+ * membership change ("joined" or "left") whenever a broker is added or removed. These lines are queued
+ * and written by a separate thread, so the directory never waits for a slow watcher; a watcher whose
+ * queue is full is disconnected.
+ * It runs on a platform or virtual thread provided by the DirectoryService's executor, or, with '-nio', on
+ * the executor the {@link SelectorServer} hands its long-lived connections to.
  */
-public class DirectoryHandler extends Thread {
+public class DirectoryHandler implements Runnable {
+    private static final int PUSH_QUEUE_CAPACITY = 256; // Maximum number of lines waiting for a watcher
+
     private Socket clientSocket;
     private DirectoryService directoryService;
+    private String brokerIp; // Address of the broker registered on this connection, if any
+    private String brokerPort;
+    private PrintWriter writer;
+    private BlockingQueue<String> pushQueue; // Lines for a watcher, null until the client watches
+    private Thread pushThread; // Writes the lines of the push queue
+    private byte[] received; // Bytes read from the connection before the handler took it over
 
     public DirectoryHandler(Socket clientSocket, DirectoryService directoryService) {
+        this(clientSocket, directoryService, new byte[0]);
+    }
+
+    /**
+     * @param clientSocket     The connection, in blocking mode.
+     * @param directoryService The service answering the requests.
+     * @param received         The bytes already read from the connection, which are handled first.
+     */
+    public DirectoryHandler(Socket clientSocket, DirectoryService directoryService, byte[] received) {
         this.clientSocket = clientSocket;
         this.directoryService = directoryService;
+        this.received = received;
     }
 
     @Override
     public void run() {
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(this.clientSocket.getInputStream()));
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new SequenceInputStream(
+                new ByteArrayInputStream(this.received), this.clientSocket.getInputStream())));
              PrintWriter writer = new PrintWriter(this.clientSocket.getOutputStream(), true)) {
+            this.writer = writer;
 
             String line;
             while ((line = reader.readLine()) != null) {
@@ -33,26 +66,123 @@ public class DirectoryHandler extends Thread {
                 JSONObject request = (JSONObject) parser.parse(line);
 
                 String userType = (String) request.get("user type");
-                if ("broker".equals(userType)) {
+                boolean watch = Boolean.TRUE.equals(request.get("watch"));
+                if ("broker".equals(userType) && "load".equals(request.get("command"))) {
+                    //Record the load reported by a registered broker. No response is sent.
+                    Object brokerIp = request.get("brokerIp");
+                    Object brokerPort = request.get("brokerPort");
+                    Long connections = longField(request, "connections");
+                    Long queueDepth = longField(request, "queue depth");
+                    Long publishRate = longField(request, "publish rate");
+                    if (!(brokerIp instanceof String) || !(brokerPort instanceof String) || connections == null
+                            || queueDepth == null || publishRate == null) {
+                        // The broker stays registered; its next report counts
+                        System.out.println("Ignoring a malformed load report: " + request.toJSONString());
+                        continue;
+                    }
+                    this.directoryService.updateLoad((String) brokerIp, (String) brokerPort, connections,
+                            queueDepth, publishRate, this);
+                }
+                else if ("broker".equals(userType)) {
                     //Register a new broker by adding it to the directory's broker list.
                     String brokerIp = (String) request.get("brokerIp");
                     String brokerPort = (String) request.get("brokerPort");
-                    this.directoryService.registerBroker(brokerIp, brokerPort);
+                    this.directoryService.registerBroker(brokerIp, brokerPort, this);
+                    this.brokerIp = brokerIp;
+                    this.brokerPort = brokerPort;
                     JSONObject response = new JSONObject();
                     response.put("user type", "directory");
-                    response.put("brokers", this.directoryService.getBrokerList());
-                    writer.println(response.toJSONString());
+                    respond(response, watch);
+                }
+                else if (("publisher".equals(userType) || "subscriber".equals(userType))
+                        && !watch && this.pushQueue == null) {
+                    //Sends the list of active brokers and the recommended one, already encoded by the service.
+                    this.clientSocket.getOutputStream().write(this.directoryService.lookupResponse());
                 }
                 else if ("publisher".equals(userType) || "subscriber".equals(userType)) {
-                    //Sends the list of active brokers to the publisher or subscriber.
+                    //Sends the list and the recommended broker to a watching publisher or subscriber.
                     JSONObject response = new JSONObject();
-                    response.put("brokers", this.directoryService.getBrokerList());
-                    writer.println(response.toJSONString());
+                    response.put("recommended", this.directoryService.recommendBroker());
+                    respond(response, watch);
                 }
             }
         } catch (IOException | ParseException e) {
             e.printStackTrace();
+        } finally {
+            this.directoryService.removeWatcher(this);
+            if (this.pushThread != null) {
+                this.pushThread.interrupt();
+            }
+            if (this.brokerIp != null) {
+                // The broker has stopped or lost the connection; it registers again when it reconnects
+                this.directoryService.unregisterBroker(this.brokerIp, this.brokerPort, this);
+            }
+        }
+    }
+
+    /**
+     * Adds the broker list to a response and sends it. For a watching client, the response goes through
+     * the push queue, so that it comes before every later membership change.
+     *
+     * @param response The response without the broker list.
+     * @param watch    Whether the client asked to watch the membership.
+     */
+    private void respond(JSONObject response, boolean watch) {
+        if (watch && this.pushQueue == null) {
+            this.pushQueue = new ArrayBlockingQueue<>(PUSH_QUEUE_CAPACITY);
+            boolean virtual = ThreadFactories.isVirtual(Thread.currentThread());
+            this.pushThread = ThreadFactories.newThread("directory-push", this::drainPushQueue, virtual);
+            this.pushThread.start();
+        }
+        if (this.pushQueue != null) {
+            this.directoryService.addWatcher(this, response);
+        } else {
+            response.put("brokers", this.directoryService.getBrokerList());
+            this.writer.println(response.toJSONString());
         }
     }
 
+    /**
+     * Queues a line for a watching client without blocking. A client that does not keep up is
+     * disconnected.
+     *
+     * @param line The JSON line.
+     * @return true if the line was queued.
+     */
+    public boolean push(String line) {
+        if (this.pushQueue.offer(line)) {
+            return true;
+        }
+        System.out.println("A watcher is not reading membership changes. Disconnecting.");
+        try {
+            this.clientSocket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+        return false;
+    }
+
+    /**
+     * Writes the queued lines until the connection is closed.
+     */
+    private void drainPushQueue() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                this.writer.println(this.pushQueue.take());
+            }
+        } catch (InterruptedException e) {
+            // The connection has closed
+        }
+    }
+
+    /**
+     * @param request A request.
+     * @param key     The key of a numeric field.
+     * @return The value of the field, or null if it is missing or not a whole number.
+     */
+    private static Long longField(JSONObject request, String key) {
+        Object value = request.get(key);
+        return value instanceof Long ? (Long) value : null;
+    }
+
 }
@@ -2,38 +2,95 @@ package directory;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
+import protocol.ThreadFactories;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Directory Service class that registers brokers and provides information about available brokers
  * to publishers and subscribers.
+ * Brokers report their load periodically, and each lookup recommends a broker chosen by the power of
+ * two choices: two brokers are drawn at random and the less loaded one is recommended. This spreads the
+ * clients almost as well as always picking the least loaded broker, without sending a burst of clients
+ * to the same broker between two reports.
+ * The load reports also serve as heartbeats. A broker is registered once per ip:port, and it is removed
+ * when its connection to the directory closes or when nothing has been heard from it for HEARTBEAT_TTL,
+ * so lookups return only live brokers. Silent brokers are dropped by a background thread every second.
+ * Lookups do not take the service's monitor: every change of the broker list publishes a new
+ * {@link BrokerListSnapshot} holding the encoded responses, and a lookup picks a broker from the current
+ * snapshot and returns the bytes of its response.
+ * Brokers and clients that watch the membership are told about every broker that joins or leaves, over
+ * the connection they watch on, so they do not have to poll.
  */
 public class DirectoryService {
-    // List to store broker information
-    private ArrayList<HashMap<String, String>> brokerList = new ArrayList<>();
+    private static final long HEARTBEAT_TTL_MILLIS = 6000; // Silence after which a broker is dropped: 3 reports
+    private static final int ACCEPT_BACKLOG = 4096; // Connections the OS queues while they wait to be accepted
+
+    // Maps ip:port to broker information, in registration order
+    private LinkedHashMap<String, HashMap<String, String>> brokerList = new LinkedHashMap<>();
+    private HashMap<String, BrokerLoad> brokerLoads = new HashMap<>(); // Maps ip:port to the reported load
+    private volatile BrokerListSnapshot snapshot = BrokerListSnapshot.EMPTY; // Brokers as seen by lookups
+    private final ArrayList<DirectoryHandler> watchers = new ArrayList<>(); // Connections watching the membership
 
     /**
      * Main method to start the Directory Service.
      * It listens for incoming connections from brokers, publishers, and subscribers.
      *
      * @param args Command-line arguments. The first argument is the port number of the directory service.
+     *             Optional: "-virtual" to handle each connection on a virtual thread, and "-nio" to answer
+     *             the lookups of publishers and subscribers on a selector thread.
      */
     public static void main(String[] args) {
         int portNumber = Integer.parseInt(args[0]);
+        boolean virtualThreads = false;
+        boolean nio = false;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("-virtual")) {
+                virtualThreads = ThreadFactories.virtualThreadsSupported();
+                if (!virtualThreads) {
+                    System.out.println("Virtual threads need Java 21 or later. Using platform threads.");
+                }
+            } else if (args[i].equals("-nio")) {
+                nio = true;
+            }
+        }
         DirectoryService directoryService = new DirectoryService();
+        ExecutorService executor = virtualThreads
+                ? ThreadFactories.newThreadPerTaskExecutor(ThreadFactories.virtual("directory-"))
+                : ThreadFactories.newThreadPerTaskExecutor(ThreadFactories.platform("directory-", false));
+
+        if (nio) {
+            try {
+                SelectorServer server = new SelectorServer(portNumber, ACCEPT_BACKLOG, directoryService, executor);
+                System.out.println("Directory Service is listening on port " + portNumber + " (selector"
+                        + (virtualThreads ? ", virtual threads)" : ")"));
+                directoryService.startEviction();
+                server.serve();
+            } catch (IOException e) {
+                System.out.println("Directory Service failed to start");
+                e.printStackTrace();
+            }
+            return;
+        }
 
-        try (ServerSocket serverSocket = new ServerSocket(portNumber)) {
-            System.out.println("Directory Service is listening on port " + portNumber);
+        try (ServerSocket serverSocket = new ServerSocket(portNumber, ACCEPT_BACKLOG)) {
+            System.out.println("Directory Service is listening on port " + portNumber
+                    + (virtualThreads ? " (virtual threads)" : ""));
+            directoryService.startEviction();
 
             while (true) {
                 Socket clientSocket = serverSocket.accept();
                 System.out.println("Client is connected");
-                DirectoryHandler handler = new DirectoryHandler(clientSocket, directoryService);
-                handler.start();
+                executor.execute(new DirectoryHandler(clientSocket, directoryService));
             }
         } catch (IOException e) {
             System.out.println("Directory Service failed to start");
@@ -42,16 +99,203 @@ public class DirectoryService {
     }
 
     /**
-     * Registers a broker with the directory service.
+     * Registers a broker with the directory service. A broker that registers again, for example after a
+     * restart, replaces its previous registration.
      *
-     * @param brokerIp   The IP address of the broker.
-     * @param brokerPort The port number of the broker.
+     * @param brokerIp     The IP address of the broker.
+     * @param brokerPort   The port number of the broker.
+     * @param registration The connection the broker registered on, which owns the registration.
      */
-    public synchronized void registerBroker(String brokerIp, String brokerPort) {
+    public synchronized void registerBroker(String brokerIp, String brokerPort, Object registration) {
+        String key = brokerIp + ":" + brokerPort;
         HashMap<String, String> brokerData = new HashMap<>();
         brokerData.put("brokerIp", brokerIp);
         brokerData.put("brokerPort", brokerPort);
-        this.brokerList.add(brokerData);
+        if (this.brokerList.put(key, brokerData) != null) {
+            System.out.println("Broker " + key + " registered again");
+        } else {
+            notifyWatchers("joined", brokerIp, brokerPort);
+        }
+        this.brokerLoads.put(key, new BrokerLoad(registration, System.nanoTime()));
+        publishSnapshot();
+    }
+
+    /**
+     * Removes a broker whose connection to the directory has closed, unless it has registered again on
+     * another connection since.
+     *
+     * @param brokerIp     The IP address of the broker.
+     * @param brokerPort   The port number of the broker.
+     * @param registration The connection that has closed.
+     */
+    public synchronized void unregisterBroker(String brokerIp, String brokerPort, Object registration) {
+        String key = brokerIp + ":" + brokerPort;
+        BrokerLoad load = this.brokerLoads.get(key);
+        if (load != null && load.isOwnedBy(registration)) {
+            remove(key);
+            System.out.println("Broker " + key + " disconnected");
+        }
+    }
+
+    /**
+     * Records the load reported by a broker.
+     *
+     * @param brokerIp     The IP address of the broker.
+     * @param brokerPort   The port number of the broker.
+     * @param connections  The number of connected publishers and subscribers.
+     * @param queueDepth   The number of messages waiting in its outbound queues.
+     * @param publishRate  The number of messages it delivers per second.
+     * @param registration The connection the report arrived on. A broker that was dropped for missing
+     *                     its heartbeats is registered again from it.
+     */
+    public synchronized void updateLoad(String brokerIp, String brokerPort, long connections, long queueDepth,
+                                        long publishRate, Object registration) {
+        BrokerLoad load = this.brokerLoads.get(brokerIp + ":" + brokerPort);
+        if (load == null) {
+            registerBroker(brokerIp, brokerPort, registration);
+            load = this.brokerLoads.get(brokerIp + ":" + brokerPort);
+        }
+        load.update(connections, queueDepth, publishRate, System.nanoTime());
+    }
+
+    /**
+     * Recommends a broker to a new client: the less loaded of two different brokers drawn at random,
+     * which is then counted as having one more client until its next report.
+     *
+     * @return The broker information (IP and port), or null if no broker is registered.
+     */
+    public JSONObject recommendBroker() {
+        BrokerListSnapshot current = this.snapshot;
+        int index = chooseBroker(current);
+        return index < 0 ? null : current.broker(index);
+    }
+
+    /**
+     * Answers a lookup from a publisher or subscriber without taking the monitor.
+     *
+     * @return The encoded response line, with the recommended broker and the list of all brokers.
+     */
+    public byte[] lookupResponse() {
+        BrokerListSnapshot current = this.snapshot;
+        return current.response(chooseBroker(current));
+    }
+
+    /**
+     * Picks the less loaded of two different brokers drawn at random and counts one more client for it.
+     *
+     * @return The index of the broker in the snapshot, or -1 if it is empty.
+     */
+    private static int chooseBroker(BrokerListSnapshot current) {
+        int size = current.size();
+        if (size == 0) {
+            return -1;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int firstIndex = random.nextInt(size);
+        int secondIndex = size == 1 ? firstIndex : (firstIndex + 1 + random.nextInt(size - 1)) % size;
+        int chosen = current.load(secondIndex).score() < current.load(firstIndex).score() ? secondIndex : firstIndex;
+        current.load(chosen).assign();
+        return chosen;
+    }
+
+    /**
+     * Drops the brokers that have not been heard from for HEARTBEAT_TTL_MILLIS.
+     */
+    private void evictExpired() {
+        boolean evicted = false;
+        long deadline = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_TTL_MILLIS);
+        Iterator<Map.Entry<String, BrokerLoad>> loads = this.brokerLoads.entrySet().iterator();
+        while (loads.hasNext()) {
+            Map.Entry<String, BrokerLoad> entry = loads.next();
+            if (entry.getValue().lastHeardNanos() - deadline < 0) {
+                loads.remove();
+                HashMap<String, String> broker = this.brokerList.remove(entry.getKey());
+                notifyWatchers("left", broker.get("brokerIp"), broker.get("brokerPort"));
+                System.out.println("Broker " + entry.getKey() + " missed its heartbeats and was removed");
+                evicted = true;
+            }
+        }
+        if (evicted) {
+            publishSnapshot();
+        }
+    }
+
+    private void remove(String key) {
+        HashMap<String, String> broker = this.brokerList.remove(key);
+        this.brokerLoads.remove(key);
+        if (broker != null) {
+            notifyWatchers("left", broker.get("brokerIp"), broker.get("brokerPort"));
+            publishSnapshot();
+        }
+    }
+
+    /**
+     * Makes the current broker list visible to lookups. The caller holds the monitor.
+     */
+    private void publishSnapshot() {
+        this.snapshot = BrokerListSnapshot.of(new ArrayList<>(this.brokerList.values()), this.brokerLoads);
+    }
+
+    /**
+     * Starts watching the membership: the response, completed with the current broker list, is queued on
+     * the connection, followed by every later change.
+     *
+     * @param watcher  The connection of the watching broker or client.
+     * @param response The response to the watch request, without the broker list.
+     */
+    public synchronized void addWatcher(DirectoryHandler watcher, JSONObject response) {
+        response.put("brokers", getBrokerList());
+        if (watcher.push(response.toJSONString()) && !this.watchers.contains(watcher)) {
+            this.watchers.add(watcher);
+        }
+    }
+
+    /**
+     * Stops sending membership changes to a connection that has closed.
+     *
+     * @param watcher The connection.
+     */
+    public synchronized void removeWatcher(DirectoryHandler watcher) {
+        this.watchers.remove(watcher);
+    }
+
+    /**
+     * Queues a membership change on every watcher. The caller holds the monitor, so every watcher sees
+     * the changes in the same order.
+     *
+     * @param change     "joined" or "left".
+     * @param brokerIp   The IP address of the broker.
+     * @param brokerPort The port number of the broker.
+     */
+    private void notifyWatchers(String change, String brokerIp, String brokerPort) {
+        if (this.watchers.isEmpty()) {
+            return;
+        }
+        JSONObject message = new JSONObject();
+        message.put("membership", change);
+        message.put("brokerIp", brokerIp);
+        message.put("brokerPort", brokerPort);
+        String line = message.toJSONString();
+        this.watchers.removeIf(watcher -> !watcher.push(line));
+    }
+
+    /**
+     * Starts a background thread that drops the silent brokers every second, so watchers learn that a
+     * broker has left even when nobody looks up the list.
+     */
+    private void startEviction() {
+        ThreadFactories.newThread("directory-eviction", () -> {
+            while (true) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                synchronized (this) {
+                    evictExpired();
+                }
+            }
+        }, false).start();
     }
 
     /**
@@ -59,15 +303,8 @@ public class DirectoryService {
      *
      * @return A JSON array containing broker information (IP and port).
      */
-    public synchronized JSONArray getBrokerList() {
-        JSONArray brokerArray = new JSONArray();
-        for (HashMap<String, String> broker : brokerList) {
-            JSONObject brokerJson = new JSONObject();
-            brokerJson.put("brokerIp", broker.get("brokerIp"));
-            brokerJson.put("brokerPort", broker.get("brokerPort"));
-            brokerArray.add(brokerJson);
-        }
-        return brokerArray;
+    public JSONArray getBrokerList() {
+        return this.snapshot.toJSONArray();
     }
 
 }
@@ -0,0 +1,236 @@
+package directory;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Accepts and serves the connections of the Directory Service on a single selector thread.
+ * Publishers and subscribers open a connection for one lookup, so during a restart of many clients most
+ * connections live for a single request. The selector answers those lookups itself with the pre-encoded
+ * responses of the service, without a thread per connection. Any other connection (a broker registering,
+ * or a client watching the membership) stays open and is handed to a {@link DirectoryHandler} on the
+ * executor, together with the bytes already read from it.
+ */
+public class SelectorServer {
+    private static final int READ_BUFFER_SIZE = 4096; // Initial size of the buffer of each connection
+    private static final int MAX_LINE_LENGTH = 65536; // Longest request line accepted
+
+    private final DirectoryService directoryService;
+    private final ExecutorService executor; // Runs the handlers of the connections handed off
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+
+    /**
+     * State of a connection served by the selector.
+     */
+    private static class Connection {
+        private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE); // Bytes read and not yet handled
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>(); // Responses not yet fully written
+    }
+
+    /**
+     * Opens the listening socket.
+     *
+     * @param portNumber       The port number to listen on.
+     * @param backlog          The maximum number of connections waiting to be accepted.
+     * @param directoryService The service answering the requests.
+     * @param executor         The executor of the connections that stay open.
+     * @throws IOException if the port cannot be bound.
+     */
+    public SelectorServer(int portNumber, int backlog, DirectoryService directoryService, ExecutorService executor)
+            throws IOException {
+        this.directoryService = directoryService;
+        this.executor = executor;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(portNumber), backlog);
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Serves the connections until the selector fails.
+     *
+     * @throws IOException if the selector or the listening socket fails.
+     */
+    public void serve() throws IOException {
+        List<SelectionKey> handOffs = new ArrayList<>();
+        while (true) {
+            // Keys selected while handing off connections are still waiting to be handled
+            if (this.selector.selectedKeys().isEmpty()) {
+                this.selector.select();
+            }
+            Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        if (key.isWritable()) {
+                            write(key);
+                        }
+                        if (key.isValid() && key.isReadable() && read(key)) {
+                            key.cancel();
+                            handOffs.add(key);
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    close(key);
+                }
+            }
+            if (!handOffs.isEmpty()) {
+                // A channel can only go back to blocking mode once the selector has dropped its cancelled key
+                this.selector.selectNow();
+                for (SelectionKey key : handOffs) {
+                    handOff(key);
+                }
+                handOffs.clear();
+            }
+        }
+    }
+
+    /**
+     * Accepts all pending connections.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = this.serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.register(this.selector, SelectionKey.OP_READ, new Connection());
+        }
+    }
+
+    /**
+     * Reads from a connection and answers each complete lookup.
+     *
+     * @return true if a request that is not a one-shot lookup was received, and the connection must be
+     *         handed off; the request is left at the start of the buffer.
+     */
+    private boolean read(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        if (!connection.in.hasRemaining()) {
+            if (connection.in.capacity() >= MAX_LINE_LENGTH) {
+                throw new IOException("Request line too long");
+            }
+            connection.in = ByteBuffer.allocate(connection.in.capacity() * 2).put(connection.in.flip());
+        }
+        if (channel.read(connection.in) < 0) {
+            close(key);
+            return false;
+        }
+
+        ByteBuffer in = connection.in.flip();
+        try {
+            int lineStart = in.position();
+            for (int i = lineStart; i < in.limit(); i++) {
+                if (in.get(i) != '\n') {
+                    continue;
+                }
+                String line = new String(in.array(), lineStart, i - lineStart, StandardCharsets.UTF_8);
+                if (!isLookup(line)) {
+                    in.position(lineStart);
+                    return true;
+                }
+                connection.out.add(ByteBuffer.wrap(this.directoryService.lookupResponse()));
+                lineStart = i + 1;
+            }
+            in.position(lineStart);
+        } finally {
+            in.compact();
+        }
+        write(key);
+        return false;
+    }
+
+    /**
+     * Writes as much of the pending responses as the socket accepts, and waits for the socket to become
+     * writable again if some are left.
+     */
+    private void write(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        while (!connection.out.isEmpty()) {
+            ByteBuffer buffer = connection.out.peek();
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                break;
+            }
+            connection.out.poll();
+        }
+        key.interestOps(connection.out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Runs a DirectoryHandler for a connection that stays open. Its pending responses are written first,
+     * then the handler reads the bytes already received before reading from the socket.
+     */
+    private void handOff(SelectionKey key) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer in = connection.in.flip();
+        byte[] received = Arrays.copyOfRange(in.array(), in.position(), in.limit());
+        try {
+            channel.configureBlocking(true);
+        } catch (IOException e) {
+            close(key);
+            return;
+        }
+        this.executor.execute(() -> {
+            try {
+                for (ByteBuffer buffer : connection.out) {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+            } catch (IOException e) {
+                close(key);
+                return;
+            }
+            new DirectoryHandler(channel.socket(), this.directoryService, received).run();
+        });
+    }
+
+    /**
+     * @param line A request line.
+     * @return true if the line is a lookup from a publisher or subscriber that does not watch the membership.
+     */
+    private static boolean isLookup(String line) {
+        try {
+            JSONObject request = (JSONObject) new JSONParser().parse(line);
+            String userType = (String) request.get("user type");
+            return ("publisher".equals(userType) || "subscriber".equals(userType))
+                    && !Boolean.TRUE.equals(request.get("watch"));
+        } catch (ParseException | ClassCastException e) {
+            return false; // Left to the handler, which reports it
+        }
+    }
+
+    private static void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package protocol;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of the messages exchanged by the system.
+ * <p>
+ * A frame is a varint payload length followed by the payload. The payload
+ * starts with a one-byte opcode that replaces the "command" of a request or
+ * the "message type" of a reply, followed by a varint field count and the
+ * fields. Well-known keys such as "topic id" are written as a one-byte code
+ * (code 0 is followed by the key as a string). Each value starts with a type
+ * tag; decimal strings such as topic IDs are written as varints and restored
+ * as strings, so the decoded message is identical to the JSON one.
+ * <p>
+ * The tables below are part of the protocol: new entries must only ever be
+ * appended.
+ */
+public final class BinaryCodec {
+    /** Largest accepted payload, to reject corrupt length prefixes. */
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private static final int MESSAGE_TYPE_BASE = 0x40;
+
+    // Opcode i (1..) stands for "command": COMMANDS[i]
+    private static final List<String> COMMANDS = Arrays.asList(null, "create", "publish", "countSubscriber",
+            "delete", "list", "subscribe", "unsubscribe", "showCurrentSubscription", "stats", "sync", "publishBatch");
+    // Opcode MESSAGE_TYPE_BASE + i stands for "message type": MESSAGE_TYPES[i]
+    private static final List<String> MESSAGE_TYPES = Arrays.asList("response", "broadcast", "deleteNotify",
+            "list", "current", "stats");
+    // Key code i (1..) stands for KEYS[i]
+    private static final List<String> KEYS = Arrays.asList(null, "topic id", "topic name", "message", "publisher",
+            "title", "result", "detail", "subscriber", "syncAction", "deleted topics", "deleted topic", "count",
+            "command", "message type", "user type", "user name", "protocol", "messages", "failed topics",
+            "request id", "action", "offset", "from offset", "topics", "subscriptions", "remaining",
+            "request", "response", "broker");
+
+    private static final int TAG_STRING = 0;
+    private static final int TAG_NUMERIC_STRING = 1;
+    private static final int TAG_LONG = 2;
+    private static final int TAG_TRUE = 3;
+    private static final int TAG_FALSE = 4;
+    private static final int TAG_NULL = 5;
+    private static final int TAG_ARRAY = 6;
+    private static final int TAG_OBJECT = 7;
+    private static final int TAG_DOUBLE = 8;
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * Encodes a message into a length-prefixed frame.
+     *
+     * @param message the message to encode
+     * @return the frame bytes
+     */
+    public static byte[] encodeFrame(JSONObject message) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+        int opcode = 0;
+        String implicitKey = null;
+
+        int command = indexOf(COMMANDS, message.get("command"));
+        if (command > 0) {
+            opcode = command;
+            implicitKey = "command";
+        } else {
+            int messageType = indexOf(MESSAGE_TYPES, message.get("message type"));
+            if (messageType >= 0) {
+                opcode = MESSAGE_TYPE_BASE + messageType;
+                implicitKey = "message type";
+            }
+        }
+        payload.write(opcode);
+        writeFields(payload, message, implicitKey);
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.size() + 5);
+        writeVarint(frame, payload.size());
+        frame.writeBytes(payload.toByteArray());
+        return frame.toByteArray();
+    }
+
+    /**
+     * Decodes a complete frame, including its length prefix.
+     *
+     * @param frame the frame bytes
+     * @return the decoded message
+     * @throws IOException if the frame is malformed
+     */
+    public static JSONObject decodeFrame(byte[] frame) throws IOException {
+        Reader reader = new Reader(frame, 0, frame.length);
+        long length = reader.readVarint();
+        if (length != frame.length - reader.position) {
+            throw new IOException("Malformed frame: length mismatch");
+        }
+        return decodePayload(frame, reader.position, (int) length);
+    }
+
+    /**
+     * Decodes the payload of a frame (without its length prefix).
+     *
+     * @param payload the payload bytes
+     * @param offset  the offset of the payload
+     * @param length  the length of the payload
+     * @return the decoded message
+     * @throws IOException if the payload is malformed
+     */
+    public static JSONObject decodePayload(byte[] payload, int offset, int length) throws IOException {
+        Reader reader = new Reader(payload, offset, offset + length);
+        int opcode = reader.readByte();
+        JSONObject message = new JSONObject();
+        if (opcode >= MESSAGE_TYPE_BASE) {
+            message.put("message type", lookup(MESSAGE_TYPES, opcode - MESSAGE_TYPE_BASE));
+        } else if (opcode > 0) {
+            message.put("command", lookup(COMMANDS, opcode));
+        }
+        readFields(reader, message);
+        if (reader.position != reader.limit) {
+            throw new IOException("Malformed frame: trailing bytes");
+        }
+        return message;
+    }
+
+    /**
+     * Appends an unsigned varint.
+     *
+     * @param out   the destination
+     * @param value the non-negative value
+     */
+    static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeFields(ByteArrayOutputStream out, Map<?, ?> fields, String implicitKey) {
+        int count = fields.size() - (implicitKey != null ? 1 : 0);
+        writeVarint(out, count);
+        for (Map.Entry<?, ?> entry : fields.entrySet()) {
+            String key = String.valueOf(entry.getKey());
+            if (key.equals(implicitKey)) {
+                continue;
+            }
+            int code = KEYS.indexOf(key);
+            if (code > 0) {
+                out.write(code);
+            } else {
+                out.write(0);
+                writeString(out, key);
+            }
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    private static void writeValue(ByteArrayOutputStream out, Object value) {
+        if (value == null) {
+            out.write(TAG_NULL);
+        } else if (value instanceof String) {
+            String string = (String) value;
+            if (isCanonicalNumber(string)) {
+                out.write(TAG_NUMERIC_STRING);
+                writeVarint(out, Long.parseLong(string));
+            } else {
+                out.write(TAG_STRING);
+                writeString(out, string);
+            }
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            long number = ((Number) value).longValue();
+            out.write(TAG_LONG);
+            writeVarint(out, (number << 1) ^ (number >> 63)); // zigzag
+        } else if (value instanceof Number) {
+            long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+            out.write(TAG_DOUBLE);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) (bits >>> shift));
+            }
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            out.write(TAG_ARRAY);
+            writeVarint(out, list.size());
+            for (Object item : list) {
+                writeValue(out, item);
+            }
+        } else if (value instanceof Map) {
+            out.write(TAG_OBJECT);
+            writeFields(out, (Map<?, ?>) value, null);
+        } else {
+            out.write(TAG_STRING);
+            writeString(out, value.toString());
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void readFields(Reader reader, Map<String, Object> target) throws IOException {
+        long count = reader.readVarint();
+        for (long i = 0; i < count; i++) {
+            int code = reader.readByte();
+            String key = code == 0 ? reader.readString() : lookup(KEYS, code);
+            target.put(key, readValue(reader));
+        }
+    }
+
+    private static Object readValue(Reader reader) throws IOException {
+        int tag = reader.readByte();
+        switch (tag) {
+            case TAG_STRING:
+                return reader.readString();
+            case TAG_NUMERIC_STRING:
+                return Long.toString(reader.readVarint());
+            case TAG_LONG:
+                long zigzag = reader.readVarint();
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_NULL:
+                return null;
+            case TAG_ARRAY:
+                long size = reader.readVarint();
+                JSONArray array = new JSONArray();
+                for (long i = 0; i < size; i++) {
+                    array.add(readValue(reader));
+                }
+                return array;
+            case TAG_OBJECT:
+                JSONObject object = new JSONObject();
+                readFields(reader, object);
+                return object;
+            case TAG_DOUBLE:
+                long bits = 0;
+                for (int i = 0; i < 8; i++) {
+                    bits = (bits << 8) | reader.readByte();
+                }
+                return Double.longBitsToDouble(bits);
+            default:
+                throw new IOException("Malformed frame: unknown value tag " + tag);
+        }
+    }
+
+    /**
+     * Checks whether a string is a decimal number that survives a round trip
+     * through a long (no sign, no leading zeros).
+     */
+    private static boolean isCanonicalNumber(String value) {
+        int length = value.length();
+        if (length == 0 || length > 18 || (length > 1 && value.charAt(0) == '0')) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(List<String> table, Object value) {
+        return value instanceof String ? table.indexOf(value) : -1;
+    }
+
+    private static String lookup(List<String> table, int index) throws IOException {
+        if (index < 0 || index >= table.size() || table.get(index) == null) {
+            throw new IOException("Malformed frame: unknown code " + index);
+        }
+        return table.get(index);
+    }
+
+    /**
+     * Sequential reader over a payload.
+     */
+    private static class Reader {
+        private final byte[] data;
+        private final int limit;
+        private int position;
+
+        Reader(byte[] data, int position, int limit) {
+            this.data = data;
+            this.position = position;
+            this.limit = limit;
+        }
+
+        int readByte() throws IOException {
+            if (this.position >= this.limit) {
+                throw new IOException("Malformed frame: truncated");
+            }
+            return this.data[this.position++] & 0xFF;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed frame: varint too long");
+        }
+
+        String readString() throws IOException {
+            long length = readVarint();
+            if (length > this.limit - this.position) {
+                throw new IOException("Malformed frame: truncated string");
+            }
+            String value = new String(this.data, this.position, (int) length, StandardCharsets.UTF_8);
+            this.position += (int) length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package protocol;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Connects to the Directory Service with bounded waits and retries.
+ * When many clients restart at once, the directory's accept queue can be full
+ * for a moment: a connection attempt is then refused or left unanswered. Each
+ * attempt is limited to CONNECT_TIMEOUT_MILLIS to connect and
+ * READ_TIMEOUT_MILLIS for the answer, and failed attempts are retried after an
+ * exponential backoff with random jitter, so that the clients do not all come
+ * back at the same moment.
+ */
+public final class DirectoryLookup {
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000; // Maximum wait for the connection
+    private static final int READ_TIMEOUT_MILLIS = 3000; // Maximum wait for the answer
+    private static final int ATTEMPTS = 5; // Attempts before giving up
+    private static final long INITIAL_BACKOFF_MILLIS = 100; // Wait after the first failure, doubled each time
+    private static final long MAX_BACKOFF_MILLIS = 2000;
+
+    /**
+     * An attempt that can be retried.
+     */
+    public interface Attempt<T> {
+        T run() throws IOException;
+    }
+
+    private DirectoryLookup() {
+    }
+
+    /**
+     * Sends a lookup to the Directory Service and reads the answer.
+     *
+     * @param directoryIp   the IP address of the Directory Service
+     * @param directoryPort the port number of the Directory Service
+     * @param userType      "publisher" or "subscriber"
+     * @return the answer, with "brokers" and "recommended"
+     * @throws IOException if every attempt has failed; the last failure is thrown
+     */
+    public static JSONObject query(String directoryIp, int directoryPort, String userType) throws IOException {
+        return withRetries(() -> {
+            try (Socket socket = connect(directoryIp, directoryPort);
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                    PrintWriter writer = new PrintWriter(socket.getOutputStream(), true)) {
+                JSONObject request = new JSONObject();
+                request.put("user type", userType);
+                writer.println(request.toJSONString());
+                return readResponse(reader);
+            }
+        });
+    }
+
+    /**
+     * Opens a connection to the Directory Service. The read timeout is set to
+     * READ_TIMEOUT_MILLIS; a caller that keeps the connection open clears it
+     * after the first answer.
+     *
+     * @param directoryIp   the IP address of the Directory Service
+     * @param directoryPort the port number of the Directory Service
+     * @return the connected socket
+     * @throws IOException if the connection fails or times out
+     */
+    public static Socket connect(String directoryIp, int directoryPort) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(directoryIp, directoryPort), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads one answer of the Directory Service.
+     *
+     * @param reader the reader of the connection
+     * @return the answer
+     * @throws IOException if the connection closes, times out or the answer is not a JSON object
+     */
+    public static JSONObject readResponse(BufferedReader reader) throws IOException {
+        String line = reader.readLine();
+        if (line == null) {
+            throw new IOException("The Directory Service closed the connection");
+        }
+        try {
+            return (JSONObject) new JSONParser().parse(line);
+        } catch (ParseException | ClassCastException e) {
+            throw new IOException("Malformed directory response", e);
+        }
+    }
+
+    /**
+     * Runs an attempt until it succeeds or ATTEMPTS attempts have failed.
+     *
+     * @param attempt the attempt
+     * @return the result of the first successful attempt
+     * @throws IOException the failure of the last attempt
+     */
+    public static <T> T withRetries(Attempt<T> attempt) throws IOException {
+        for (int failures = 0; ; failures++) {
+            try {
+                return attempt.run();
+            } catch (IOException e) {
+                if (failures + 1 >= ATTEMPTS) {
+                    throw e;
+                }
+            }
+            try {
+                Thread.sleep(backoffMillis(failures));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while retrying the Directory Service", e);
+            }
+        }
+    }
+
+    /**
+     * @param failures the number of failed attempts so far, minus one
+     * @return a random wait between half and all of INITIAL_BACKOFF_MILLIS
+     *         doubled for each earlier failure, capped at MAX_BACKOFF_MILLIS
+     */
+    public static long backoffMillis(int failures) {
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(failures, 20));
+        return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+    }
+}
@@ -0,0 +1,130 @@
+package protocol;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A publisher's or subscriber's view of the brokers listed by the Directory
+ * Service, kept up to date without polling.
+ * The lookup is retried as described in {@link DirectoryLookup} and asks the
+ * directory to keep the connection open; a daemon thread
+ * then applies the "joined" and "left" membership changes the directory pushes
+ * until the connection is closed.
+ */
+public class DirectoryWatch implements Closeable {
+    private final Socket socket;
+    private final BufferedReader reader;
+    private final List<JSONObject> brokers = new CopyOnWriteArrayList<>(); // brokerIp and brokerPort of each broker
+    private final JSONObject recommended; // Broker recommended by the directory at lookup, or null
+
+    private DirectoryWatch(Socket socket, BufferedReader reader, JSONObject response) {
+        this.socket = socket;
+        this.reader = reader;
+        JSONArray list = (JSONArray) response.get("brokers");
+        if (list != null) {
+            for (Object broker : list) {
+                this.brokers.add((JSONObject) broker);
+            }
+        }
+        this.recommended = (JSONObject) response.get("recommended");
+    }
+
+    /**
+     * Looks up the brokers and starts watching the membership.
+     *
+     * @param directoryIp   the IP address of the Directory Service
+     * @param directoryPort the port number of the Directory Service
+     * @param userType      "publisher" or "subscriber"
+     * @return the watch
+     * @throws IOException if the directory cannot be reached or answers
+     *                     something else than a broker list
+     */
+    public static DirectoryWatch open(String directoryIp, int directoryPort, String userType) throws IOException {
+        return DirectoryLookup.withRetries(() -> {
+            Socket socket = DirectoryLookup.connect(directoryIp, directoryPort);
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+                JSONObject request = new JSONObject();
+                request.put("user type", userType);
+                request.put("watch", true);
+                writer.println(request.toJSONString());
+
+                DirectoryWatch watch = new DirectoryWatch(socket, reader, DirectoryLookup.readResponse(reader));
+                socket.setSoTimeout(0); // Changes can be minutes apart
+                Thread thread = new Thread(watch::readChanges, "directory-watch");
+                thread.setDaemon(true);
+                thread.start();
+                return watch;
+            } catch (IOException | ClassCastException e) {
+                socket.close();
+                throw e instanceof IOException ? (IOException) e : new IOException("Malformed directory response", e);
+            }
+        });
+    }
+
+    /**
+     * @return the broker recommended by the directory at lookup, or a broker
+     *         picked at random if it recommended none, or null if there is no
+     *         broker
+     */
+    public JSONObject recommendedBroker() {
+        if (this.recommended != null) {
+            return this.recommended;
+        }
+        List<JSONObject> current = getBrokers();
+        return current.isEmpty() ? null : current.get(new Random().nextInt(current.size()));
+    }
+
+    /**
+     * @return a copy of the brokers currently listed, each with "brokerIp" and
+     *         "brokerPort"
+     */
+    public List<JSONObject> getBrokers() {
+        return new ArrayList<>(this.brokers);
+    }
+
+    /**
+     * Stops watching and closes the connection to the directory.
+     */
+    @Override
+    public void close() throws IOException {
+        this.socket.close();
+    }
+
+    /**
+     * Applies the pushed membership changes until the connection is closed.
+     */
+    private void readChanges() {
+        JSONParser parser = new JSONParser();
+        try {
+            String line;
+            while ((line = this.reader.readLine()) != null) {
+                JSONObject change = (JSONObject) parser.parse(line);
+                JSONObject broker = new JSONObject();
+                broker.put("brokerIp", change.get("brokerIp"));
+                broker.put("brokerPort", change.get("brokerPort"));
+                if ("joined".equals(change.get("membership")) && !this.brokers.contains(broker)) {
+                    this.brokers.add(broker);
+                } else if ("left".equals(change.get("membership"))) {
+                    this.brokers.remove(broker);
+                }
+            }
+        } catch (IOException | ParseException e) {
+            // The connection has been closed; the last known list is kept
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package protocol;
+
+import org.json.simple.JSONObject;
+
+/**
+ * A message that is sent to many connections, such as a broadcast or a sync
+ * message. Each wire format is encoded at most once, on first use, and the
+ * resulting bytes are shared by every connection speaking that format.
+ * The message must not be modified after it has been wrapped.
+ */
+public final class EncodedMessage {
+    private final JSONObject message;
+    private volatile byte[] json;
+    private volatile byte[] binary;
+
+    /**
+     * @param message the message to send
+     */
+    public EncodedMessage(JSONObject message) {
+        this.message = message;
+    }
+
+    /**
+     * @return the wrapped message
+     */
+    public JSONObject getMessage() {
+        return this.message;
+    }
+
+    /**
+     * Returns the frame for a wire format, encoding it on first use.
+     *
+     * @param format the wire format of the destination connection
+     * @return the shared frame bytes, which must not be modified
+     */
+    public byte[] bytes(WireFormat format) {
+        if (format == WireFormat.BINARY) {
+            byte[] frame = this.binary;
+            if (frame == null) {
+                frame = format.encode(this.message);
+                this.binary = frame;
+            }
+            return frame;
+        }
+        byte[] frame = this.json;
+        if (frame == null) {
+            frame = format.encode(this.message);
+            this.json = frame;
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,120 @@
+package protocol;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Incremental decoder for non-blocking readers. Bytes are appended as they
+ * arrive and complete messages are taken out one at a time. The wire format
+ * is passed for every message, so a connection can switch from JSON to binary
+ * right after the handshake even if both arrived in the same read.
+ */
+public class FrameDecoder {
+    private final JSONParser parser = new JSONParser();
+    private byte[] buffer = new byte[8 * 1024];
+    private int start;
+    private int end;
+    private int scanned; // Bytes after start already searched for a newline
+
+    /**
+     * Appends the remaining bytes of a buffer.
+     *
+     * @param source the bytes read from the channel
+     */
+    public void append(ByteBuffer source) {
+        int length = source.remaining();
+        ensureCapacity(length);
+        source.get(this.buffer, this.end, length);
+        this.end += length;
+    }
+
+    /**
+     * Takes the next complete message out of the buffer.
+     *
+     * @param format the wire format of the next message
+     * @return the message, or null if more bytes are needed
+     * @throws IOException    if a binary frame is malformed, or a message is longer than
+     *                        {@link BinaryCodec#MAX_FRAME_SIZE}
+     * @throws ParseException if a JSON line is malformed
+     */
+    public JSONObject next(WireFormat format) throws IOException, ParseException {
+        if (format == WireFormat.BINARY) {
+            return nextBinary();
+        }
+        return nextJson();
+    }
+
+    private JSONObject nextJson() throws IOException, ParseException {
+        for (int i = this.start + this.scanned; i < this.end; i++) {
+            if (this.buffer[i] == '\n') {
+                int lineEnd = i > this.start && this.buffer[i - 1] == '\r' ? i - 1 : i;
+                String line = new String(this.buffer, this.start, lineEnd - this.start, StandardCharsets.UTF_8);
+                consume(i + 1);
+                return (JSONObject) this.parser.parse(line);
+            }
+        }
+        this.scanned = this.end - this.start;
+        if (this.scanned > BinaryCodec.MAX_FRAME_SIZE) {
+            // Without a limit a peer that never ends its line would grow the buffer without bound
+            throw new IOException("Line of more than " + BinaryCodec.MAX_FRAME_SIZE + " bytes");
+        }
+        return null;
+    }
+
+    private JSONObject nextBinary() throws IOException {
+        long length = 0;
+        int position = this.start;
+        for (int shift = 0;; shift += 7) {
+            if (position >= this.end) {
+                return null; // Length prefix not complete yet
+            }
+            if (shift > 28) {
+                throw new IOException("Malformed frame: length prefix too long");
+            }
+            int b = this.buffer[position++] & 0xFF;
+            length |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length > BinaryCodec.MAX_FRAME_SIZE) {
+            throw new IOException("Frame of " + length + " bytes exceeds the maximum size");
+        }
+        if (this.end - position < length) {
+            return null; // Payload not complete yet
+        }
+        JSONObject message = BinaryCodec.decodePayload(this.buffer, position, (int) length);
+        consume(position + (int) length);
+        return message;
+    }
+
+    private void consume(int newStart) {
+        this.start = newStart;
+        this.scanned = 0;
+        if (this.start == this.end) {
+            this.start = 0;
+            this.end = 0;
+        }
+    }
+
+    private void ensureCapacity(int additional) {
+        if (this.end + additional <= this.buffer.length) {
+            return;
+        }
+        int pending = this.end - this.start;
+        if (pending + additional <= this.buffer.length / 2) {
+            System.arraycopy(this.buffer, this.start, this.buffer, 0, pending); // Compact in place
+        } else {
+            this.buffer = Arrays.copyOfRange(this.buffer, this.start,
+                    Math.max(this.buffer.length * 2, pending + additional));
+        }
+        this.start = 0;
+        this.end = pending;
+    }
+}
@@ -0,0 +1,185 @@
+package protocol;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Blocking message reader and writer on top of a socket, used by the
+ * publisher, the subscriber and the broker's blocking connections.
+ * Messages are read and written in the stream's current wire format, which
+ * starts as JSON and can be switched to binary by {@link #handshake}.
+ */
+public class MessageStream implements Closeable {
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 2000;
+
+    private final Socket socket;
+    private final InputStream in;
+    private final BufferedOutputStream out;
+    private final JSONParser parser = new JSONParser();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private volatile WireFormat format = WireFormat.JSON;
+
+    /**
+     * Wraps a connected socket.
+     *
+     * @param socket the connected socket
+     * @throws IOException if the socket's streams cannot be opened
+     */
+    public MessageStream(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new BufferedInputStream(socket.getInputStream());
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * @return the wire format currently used by this stream
+     */
+    public WireFormat getFormat() {
+        return this.format;
+    }
+
+    /**
+     * Sends the user information and, if requested, negotiates the binary wire
+     * format. The other end confirms the binary format with a JSON line
+     * containing "protocol": "binary"; if no confirmation arrives in time the
+     * stream keeps using JSON.
+     *
+     * @param userInfo     the user information sent as the first message
+     * @param preferBinary whether to ask for the binary format
+     * @return the wire format in use after the handshake
+     * @throws IOException if the socket cannot be used
+     */
+    public WireFormat handshake(JSONObject userInfo, boolean preferBinary) throws IOException {
+        if (preferBinary) {
+            userInfo.put(WireFormat.HANDSHAKE_KEY, WireFormat.BINARY_NAME);
+        }
+        write(userInfo);
+        if (!preferBinary) {
+            return this.format;
+        }
+
+        int previousTimeout = this.socket.getSoTimeout();
+        this.socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        try {
+            JSONObject ack = read(WireFormat.JSON);
+            if (ack != null && WireFormat.BINARY_NAME.equals(ack.get(WireFormat.HANDSHAKE_KEY))) {
+                this.format = WireFormat.BINARY;
+            }
+        } catch (SocketTimeoutException | ParseException e) {
+            // The other end does not speak the binary protocol; stay on JSON
+        } finally {
+            this.socket.setSoTimeout(previousTimeout);
+        }
+        return this.format;
+    }
+
+    /**
+     * Writes a message in the current format and flushes it.
+     *
+     * @param message the message to send
+     * @throws IOException if the socket cannot be written to
+     */
+    public void write(JSONObject message) throws IOException {
+        byte[] frame = this.format.encode(message);
+        this.writeLock.lock();
+        try {
+            this.out.write(frame);
+            this.out.flush();
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    /**
+     * Reads the next message in the current format.
+     *
+     * @return the message, or null at the end of the stream
+     * @throws IOException    if the socket cannot be read or a frame is malformed
+     * @throws ParseException if a JSON line is malformed
+     */
+    public JSONObject read() throws IOException, ParseException {
+        return read(this.format);
+    }
+
+    /**
+     * Reads the next message in the given format.
+     *
+     * @param format the wire format of the next message
+     * @return the message, or null at the end of the stream
+     * @throws IOException    if the socket cannot be read or a frame is malformed
+     * @throws ParseException if a JSON line is malformed
+     */
+    public JSONObject read(WireFormat format) throws IOException, ParseException {
+        if (format == WireFormat.BINARY) {
+            return readBinary();
+        }
+        String line = readLine();
+        return line == null ? null : (JSONObject) this.parser.parse(line);
+    }
+
+    /**
+     * @return true if the underlying socket has been closed
+     */
+    public boolean isClosed() {
+        return this.socket.isClosed();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.socket.close();
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = this.in.read()) != '\n') {
+            if (b < 0) {
+                return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+            }
+            line.write(b);
+        }
+        String value = line.toString(StandardCharsets.UTF_8);
+        return value.endsWith("\r") ? value.substring(0, value.length() - 1) : value;
+    }
+
+    private JSONObject readBinary() throws IOException {
+        long length = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = this.in.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return null; // Clean end of stream between frames
+                }
+                throw new EOFException("Connection closed inside a frame");
+            }
+            if (shift > 28) {
+                throw new IOException("Malformed frame: length prefix too long");
+            }
+            length |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length > BinaryCodec.MAX_FRAME_SIZE) {
+            throw new IOException("Frame of " + length + " bytes exceeds the maximum size");
+        }
+        byte[] payload = this.in.readNBytes((int) length);
+        if (payload.length < length) {
+            throw new EOFException("Connection closed inside a frame");
+        }
+        return BinaryCodec.decodePayload(payload, 0, payload.length);
+    }
+}
@@ -0,0 +1,148 @@
+package protocol;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates the threads of the brokers and of the Directory Service.
+ * The system runs on Java 17. Virtual threads exist only from Java 21 on, so
+ * they are looked up by reflection: on an older runtime
+ * {@link #virtualThreadsSupported()} is false and only platform threads are
+ * used.
+ */
+public final class ThreadFactories {
+    private static final Method OF_VIRTUAL; // Thread.ofVirtual(), or null before Java 21
+    private static final Method BUILDER_NAME; // Thread.Builder.name(String)
+    private static final Method BUILDER_NAME_COUNTER; // Thread.Builder.name(String, long)
+    private static final Method BUILDER_FACTORY; // Thread.Builder.factory()
+    private static final Method BUILDER_UNSTARTED; // Thread.Builder.unstarted(Runnable)
+    private static final Method IS_VIRTUAL; // Thread.isVirtual()
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR; // Executors.newThreadPerTaskExecutor(ThreadFactory)
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method nameCounter = null;
+        Method factory = null;
+        Method unstarted = null;
+        Method isVirtual = null;
+        Method newThreadPerTaskExecutor = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class);
+            nameCounter = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+            isVirtual = Thread.class.getMethod("isVirtual");
+            newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        } catch (ReflectiveOperationException e) {
+            ofVirtual = null; // Before Java 21
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = name;
+        BUILDER_NAME_COUNTER = nameCounter;
+        BUILDER_FACTORY = factory;
+        BUILDER_UNSTARTED = unstarted;
+        IS_VIRTUAL = isVirtual;
+        NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+    }
+
+    private ThreadFactories() {
+    }
+
+    /**
+     * @return true if the runtime has virtual threads (Java 21 or later)
+     */
+    public static boolean virtualThreadsSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @param prefix the name of the threads, followed by a counter
+     * @return a factory of virtual threads
+     * @throws UnsupportedOperationException before Java 21
+     */
+    public static ThreadFactory virtual(String prefix) {
+        return (ThreadFactory) invoke(BUILDER_FACTORY, invoke(BUILDER_NAME_COUNTER, virtualBuilder(), prefix, 0L));
+    }
+
+    /**
+     * @param prefix the name of the threads, followed by a counter
+     * @param daemon whether the threads are daemon threads
+     * @return a factory of platform threads
+     */
+    public static ThreadFactory platform(String prefix, boolean daemon) {
+        AtomicLong counter = new AtomicLong();
+        return task -> {
+            Thread thread = new Thread(task, prefix + counter.getAndIncrement());
+            thread.setDaemon(daemon);
+            return thread;
+        };
+    }
+
+    /**
+     * Creates an unstarted thread. A platform thread is a daemon thread.
+     *
+     * @param name    the thread name
+     * @param task    the task to run
+     * @param virtual whether to create a virtual thread
+     * @return the new thread
+     * @throws UnsupportedOperationException if a virtual thread is asked for before Java 21
+     */
+    public static Thread newThread(String name, Runnable task, boolean virtual) {
+        if (virtual) {
+            return (Thread) invoke(BUILDER_UNSTARTED, invoke(BUILDER_NAME, virtualBuilder(), name), task);
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * @param thread a thread
+     * @return true if it is a virtual thread
+     */
+    public static boolean isVirtual(Thread thread) {
+        return IS_VIRTUAL != null && (Boolean) invoke(IS_VIRTUAL, thread);
+    }
+
+    /**
+     * Creates an executor that runs each task on a new thread of the factory.
+     * Before Java 21, idle threads are reused for a while instead.
+     *
+     * @param factory the factory of the threads
+     * @return the executor
+     */
+    public static ExecutorService newThreadPerTaskExecutor(ThreadFactory factory) {
+        if (NEW_THREAD_PER_TASK_EXECUTOR == null) {
+            return Executors.newCachedThreadPool(factory);
+        }
+        return (ExecutorService) invoke(NEW_THREAD_PER_TASK_EXECUTOR, null, factory);
+    }
+
+    private static Object virtualBuilder() {
+        if (OF_VIRTUAL == null) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+        }
+        return invoke(OF_VIRTUAL, null);
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package protocol;
+
+/**
+ * Rules for hierarchical topic IDs and the filters subscribers follow them
+ * with.
+ * A topic ID is one or more non-empty levels separated by '/', such as "7" or
+ * "sensors/eu/fr/temp". A filter has the same form, except that a level may be
+ * "+" to match exactly one level, and the last level may be "#" to match any
+ * number of remaining levels, including none: "sensors/+/fr/temp" and
+ * "sensors/#" both match "sensors/eu/fr/temp", and "sensors/#" also matches
+ * "sensors".
+ */
+public final class TopicNames {
+    public static final String SEPARATOR = "/";
+    public static final String SINGLE_LEVEL = "+";
+    public static final String MULTI_LEVEL = "#";
+
+    private TopicNames() {
+    }
+
+    /**
+     * @param name a topic ID or filter
+     * @return its levels
+     */
+    public static String[] levels(String name) {
+        return name.split(SEPARATOR, -1);
+    }
+
+    /**
+     * @param topicId a topic ID given by a user
+     * @return true if it is a valid topic ID, without wildcards
+     */
+    public static boolean isValidTopic(String topicId) {
+        if (topicId == null || topicId.isEmpty()) {
+            return false;
+        }
+        for (String level : levels(topicId)) {
+            if (level.isEmpty() || level.contains(SINGLE_LEVEL) || level.contains(MULTI_LEVEL)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param filter a topic ID or filter given by a user
+     * @return true if it is a valid topic ID or a valid filter
+     */
+    public static boolean isValidFilter(String filter) {
+        if (filter == null || filter.isEmpty()) {
+            return false;
+        }
+        String[] levels = levels(filter);
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            if (level.equals(MULTI_LEVEL)) {
+                if (i != levels.length - 1) {
+                    return false;
+                }
+            } else if (!level.equals(SINGLE_LEVEL)
+                    && (level.isEmpty() || level.contains(SINGLE_LEVEL) || level.contains(MULTI_LEVEL))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param filter a topic ID or filter
+     * @return true if it contains a wildcard and so may match several topics
+     */
+    public static boolean isWildcard(String filter) {
+        return filter.contains(SINGLE_LEVEL) || filter.contains(MULTI_LEVEL);
+    }
+}
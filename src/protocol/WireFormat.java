@@ -0,0 +1,35 @@
+package protocol;
+
+import org.json.simple.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The two wire formats spoken between publishers, subscribers and brokers.
+ * JSON is the original line-delimited json-simple text protocol and is always
+ * used for the initial user-info handshake. BINARY is the compact
+ * length-prefixed framing of {@link BinaryCodec}; it is used after both ends
+ * have agreed on it during the handshake.
+ */
+public enum WireFormat {
+    JSON,
+    BINARY;
+
+    /** Handshake field in which a client asks for a wire format. */
+    public static final String HANDSHAKE_KEY = "protocol";
+    /** Value of the handshake field that asks for the binary format. */
+    public static final String BINARY_NAME = "binary";
+
+    /**
+     * Encodes a message into a frame of this format.
+     *
+     * @param message the message to encode
+     * @return the encoded frame, including its delimiter or length prefix
+     */
+    public byte[] encode(JSONObject message) {
+        if (this == BINARY) {
+            return BinaryCodec.encodeFrame(message);
+        }
+        return (message.toJSONString() + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -4,12 +4,21 @@ import java.io.*;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.Arrays;
+import java.util.Map;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
+import protocol.DirectoryLookup;
+import protocol.MessageStream;
+import protocol.TopicNames;
 
 /**
  * Represents a publisher that interacts with a broker in a publisher-subscriber
@@ -18,27 +27,40 @@ import org.json.simple.parser.ParseException;
  * counts for their topics, and delete topics.
  * It can either connect directly to a broker or use the '-d' option to query a
  * Directory Service for available brokers.
+ * The connection to the broker asks for the binary wire format and falls back
+ * to line-delimited JSON if the broker does not confirm it.
+ * <p>
+ * Every request is tagged with a "request id" that the broker echoes in its
+ * response. A receiver thread reads the responses and completes the matching
+ * futures, so callers of the asynchronous API such as
+ * {@link #publishAsync(String, String)} can keep many requests in flight
+ * instead of waiting one round trip per message.
  */
 public class Publisher {
     private static final String CREATE = "create";
     private static final String PUBLISH = "publish";
+    private static final String BATCH = "batch";
+    private static final String BATCH_SEPARATOR = " | "; // Separates the messages of a batch command
     private static final String SHOW = "show";
     private static final String DELETE = "delete";
     private static final String EXIT = "exit";
 
-    private BufferedReader reader;
-    private PrintWriter writer;
+    private static final int MAX_IN_FLIGHT = 1024; // Maximum number of requests awaiting a response
+
+    private MessageStream stream;
+    private final ConcurrentSkipListMap<Long, CompletableFuture<JSONObject>> pending = new ConcurrentSkipListMap<>();
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+    private volatile IOException failure; // Set once the connection to the broker is lost
 
     /**
-     * Constructor to initialize the Publisher with a reader and writer for
+     * Constructor to initialize the Publisher with the message stream used for
      * communication with the broker.
      *
-     * @param reader the BufferedReader for reading messages from the broker
-     * @param writer the PrintWriter for sending messages to the broker
+     * @param stream the MessageStream connected to the broker
      */
-    public Publisher(BufferedReader reader, PrintWriter writer) {
-        this.reader = reader;
-        this.writer = writer;
+    public Publisher(MessageStream stream) {
+        this.stream = stream;
     }
 
     /**
@@ -59,16 +81,12 @@ public class Publisher {
             String[] directoryAddress = args[2].split(":");
             String directoryIp = directoryAddress[0];
             int directoryPort = Integer.parseInt(directoryAddress[1]);
-            JSONArray brokerList = getBrokers(directoryIp, directoryPort);
+            JSONObject brokerInfo = getRecommendedBroker(directoryIp, directoryPort);
 
-            if (brokerList.isEmpty()) {
+            if (brokerInfo == null) {
                 System.out.println("No available brokers");
                 return;
             }
-            // Randomly select a broker from the list
-            Random random = new Random();
-            int randomIndex = random.nextInt(brokerList.size());
-            JSONObject brokerInfo = (JSONObject) brokerList.get(randomIndex);
             brokerIp = (String) brokerInfo.get("brokerIp");
             brokerPort = Integer.parseInt((String) brokerInfo.get("brokerPort"));
             System.out.println("Connecting to broker: " + brokerIp + ":" + brokerPort);
@@ -82,10 +100,9 @@ public class Publisher {
         }
 
         try (Socket socket = new Socket(brokerIp, brokerPort);
-                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                PrintWriter writer = new PrintWriter(socket.getOutputStream(), true)) {
+                MessageStream stream = new MessageStream(socket)) {
 
-            Publisher publisher = new Publisher(reader, writer);
+            Publisher publisher = new Publisher(stream);
             String userName = args[0];
             publisher.sendUserInfo(userName);
             System.out.println("Connected to the broker");
@@ -112,25 +129,161 @@ public class Publisher {
      * Displays the menu of available commands for the publisher.
      */
     private static void displayMenu() {
-        System.out.println("Please select command: create, publish, show, delete.");
+        System.out.println("Please select command: create, publish, batch, show, delete.");
         System.out.println("1. create {topic_id} {topic_name} #create a new topic");
         System.out.println("2. publish {topic_id} {message} # publish a message to an existing topic");
-        System.out.println("3. show  #show subscriber count for current publisher");
-        System.out.println("4. delete {topic_id} #delete a topic");
-        System.out.println("5. exit");
+        System.out.println("3. batch {topic_id} {message} | {message} ... # publish several messages at once");
+        System.out.println("4. show  #show subscriber count for current publisher");
+        System.out.println("5. delete {topic_id} #delete a topic");
+        System.out.println("6. exit");
     }
 
     /**
      * Sends user information (user name and type) to the broker when establishing a
-     * connection.
+     * connection, negotiates the wire format, and starts the thread that
+     * receives the responses.
      *
      * @param userName the name of the user (publisher)
+     * @throws IOException if there is an error in communication with the broker
      */
-    private void sendUserInfo(String userName) {
+    public void sendUserInfo(String userName) throws IOException {
         JSONObject userInfo = new JSONObject();
         userInfo.put("user type", "publisher");
         userInfo.put("user name", userName);
-        this.writer.println(userInfo.toJSONString());
+        this.stream.handshake(userInfo, true);
+
+        Thread receiver = new Thread(this::receiveResponses, "publisher-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * Sends a request to the broker and waits for its response.
+     *
+     * @param request the request to send
+     * @return the broker's response
+     * @throws IOException    if there is an error in communication with the broker
+     * @throws ParseException if there is an error parsing the broker's response
+     */
+    private JSONObject sendRequest(JSONObject request) throws IOException, ParseException {
+        try {
+            return sendAsync(request).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the broker");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ParseException) {
+                throw (ParseException) e.getCause();
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Sends a request to the broker without waiting for its response. At most
+     * MAX_IN_FLIGHT requests can be outstanding; beyond that this method blocks
+     * until a response arrives.
+     *
+     * @param request the request to send; a "request id" is added to it
+     * @return a future completed with the broker's response, or exceptionally if
+     *         the connection is lost
+     * @throws IOException if the request cannot be sent
+     */
+    public CompletableFuture<JSONObject> sendAsync(JSONObject request) throws IOException {
+        try {
+            this.inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to send a request");
+        }
+
+        long requestId = this.nextRequestId.incrementAndGet();
+        CompletableFuture<JSONObject> future = new CompletableFuture<>();
+        future.whenComplete((response, error) -> this.inFlight.release());
+        this.pending.put(requestId, future);
+        request.put("request id", requestId);
+        try {
+            if (this.failure != null) {
+                throw this.failure;
+            }
+            this.stream.write(request);
+        } catch (IOException e) {
+            this.pending.remove(requestId);
+            future.completeExceptionally(e);
+            throw e;
+        }
+        if (this.failure != null && this.pending.remove(requestId) != null) {
+            future.completeExceptionally(this.failure); // The receiver stopped while we were sending
+        }
+        return future;
+    }
+
+    /**
+     * Publishes a message without waiting for the acknowledgement.
+     *
+     * @param topicId the ID of the topic
+     * @param message the message to publish
+     * @return a future completed with the broker's response
+     * @throws IOException if the request cannot be sent
+     */
+    public CompletableFuture<JSONObject> publishAsync(String topicId, String message) throws IOException {
+        JSONObject request = new JSONObject();
+        request.put("command", "publish");
+        request.put("topic id", topicId);
+        request.put("message", message);
+        return sendAsync(request);
+    }
+
+    /**
+     * Receiver loop: completes the future of each response, matched by its
+     * "request id". A response without an ID completes the oldest outstanding
+     * request, since the broker answers in order.
+     */
+    private void receiveResponses() {
+        IOException cause;
+        while (true) {
+            try {
+                JSONObject response = this.stream.read();
+                if (response == null) {
+                    cause = new EOFException("The broker closed the connection");
+                    break;
+                }
+                Object requestId = response.get("request id");
+                CompletableFuture<JSONObject> future;
+                if (requestId instanceof Long) {
+                    future = this.pending.remove(requestId);
+                } else {
+                    Map.Entry<Long, CompletableFuture<JSONObject>> oldest = this.pending.pollFirstEntry();
+                    future = oldest == null ? null : oldest.getValue();
+                }
+                if (future != null) {
+                    future.complete(response);
+                }
+            } catch (ParseException e) {
+                // The offending response cannot be matched; fail everything in flight
+                failPending(e);
+            } catch (IOException e) {
+                cause = e;
+                break;
+            }
+        }
+        this.failure = cause;
+        failPending(cause);
+    }
+
+    /**
+     * Completes every outstanding request exceptionally.
+     *
+     * @param cause the reason the requests failed
+     */
+    private void failPending(Exception cause) {
+        Map.Entry<Long, CompletableFuture<JSONObject>> entry;
+        while ((entry = this.pending.pollFirstEntry()) != null) {
+            entry.getValue().completeExceptionally(cause);
+        }
     }
 
     /**
@@ -152,6 +305,9 @@ public class Publisher {
             case PUBLISH:
                 publish(req);
                 break;
+            case BATCH:
+                batch(req);
+                break;
             case SHOW:
                 show();
                 break;
@@ -175,23 +331,48 @@ public class Publisher {
      * @return A JSONArray containing the list of brokers.
      */
     public static JSONArray getBrokers(String directoryIp, int directoryPort) {
-        try (Socket socket = new Socket(directoryIp, directoryPort);
-                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                PrintWriter writer = new PrintWriter(socket.getOutputStream(), true)) {
-
-            JSONObject request = new JSONObject();
-            request.put("user type", "publisher");
-            writer.println(request.toJSONString());
-
-            String response = reader.readLine();
-            JSONParser parser = new JSONParser();
-            JSONObject res = (JSONObject) parser.parse(response);
+        JSONObject res = queryDirectory(directoryIp, directoryPort);
+        return res == null ? new JSONArray() : (JSONArray) res.get("brokers");
+    }
 
-            return (JSONArray) res.get("brokers");
+    /**
+     * Retrieves the broker recommended by the Directory Service, which is chosen
+     * by load. If the directory does not recommend one, a broker is picked at
+     * random from the list.
+     *
+     * @param directoryIp   The IP address of the Directory Service.
+     * @param directoryPort The port number of the Directory Service.
+     * @return The broker information (IP and port), or null if there is none.
+     */
+    public static JSONObject getRecommendedBroker(String directoryIp, int directoryPort) {
+        JSONObject res = queryDirectory(directoryIp, directoryPort);
+        if (res == null) {
+            return null;
+        }
+        if (res.get("recommended") != null) {
+            return (JSONObject) res.get("recommended");
+        }
+        JSONArray brokerList = (JSONArray) res.get("brokers");
+        if (brokerList == null || brokerList.isEmpty()) {
+            return null;
+        }
+        // Randomly select a broker from the list
+        return (JSONObject) brokerList.get(new Random().nextInt(brokerList.size()));
+    }
 
-        } catch (IOException | ParseException e) {
+    /**
+     * Sends a lookup to the Directory Service.
+     *
+     * @param directoryIp   The IP address of the Directory Service.
+     * @param directoryPort The port number of the Directory Service.
+     * @return The response of the directory, or null on failure.
+     */
+    private static JSONObject queryDirectory(String directoryIp, int directoryPort) {
+        try {
+            return DirectoryLookup.query(directoryIp, directoryPort, "publisher");
+        } catch (IOException e) {
             System.out.println("Failed to retrieve the list of available broker");
-            return new JSONArray();
+            return null;
         }
     }
 
@@ -212,10 +393,8 @@ public class Publisher {
         String topicName = String.join(" ", Arrays.copyOfRange(req, 2, req.length));
         ;
 
-        try {
-            Integer.parseInt(topicId);
-        } catch (NumberFormatException e) {
-            System.out.println("Topic id must be a number.");
+        if (!TopicNames.isValidTopic(topicId)) {
+            System.out.println("Topic id must be levels separated by '/', without '+' or '#'.");
             return;
         }
 
@@ -223,11 +402,7 @@ public class Publisher {
         request.put("command", "create");
         request.put("topic id", topicId);
         request.put("topic name", topicName);
-        this.writer.println(request.toJSONString());
-
-        String line = this.reader.readLine();
-        JSONParser parser = new JSONParser();
-        JSONObject res = (JSONObject) parser.parse(line);
+        JSONObject res = sendRequest(request);
 
         System.out.println(res.get("detail"));
     }
@@ -248,10 +423,8 @@ public class Publisher {
         String topicId = req[1];
         String message = String.join(" ", Arrays.copyOfRange(req, 2, req.length));
 
-        try {
-            Integer.parseInt(topicId);
-        } catch (NumberFormatException e) {
-            System.out.println("Topic id must be a number.");
+        if (!TopicNames.isValidTopic(topicId)) {
+            System.out.println("Topic id must be levels separated by '/', without '+' or '#'.");
             return;
         }
 
@@ -264,15 +437,67 @@ public class Publisher {
         request.put("command", "publish");
         request.put("topic id", topicId);
         request.put("message", message);
-        this.writer.println(request.toJSONString());
+        JSONObject res = sendRequest(request);
+
+        System.out.println(res.get("detail"));
+    }
+
+    /**
+     * Handles the publishing of several messages to an existing topic with a
+     * single request. The messages are separated by " | ".
+     *
+     * @param req the command input containing the topic ID and the messages
+     * @throws IOException    if there is an error in communication with the broker
+     * @throws ParseException if there is an error parsing the broker's response
+     */
+    private void batch(String[] req) throws IOException, ParseException {
+        if (req.length < 3) {
+            System.out.println("Invalid command. Please provide topic id and messages.");
+            return;
+        }
 
-        String line = this.reader.readLine();
-        JSONParser parser = new JSONParser();
-        JSONObject res = (JSONObject) parser.parse(line);
+        String topicId = req[1];
+        String[] messages = String.join(" ", Arrays.copyOfRange(req, 2, req.length)).split(Pattern.quote(BATCH_SEPARATOR));
 
+        if (!TopicNames.isValidTopic(topicId)) {
+            System.out.println("Topic id must be levels separated by '/', without '+' or '#'.");
+            return;
+        }
+
+        JSONArray entries = new JSONArray();
+        for (String message : messages) {
+            if (message.length() > 100) {
+                System.out.println("Message exceeds the maximum length of 100 characters.");
+                return;
+            }
+            JSONObject entry = new JSONObject();
+            entry.put("topic id", topicId);
+            entry.put("message", message);
+            entries.add(entry);
+        }
+
+        JSONObject res = publishBatch(entries);
         System.out.println(res.get("detail"));
     }
 
+    /**
+     * Publishes many (topic id, message) pairs with one request and waits for the
+     * aggregated result, so a batch costs a single round trip to the broker.
+     *
+     * @param entries the entries to publish, each with a "topic id" and a
+     *                "message"
+     * @return the broker's response, with the number of published messages and
+     *         the topic IDs of the rejected entries
+     * @throws IOException    if there is an error in communication with the broker
+     * @throws ParseException if there is an error parsing the broker's response
+     */
+    public JSONObject publishBatch(JSONArray entries) throws IOException, ParseException {
+        JSONObject request = new JSONObject();
+        request.put("command", "publishBatch");
+        request.put("messages", entries);
+        return sendRequest(request);
+    }
+
     /**
      * Requests and displays the subscriber count for topics owned by the current
      * publisher.
@@ -283,11 +508,7 @@ public class Publisher {
     private void show() throws IOException, ParseException {
         JSONObject request = new JSONObject();
         request.put("command", "countSubscriber");
-        this.writer.println(request.toJSONString());
-
-        String line = this.reader.readLine();
-        JSONParser parser = new JSONParser();
-        JSONObject res = (JSONObject) parser.parse(line);
+        JSONObject res = sendRequest(request);
 
         if ("success".equals(res.get("result"))) {
             JSONArray countList = (JSONArray) res.get("detail");
@@ -318,21 +539,15 @@ public class Publisher {
 
         String topicId = req[1];
 
-        try {
-            Integer.parseInt(topicId);
-        } catch (NumberFormatException e) {
-            System.out.println("Topic id must be a number.");
+        if (!TopicNames.isValidTopic(topicId)) {
+            System.out.println("Topic id must be levels separated by '/', without '+' or '#'.");
             return;
         }
 
         JSONObject request = new JSONObject();
         request.put("command", "delete");
         request.put("topic id", topicId);
-        this.writer.println(request.toJSONString());
-
-        String line = this.reader.readLine();
-        JSONParser parser = new JSONParser();
-        JSONObject res = (JSONObject) parser.parse(line);
+        JSONObject res = sendRequest(request);
 
         System.out.println(res.get("detail"));
     }
@@ -5,13 +5,10 @@ package subscriber;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
+import protocol.MessageStream;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.Socket;
 
 /**
  * MessageReceiverThread is responsible for continuously listening for messages
@@ -20,20 +17,22 @@ import java.net.Socket;
  * responses,
  * and synchronizes with the main thread to notify once a message has been
  * processed.
+ * When the connection to the broker is lost, it asks the subscriber to fail
+ * over and continues with the new connection.
  */
 class MessageReceiverThread extends Thread {
-    private Socket socket;
+    private final Subscriber subscriber;
     private final Object lock;
 
     /**
-     * Constructor to initialize the message receiver thread with the socket, and
-     * lock object.
+     * Constructor to initialize the message receiver thread with the subscriber
+     * and lock object.
      *
-     * @param socket the Socket connected to the broker
-     * @param lock   the object used for synchronizing with the main thread
+     * @param subscriber the subscriber, which holds the connection to the broker
+     * @param lock       the object used for synchronizing with the main thread
      */
-    public MessageReceiverThread(Socket socket, Object lock) {
-        this.socket = socket;
+    public MessageReceiverThread(Subscriber subscriber, Object lock) {
+        this.subscriber = subscriber;
         this.lock = lock;
     }
 
@@ -44,33 +43,51 @@ class MessageReceiverThread extends Thread {
      */
     @Override
     public void run() {
-        String line;
-        try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            while ((line = reader.readLine()) != null) {
-                System.out.println();
-                JSONParser parser = new JSONParser();
-                JSONObject res = (JSONObject) parser.parse(line);
-                String messageType = (String) res.get("message type");
-                if ("broadcast".equals(messageType)) {
-                    handleBroadcast(res);
-                } else if ("deleteNotify".equals(messageType)) {
-                    handleDeleteNotify(res);
-                } else {
-                    handleGeneralResponse(res);
+        MessageStream stream = this.subscriber.getStream();
+        while (stream != null) {
+            JSONObject res;
+            try {
+                while ((res = stream.read()) != null) {
+                    System.out.println();
+                    String messageType = (String) res.get("message type");
+                    if ("broadcast".equals(messageType)) {
+                        handleBroadcast(res);
+                    } else if ("deleteNotify".equals(messageType)) {
+                        handleDeleteNotify(res);
+                    } else {
+                        handleGeneralResponse(res);
+                    }
+                    // Notify the main thread once a message is processed
+                    synchronized (lock) {
+                        lock.notify();
+                    }
+                    System.out.println();
                 }
-                // Notify the main thread once a message is processed
-                synchronized (lock) {
-                    lock.notify();
+            } catch (IOException e) {
+                // Handled below like the end of the stream
+            } catch (ParseException e) {
+                // The rest of the stream cannot be trusted; drop the connection and fail over like on a loss
+                System.out.println("Failed to parse a message from the broker.");
+                try {
+                    stream.close();
+                } catch (IOException ignored) {
+                    // already closed
                 }
-                System.out.println();
             }
-        } catch (IOException e) {
-            if (!socket.isClosed()) {
-                System.out.println("Server down.");
+            if (this.subscriber.isClosed()) {
+                return;
+            }
+            System.out.println("Server down. Looking for another broker...");
+            stream = this.subscriber.failover();
+            if (stream == null) {
+                System.out.println("No broker is reachable.");
+            } else {
+                System.out.println("Reconnected to a broker.");
+            }
+            // A request sent to the lost broker will not be answered
+            synchronized (lock) {
+                lock.notify();
             }
-        } catch (ParseException e) {
-            System.out.println("Failed to parse.");
         }
     }
 
@@ -88,7 +105,7 @@ class MessageReceiverThread extends Thread {
 
         System.out.println("\nYou have received a message");
         System.out.println("Publisher: " + publisher + " | Topic ID: " + topicId + " | Title: " + title
-                + " | Message: \"" + message + "\"");
+                + " | Message: \"" + message + "\"" + (res.containsKey("offset") ? " | Offset: " + res.get("offset") : ""));
         System.out.println();
         Subscriber.displayMenu();
     }
@@ -108,6 +125,7 @@ class MessageReceiverThread extends Thread {
             String title = (String) jsonObject.get("title");
             String publisher = (String) jsonObject.get("publisher");
             System.out.println("ID " + topicId + ": " + title + " from " + publisher + " was deleted.");
+            this.subscriber.topicDeleted(topicId);
         }
         System.out.println();
         Subscriber.displayMenu();
@@ -120,6 +138,7 @@ class MessageReceiverThread extends Thread {
      * @param res the JSONObject containing the response details
      */
     private void handleGeneralResponse(JSONObject res) {
+        this.subscriber.handleResponse(res);
         Object detail = res.get("detail");
         String messageType = res.get("message type").toString();
 
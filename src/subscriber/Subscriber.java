@@ -1,21 +1,35 @@
 package subscriber;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
+import protocol.DirectoryLookup;
+import protocol.DirectoryWatch;
+import protocol.MessageStream;
+import protocol.TopicNames;
 
 /**
  * Represents a subscriber that interacts with a broker in a publisher-subscriber system.
  * The subscriber can view available topics, subscribe to topics, see current subscriptions,
  * and unsubscribe from topics. It also listens for updates from the broker.
  * It can either connect directly to a broker or use the '-d' option to query a Directory Service for available brokers.
+ * The connection asks for the binary wire format and falls back to line-delimited JSON if the broker does not confirm it.
+ * If the broker goes down, the subscriber fails over: it connects to another broker listed by the Directory Service
+ * (or, without '-d', to the same broker once it is back), retrying with backoff, and restores the subscriptions the
+ * broker had confirmed in a single "subscribeBatch" request. Only new messages are received on the new broker, since
+ * offsets are numbered by each broker.
  */
 public class Subscriber {
     private static final String LIST = "list";
@@ -23,17 +37,63 @@ public class Subscriber {
     private static final String CURRENT = "current";
     private static final String UNSUBSCRIBE = "unsub";
     private static final String EXIT = "exit";
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000; // Maximum wait for a broker during failover
+    private static final int FAILOVER_ROUNDS = 10; // Rounds over the known brokers before giving up
 
-    private final PrintWriter writer;
+    private volatile MessageStream stream;
     private static final Object lock = new Object();  // Lock object for synchronization
+    private String userName;
+    private DirectoryWatch directoryWatch; // Brokers to fail over to, or null without '-d'
+    private String brokerIp; // Address of the broker currently connected to
+    private int brokerPort;
+    private volatile boolean closed; // Set on exit, so that a lost connection is not replaced
+    private final Set<String> subscriptions = ConcurrentHashMap.newKeySet(); // Topics confirmed by the broker
+    private final Map<Long, String[]> pendingChanges = new ConcurrentHashMap<>(); // Command and topic ID by request id
+    private final AtomicLong nextRequestId = new AtomicLong();
 
     /**
-     * Constructor to initialize the Subscriber with a reader and writer for communication with the broker.
+     * Constructor to initialize the Subscriber with the message stream used for communication with the broker.
      *
-     * @param writer the PrintWriter to send requests to the broker
+     * @param stream the MessageStream connected to the broker
      */
-    public Subscriber(PrintWriter writer) {
-        this.writer = writer;
+    public Subscriber(MessageStream stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Connects to a broker and sends the user information.
+     *
+     * @param userName       the name of the subscriber
+     * @param brokerIp       the IP address of the broker
+     * @param brokerPort     the port number of the broker
+     * @param directoryWatch the brokers to fail over to, or null to reconnect to the same broker
+     * @return the subscriber
+     * @throws IOException if the broker cannot be reached
+     */
+    public static Subscriber connect(String userName, String brokerIp, int brokerPort,
+                                     DirectoryWatch directoryWatch) throws IOException {
+        Subscriber subscriber = new Subscriber(openStream(brokerIp, brokerPort));
+        subscriber.directoryWatch = directoryWatch;
+        subscriber.brokerIp = brokerIp;
+        subscriber.brokerPort = brokerPort;
+        try {
+            subscriber.sendUserInfo(subscriber.stream, userName);
+        } catch (IOException e) {
+            subscriber.stream.close();
+            throw e;
+        }
+        return subscriber;
+    }
+
+    private static MessageStream openStream(String brokerIp, int brokerPort) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(brokerIp, brokerPort), CONNECT_TIMEOUT_MILLIS);
+            return new MessageStream(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
     }
 
     /**
@@ -46,22 +106,25 @@ public class Subscriber {
     public static void main(String[] args) {
         String brokerIp;
         int brokerPort;
+        DirectoryWatch directoryWatch = null; // Brokers listed by the Directory Service, with '-d'
         // Check if '-d' option is specified to use Directory Service
         if (args.length > 1 && args[1].equals("-d")) {
             String[] directoryAddress = args[2].split(":");
             String directoryIp = directoryAddress[0];
             int directoryPort = Integer.parseInt(directoryAddress[1]);
-            JSONArray brokerList = getBrokers(directoryIp, directoryPort);
+            JSONObject brokerInfo = null;
+            try {
+                // Kept open for the lifetime of the program, so that the list of brokers stays current
+                directoryWatch = DirectoryWatch.open(directoryIp, directoryPort, "subscriber");
+                brokerInfo = directoryWatch.recommendedBroker();
+            } catch (IOException e) {
+                System.out.println("Failed to reach the Directory Service: " + e.getMessage());
+            }
 
-            if (brokerList.isEmpty()) {
+            if (brokerInfo == null) {
                 System.out.println("No available brokers found.");
                 return;
             }
-
-            // Randomly select a broker from the list
-            Random random = new Random();
-            int randomIndex = random.nextInt(brokerList.size());
-            JSONObject brokerInfo = (JSONObject) brokerList.get(randomIndex);
             brokerIp = (String) brokerInfo.get("brokerIp");
             brokerPort = Integer.parseInt((String) brokerInfo.get("brokerPort"));
             System.out.println("Connecting to broker: " + brokerIp + ":" + brokerPort);
@@ -76,34 +139,34 @@ public class Subscriber {
 
         System.out.println();
 
-        try (Socket socket = new Socket(brokerIp, brokerPort);
-             PrintWriter writer = new PrintWriter(socket.getOutputStream(), true)) {
-
-            Subscriber subscriber = new Subscriber(writer);
-            String userName=args[0];
-            subscriber.sendUserInfo(userName);
-
-            MessageReceiverThread messageReceiverThread = new MessageReceiverThread(socket, lock);
-            messageReceiverThread.start();  // Start the message receiving thread
-
-            boolean flag = true;
-            Scanner scanner = new Scanner(System.in);
-            while (flag) {
-                displayMenu();
-                String reqString = scanner.nextLine();
-                boolean[] results= subscriber.handleCommand(reqString);
-                boolean isValidCommand=results[1];
-                flag = results[0];
-                if (flag && isValidCommand) {
-                    subscriber.waitForResponse();// Wait for the broker's response
-                }
-            }
-
+        Subscriber subscriber;
+        try {
+            subscriber = connect(args[0], brokerIp, brokerPort, directoryWatch);
         } catch (UnknownHostException e) {
             System.out.println("Server not found");
+            return;
         } catch (IOException e) {
             System.out.println("The server seems to be down. Terminating the program.");
+            return;
         }
+
+        // Started after the handshake so that the receiver reads in the negotiated format
+        MessageReceiverThread messageReceiverThread = new MessageReceiverThread(subscriber, lock);
+        messageReceiverThread.start();  // Start the message receiving thread
+
+        boolean flag = true;
+        Scanner scanner = new Scanner(System.in);
+        while (flag) {
+            displayMenu();
+            String reqString = scanner.nextLine();
+            boolean[] results= subscriber.handleCommand(reqString);
+            boolean isValidCommand=results[1];
+            flag = results[0];
+            if (flag && isValidCommand) {
+                subscriber.waitForResponse();// Wait for the broker's response
+            }
+        }
+        subscriber.close();
     }
 
     /**
@@ -112,22 +175,26 @@ public class Subscriber {
     public static void displayMenu() {
         System.out.println("Please select command: list, sub, current, unsub.");
         System.out.println("1. list #all topics");
-        System.out.println("2. sub {topic_id} #subscribe to a topic");
+        System.out.println("2. sub {topic_id} [offset|latest] #subscribe to a topic, optionally replaying from an offset");
+        System.out.println("   sub {filter} #subscribe to every matching topic, e.g. sensors/+/temp or sensors/#");
         System.out.println("3. current # show the current subscriptions of the subscriber");
         System.out.println("4. unsub {topic_id} #unsubscribe from a topic");
         System.out.println("5. exit");
     }
 
     /**
-     * Sends the subscriber's user information (user name and type) to the broker.
+     * Sends the subscriber's user information (user name and type) to the broker and negotiates the wire format.
      *
+     * @param stream   the stream connected to the broker
      * @param userName the name of the subscriber
+     * @throws IOException if there is an error in communication with the broker
      */
-    private void sendUserInfo(String userName) {
+    private void sendUserInfo(MessageStream stream, String userName) throws IOException {
+        this.userName = userName;
         JSONObject userInfo = new JSONObject();
         userInfo.put("user type", "subscriber");
         userInfo.put("user name", userName);
-        this.writer.println(userInfo.toJSONString());
+        stream.handshake(userInfo, true);
         System.out.println("Connected to the broker");
     }
 
@@ -139,25 +206,23 @@ public class Subscriber {
      * @return A JSONArray containing the list of brokers.
      */
     public static JSONArray getBrokers(String directoryIp, int directoryPort) {
-        try (Socket directorySocket = new Socket(directoryIp, directoryPort);
-             BufferedReader reader = new BufferedReader(new InputStreamReader(directorySocket.getInputStream()));
-             PrintWriter writer = new PrintWriter(directorySocket.getOutputStream(), true)) {
-
-            // Send request to Directory Service for the list of brokers
-            JSONObject request = new JSONObject();
-            request.put("user type", "subscriber");
-            writer.println(request.toJSONString());
-
-            // Parse the response from Directory Service
-            String response = reader.readLine();
-            JSONParser parser = new JSONParser();
-            JSONObject res = (JSONObject) parser.parse(response);
-
-            return (JSONArray) res.get("brokers");
+        JSONObject res = queryDirectory(directoryIp, directoryPort);
+        return res == null ? new JSONArray() : (JSONArray) res.get("brokers"); // Return empty list on failure
+    }
 
-        } catch (IOException | ParseException e) {
-            e.printStackTrace();
-            return new JSONArray(); // Return empty list on failure
+    /**
+     * Sends a lookup to the Directory Service.
+     *
+     * @param directoryIp   The IP address of the Directory Service.
+     * @param directoryPort The port number of the Directory Service.
+     * @return The response of the directory, or null on failure.
+     */
+    private static JSONObject queryDirectory(String directoryIp, int directoryPort) {
+        try {
+            return DirectoryLookup.query(directoryIp, directoryPort, "subscriber");
+        } catch (IOException e) {
+            System.out.println("Failed to reach the Directory Service: " + e.getMessage());
+            return null;
         }
     }
 
@@ -204,12 +269,36 @@ public class Subscriber {
      * @param topicId the topic ID (optional, can be null for some commands)
      */
     private void sendRequest(String command, String topicId) {
+        sendRequest(command, topicId, null);
+    }
+
+    /**
+     * Sends a request to the broker with the specified command, topic ID and first offset to receive.
+     *
+     * @param command    the command to be sent to the broker
+     * @param topicId    the topic ID (optional, can be null for some commands)
+     * @param fromOffset the first retained offset to receive, "latest", or null
+     */
+    private void sendRequest(String command, String topicId, String fromOffset) {
         JSONObject request = new JSONObject();
         request.put("command", command);
         if (topicId != null) {
             request.put("topic id", topicId);
         }
-        this.writer.println(request.toJSONString());
+        if (fromOffset != null) {
+            request.put("from offset", fromOffset);
+        }
+        if (command.equals("subscribe") || command.equals("unsubscribe")) {
+            // Matched with the response to keep track of the confirmed subscriptions
+            long requestId = this.nextRequestId.incrementAndGet();
+            request.put("request id", requestId);
+            this.pendingChanges.put(requestId, new String[] { command, topicId });
+        }
+        try {
+            this.stream.write(request);
+        } catch (IOException e) {
+            System.out.println("Failed to send the request to the broker.");
+        }
     }
 
     /**
@@ -222,17 +311,184 @@ public class Subscriber {
         boolean isValidCommand=false;
         try {
             String topicId = req[1];
-            Integer.parseInt(topicId);  // Validate that the topic ID is a number
-            sendRequest(command, topicId);
+            if (!TopicNames.isValidFilter(topicId)) {
+                System.out.println("Topic id must be levels separated by '/', with '+' for any one level"
+                        + " or a final '#' for any remaining levels.");
+                return false;
+            }
+            String fromOffset = null;
+            if (command.equals("subscribe") && req.length > 2) {
+                fromOffset = req[2];
+                if (!fromOffset.equals("latest")) {
+                    Long.parseLong(fromOffset);  // Validate that the offset is a number
+                }
+            }
+            sendRequest(command, topicId, fromOffset);
             isValidCommand=true;
         } catch (ArrayIndexOutOfBoundsException e) {
             System.out.println("Invalid command. Please re-enter.");
         } catch (NumberFormatException e) {
-            System.out.println("ID accepts only number.");
+            System.out.println("Offset accepts only number.");
         }
         return  isValidCommand;
     }
 
+    /**
+     * @return the stream connected to the current broker
+     */
+    MessageStream getStream() {
+        return this.stream;
+    }
+
+    /**
+     * Records the subscription change confirmed or rejected by a response.
+     *
+     * @param response a response from the broker
+     */
+    void handleResponse(JSONObject response) {
+        Object requestId = response.get("request id");
+        String[] change = requestId == null ? null : this.pendingChanges.remove(Long.parseLong(requestId.toString()));
+        if (change == null) {
+            return;
+        }
+        boolean success = "success".equals(response.get("result"));
+        if (change[0].equals("subscribe") && success) {
+            this.subscriptions.add(change[1]);
+        } else if (change[0].equals("unsubscribe") && success) {
+            this.subscriptions.remove(change[1]);
+        } else if (change[0].equals("subscribeBatch")) {
+            JSONArray failedTopics = (JSONArray) response.get("failed topics");
+            if (failedTopics != null) {
+                this.subscriptions.removeAll(failedTopics); // Deleted while the subscriber was away
+            }
+        }
+    }
+
+    /**
+     * Forgets a subscription to a topic that has been deleted.
+     *
+     * @param topicId the ID of the deleted topic
+     */
+    void topicDeleted(String topicId) {
+        this.subscriptions.remove(topicId);
+    }
+
+    /**
+     * Replaces the lost connection to the broker. The brokers are tried in
+     * random order, the failed broker last since the directory may not have
+     * dropped it yet, with a growing pause between rounds. Once connected, the
+     * confirmed subscriptions are restored in one request. The new stream
+     * replaces the lost one only after the broker has acknowledged the
+     * handshake, so requests typed meanwhile never go to a half-open stream.
+     *
+     * @return the new stream, or null if no broker could be reached or the
+     *         subscriber is closing
+     */
+    MessageStream failover() {
+        String failed = this.brokerIp + ":" + this.brokerPort;
+        for (int round = 0; round < FAILOVER_ROUNDS && !this.closed; round++) {
+            try {
+                Thread.sleep(DirectoryLookup.backoffMillis(round)); // Spread the subscribers of the failed broker
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            for (String[] address : failoverCandidates(failed)) {
+                MessageStream next;
+                try {
+                    next = openStream(address[0], Integer.parseInt(address[1]));
+                } catch (IOException e) {
+                    continue;
+                }
+                try {
+                    sendUserInfo(next, this.userName);
+                    restoreSubscriptions(next);
+                    this.stream = next;
+                    this.brokerIp = address[0];
+                    this.brokerPort = Integer.parseInt(address[1]);
+                    return next;
+                } catch (IOException e) {
+                    closeQuietly(next);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param failed the address (ip:port) of the broker that was lost
+     * @return the addresses to try, each as {ip, port}
+     */
+    private List<String[]> failoverCandidates(String failed) {
+        List<String[]> candidates = new ArrayList<>();
+        if (this.directoryWatch != null) {
+            for (JSONObject broker : this.directoryWatch.getBrokers()) {
+                String ip = (String) broker.get("brokerIp");
+                String port = (String) broker.get("brokerPort");
+                if (!failed.equals(ip + ":" + port)) {
+                    candidates.add(new String[] { ip, port });
+                }
+            }
+            Collections.shuffle(candidates);
+        }
+        String[] address = failed.split(":");
+        candidates.add(new String[] { address[0], address[1] });
+        return candidates;
+    }
+
+    /**
+     * Subscribes again to every confirmed topic in a single request.
+     *
+     * @param stream the stream connected to the new broker
+     * @throws IOException if the request cannot be sent
+     */
+    private void restoreSubscriptions(MessageStream stream) throws IOException {
+        // Requests sent to the lost broker will not be answered
+        this.pendingChanges.clear();
+        if (this.subscriptions.isEmpty()) {
+            return;
+        }
+        JSONArray topics = new JSONArray();
+        topics.addAll(this.subscriptions);
+        long requestId = this.nextRequestId.incrementAndGet();
+        JSONObject request = new JSONObject();
+        request.put("command", "subscribeBatch");
+        request.put("topics", topics);
+        request.put("request id", requestId);
+        this.pendingChanges.put(requestId, new String[] { "subscribeBatch", null });
+        stream.write(request);
+    }
+
+    /**
+     * Closes the connection to the broker and stops failing over.
+     */
+    private void close() {
+        this.closed = true;
+        closeQuietly(this.stream);
+        if (this.directoryWatch != null) {
+            try {
+                this.directoryWatch.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    private static void closeQuietly(MessageStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    /**
+     * @return true once the subscriber is closing
+     */
+    boolean isClosed() {
+        return this.closed;
+    }
+
     /**
      * Waits for a response from the broker. This method is synchronized with a lock object to handle
      * concurrent access to the socket's input stream.